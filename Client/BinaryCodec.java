@@ -0,0 +1,309 @@
+/******************************************************************************
+ * The Client's side of the compact binary protocol, used once the Server has
+ * accepted the Client's hello. Frames are a varint payload length followed by
+ * a one byte type code and that type's fields.
+ *
+ * Replies are decoded into the same JSONObjects the JSON protocol produces so
+ * the Client handles both the same way. Room events end with their number in
+ * the room, which is only put in the reply when it is not 0. Names (room ids
+ * and identities) may be sent as ids the Server has defined earlier with a
+ * DEFINE frame.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Client;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BinaryCodec {
+
+    // Requests, client to server
+    public static final int MESSAGE = 1;
+    public static final int JOIN = 2;
+    public static final int WHO = 3;
+    public static final int LIST = 4;
+    public static final int CREATE_ROOM = 5;
+    public static final int DELETE = 6;
+    public static final int KICK = 7;
+    public static final int IDENTITY_CHANGE = 8;
+    public static final int QUIT = 9;
+    public static final int SEARCH = 10;
+    public static final int RESYNC = 11;
+
+    // Replies, server to client
+    public static final int CHAT = 20;
+    public static final int ROOM_CHANGE = 21;
+    public static final int ROOM_CONTENTS = 22;
+    public static final int ROOM_LIST = 23;
+    public static final int NEW_IDENTITY = 24;
+    public static final int ROOM_CONTENTS_PART = 25;
+    public static final int ROOM_LIST_PART = 26;
+    public static final int SEARCH_RESULTS = 27;
+    public static final int SEARCH_RESULTS_PART = 28;
+    public static final int ROOM_SYNC = 29;
+    public static final int DEFINE = 30;
+
+    // Names the Server has defined, read by the sending thread and written by the reading one
+    private ConcurrentHashMap<Integer, String> names = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    public void writeRequest(DataOutputStream out, JSONObject request) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        switch (request.get("type").toString()) {
+            case "message":
+                payload.write(MESSAGE);
+                writeString(payload, request.get("content").toString());
+                break;
+
+            case "join":
+                payload.write(JOIN);
+                writeName(payload, request.get("roomid").toString());
+                break;
+
+            case "who":
+                payload.write(WHO);
+                writeName(payload, request.get("roomid").toString());
+                break;
+
+            case "list":
+                payload.write(LIST);
+                break;
+
+            case "createroom":
+                payload.write(CREATE_ROOM);
+                writeName(payload, request.get("roomid").toString());
+                break;
+
+            case "delete":
+                payload.write(DELETE);
+                writeName(payload, request.get("roomid").toString());
+                break;
+
+            case "kick":
+                payload.write(KICK);
+                writeName(payload, request.get("roomid").toString());
+                writeVarint(payload, Integer.parseInt(request.get("time").toString()));
+                writeName(payload, request.get("identity").toString());
+                break;
+
+            case "identitychange":
+                payload.write(IDENTITY_CHANGE);
+                writeName(payload, request.get("identity").toString());
+                break;
+
+            case "quit":
+                payload.write(QUIT);
+                break;
+
+            case "search":
+                payload.write(SEARCH);
+                writeName(payload, request.get("roomid").toString());
+                writeString(payload, request.get("content").toString());
+                break;
+
+            case "resync":
+                payload.write(RESYNC);
+                writeName(payload, request.get("roomid").toString());
+                writeVarlong(payload, Long.parseLong(request.get("seq").toString()));
+                break;
+
+            default:
+                throw new IOException("No binary encoding for " + request.get("type"));
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+        writeVarint(frame, payload.size());
+        payload.writeTo(frame);
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    // Returns the next reply, or null if the frame only defined a name
+    public JSONObject readReply(DataInputStream in) throws IOException {
+        readVarint(in);   // frame length, the fields are self delimiting
+        JSONObject reply = new JSONObject();
+
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case CHAT:
+                reply.put("type", "message");
+                reply.put("identity", readName(in));
+                reply.put("content", readString(in));
+                reply.put("roomid", readName(in));
+                readSeq(in, reply);
+                break;
+
+            case ROOM_CHANGE:
+                reply.put("type", "roomchange");
+                reply.put("identity", readName(in));
+                reply.put("former", readName(in));
+                reply.put("roomid", readName(in));
+                readSeq(in, reply);
+                break;
+
+            case ROOM_SYNC:
+                reply.put("type", "roomsync");
+                reply.put("roomid", readName(in));
+                reply.put("seq", readVarlong(in));
+                break;
+
+            case ROOM_CONTENTS_PART:
+                reply.put("more", true);
+                // fall through
+            case ROOM_CONTENTS:
+                reply.put("type", "roomcontents");
+                reply.put("roomid", readName(in));
+                reply.put("owner", readName(in));
+                JSONArray identities = new JSONArray();
+                int members = readVarint(in);
+                for (int i = 0; i < members; i++) {
+                    identities.add(readName(in));
+                }
+                reply.put("identities", identities);
+                break;
+
+            case ROOM_LIST_PART:
+                reply.put("more", true);
+                // fall through
+            case ROOM_LIST:
+                reply.put("type", "roomlist");
+                JSONArray rooms = new JSONArray();
+                int count = readVarint(in);
+                for (int i = 0; i < count; i++) {
+                    JSONObject room = new JSONObject();
+                    room.put("roomid", readName(in));
+                    room.put("count", readVarint(in));
+                    rooms.add(room);
+                }
+                reply.put("rooms", rooms);
+                break;
+
+            case SEARCH_RESULTS_PART:
+                reply.put("more", true);
+                // fall through
+            case SEARCH_RESULTS:
+                reply.put("type", "searchresults");
+                reply.put("roomid", readName(in));
+                JSONArray results = new JSONArray();
+                int found = readVarint(in);
+                for (int i = 0; i < found; i++) {
+                    JSONObject result = new JSONObject();
+                    result.put("identity", readName(in));
+                    result.put("content", readString(in));
+                    result.put("time", in.readLong());
+                    results.add(result);
+                }
+                reply.put("results", results);
+                break;
+
+            case NEW_IDENTITY:
+                reply.put("type", "newidentity");
+                reply.put("former", readName(in));
+                reply.put("identity", readName(in));
+                break;
+
+            case DEFINE:
+                int id = readVarint(in);
+                String name = readString(in);
+                names.put(id, name);
+                ids.put(name, id);
+                return null;
+
+            default:
+                throw new IOException("Unknown binary reply type " + type);
+        }
+        return reply;
+    }
+
+    private void writeName(ByteArrayOutputStream out, String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            writeVarint(out, id + 1);
+        } else {
+            writeVarint(out, 0);
+            writeString(out, name);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, utf8.length);
+        out.write(utf8, 0, utf8.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeVarlong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void readSeq(DataInputStream in, JSONObject reply) throws IOException {
+        long seq = readVarlong(in);
+        if (seq > 0) {
+            reply.put("seq", seq);
+        }
+    }
+
+    private String readName(DataInputStream in) throws IOException {
+        int ref = readVarint(in);
+        if (ref == 0) {
+            return readString(in);
+        }
+        String name = names.get(ref - 1);
+        if (name == null) {
+            throw new IOException("Unknown name id " + (ref - 1));
+        }
+        return name;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[readVarint(in)];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarlong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
@@ -1,10 +1,19 @@
 /******************************************************************************
  * Compilation:  javac Client.java
  * Execution:    java Chat host port
- * Dependencies: ClientMessage, SendThread
+ * Dependencies: BinaryCodec, ClientMessage, Decompressor, RoomEvents, SendThread
  *
  * Connects a to host server on port 4444 by default, enables an interactive
- * instant chat messenger.
+ * instant chat messenger. Offers the Server the compact binary protocol and
+ * falls back to JSON if the Server does not take it up (or with --json).
+ * Replies are deflated when the Server is started with compression on.
+ *
+ * Large room contents arrive in several parts, which are collected and shown
+ * as one list once the last part is in. Search results are shown as each part
+ * arrives, with a count once the last is in.
+ *
+ * Chat messages and room changes are shown in the order their room numbered
+ * them, with any the Client missed asked for again, see RoomEvents.
  *
  * @author Rem, 2015
  ******************************************************************************/
@@ -14,12 +23,18 @@ package Client;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
 
 public class Client {
 
@@ -29,29 +44,79 @@ public class Client {
     @Option(required = true, name = "-p", aliases = {"--port"}, usage = "Port Address")
     private static int port = 4444;
 
+    @Option(required = false, name = "-j", aliases = {"--json"}, usage = "Only use the JSON protocol")
+    protected static boolean jsonOnly = false;
+
     private static String identity;
 
+    // Members from the roomcontents parts received so far
+    private static ArrayList<String> pendingMembers = new ArrayList<>();
+
+    // Results from the searchresults parts shown so far
+    private static int foundResults = 0;
+
+    // Orders the events of the room this client is in
+    private static RoomEvents events;
+
+    // Set once the Server has answered hello, until then everything is JSON
+    protected static volatile boolean binary = false;
+    protected static volatile boolean longFrames = false;
+    private static Decompressor decompressor;
+    protected static BinaryCodec codec = new BinaryCodec();
+    protected static CountDownLatch negotiated = new CountDownLatch(1);
+
     public static void main(String[] args) throws IOException {
+        CmdLineParser parser = new CmdLineParser(new Client());
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.out.println(e.getMessage());
+            parser.printUsage(System.out);
+            return;
+        }
+
         Socket socket = null;
         try {
             socket = new Socket(host, port);
             DataInputStream in = new DataInputStream(socket.getInputStream());
 
-            Thread sendingThread = new Thread(new SendThread(socket));
+            SendThread sender = new SendThread(socket);
+            events = new RoomEvents(sender);
+            Thread sendingThread = new Thread(sender);
             sendingThread.start();
 
             // READS MESSAGES IN FROM THE SERVER
             while (true) {
-                String response = in.readUTF();
-                Object obj = JSONValue.parse(response);
-
-                JSONObject jsonMsg = (JSONObject) obj;
+                JSONObject jsonMsg;
+                DataInputStream frame = decompressor == null ? in : decompressor.next(in);
+                if (binary) {
+                    jsonMsg = codec.readReply(frame);
+                    if (jsonMsg == null) {
+                        continue;   // only defined a name
+                    }
+                } else if (longFrames) {
+                    byte[] utf8 = new byte[frame.readInt()];
+                    frame.readFully(utf8);
+                    jsonMsg = (JSONObject) JSONValue.parse(new String(utf8, StandardCharsets.UTF_8));
+                } else {
+                    String response = frame.readUTF();
+                    jsonMsg = (JSONObject) JSONValue.parse(response);
+                }
 
                 String type = (String) jsonMsg.get("type");
                 switch (type) {
 
+                    case "hello":
+                        binary = "binary".equals(jsonMsg.get("protocol"));
+                        longFrames = "longjson".equals(jsonMsg.get("protocol"));
+                        if ("deflate".equals(jsonMsg.get("compression"))) {
+                            decompressor = new Decompressor();
+                        }
+                        negotiated.countDown();
+                        break;
+
                     case "message":
-                        messageReply(jsonMsg);
+                        show(events.arrived(jsonMsg));
                         break;
 
                     case "newidentity":
@@ -70,11 +135,15 @@ public class Client {
                         }
                         // Another client changing room/ disconnecting
                         else {
-                            String ident = jsonMsg.get("identity").toString();
-                            System.out.println(ident + " moves to " + jsonMsg.get("roomid").toString());
+                            show(events.arrived(jsonMsg));
                         }
                         break;
 
+                    case "roomsync":
+                        String syncedRoom = jsonMsg.get("roomid").toString();
+                        show(events.synced(syncedRoom, Long.parseLong(jsonMsg.get("seq").toString())));
+                        break;
+
                     case "roomcontents":
                         roomContentsReply(jsonMsg);
                         break;
@@ -83,6 +152,10 @@ public class Client {
                         roomListReply(jsonMsg);
                         break;
 
+                    case "searchresults":
+                        searchResultsReply(jsonMsg);
+                        break;
+
                     default:
                         System.out.println("Please use a valid message");
                         break;
@@ -98,6 +171,27 @@ public class Client {
     }
 
 
+    // Shows room events in the order they are given
+    private static void show(ArrayList<JSONObject> ready) {
+        for (JSONObject event : ready) {
+            if ("message".equals(event.get("type"))) {
+                messageReply(event);
+            } else {
+                roomChangeReply(event);
+            }
+        }
+    }
+
+    private static void roomChangeReply(JSONObject jsonMsg) {
+        String ident = jsonMsg.get("identity").toString();
+        String room = jsonMsg.get("roomid").toString();
+        System.out.println(ident + " moves to " + room);
+        // This client's events come from the new room now
+        if (ident.equals(identity) && !room.isEmpty()) {
+            events.entered(room);
+        }
+    }
+
     private static void messageReply(JSONObject jsonMsg) {
         System.out.print(jsonMsg.get("identity").toString());
         System.out.print(": ");
@@ -112,18 +206,25 @@ public class Client {
         } else if (jsonMsg.get("former").toString().equals(jsonMsg.get("identity"))) {
             System.out.println("Requested identity invalid or in use");
         } else {
-            identity = jsonMsg.get("identity").toString();
-            System.out.println(jsonMsg.get("former").toString() + " is now " + identity);
+            // Everyone in the room is told, only take it as ours if it was ours before
+            if (jsonMsg.get("former").toString().equals(identity)) {
+                identity = jsonMsg.get("identity").toString();
+            }
+            System.out.println(jsonMsg.get("former").toString() + " is now " + jsonMsg.get("identity").toString());
         }
     }
 
     private static void roomContentsReply(JSONObject jsonMsg) {
         String room = jsonMsg.get("roomid").toString();
         JSONArray jsonRoomMembers = (JSONArray) jsonMsg.get("identities");
-        ArrayList<String> roomMembers = new ArrayList<>();
         for (int i = 0; i < jsonRoomMembers.size(); i++) {
-            roomMembers.add(jsonRoomMembers.get(i).toString());
+            pendingMembers.add(jsonRoomMembers.get(i).toString());
         }
+        if (jsonMsg.get("more") != null) {
+            return;
+        }
+        ArrayList<String> roomMembers = pendingMembers;
+        pendingMembers = new ArrayList<>();
         if (room.equals("MainHall")) {
             System.out.print(room + " contains ");
 
@@ -141,6 +242,25 @@ public class Client {
         }
     }
 
+    private static void searchResultsReply(JSONObject jsonMsg) {
+        JSONArray results = (JSONArray) jsonMsg.get("results");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (int i = 0; i < results.size(); i++) {
+            JSONObject result = (JSONObject) results.get(i);
+            long time = Long.parseLong(result.get("time").toString());
+            System.out.print("[" + format.format(new Date(time)) + "] ");
+            System.out.print(result.get("identity").toString() + ": ");
+            System.out.print(result.get("content").toString());
+            System.out.println();
+        }
+        foundResults += results.size();
+        if (jsonMsg.get("more") != null) {
+            return;
+        }
+        System.out.println(foundResults + " result/s in " + jsonMsg.get("roomid").toString());
+        foundResults = 0;
+    }
+
     private static void roomListReply(JSONObject jsonMsg) {
         JSONArray rooms = (JSONArray) jsonMsg.get("rooms");
         for (int i = 0; i < rooms.size(); i++) {
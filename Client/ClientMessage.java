@@ -10,6 +10,7 @@
 
 package Client;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 public class ClientMessage {
@@ -48,6 +49,25 @@ public class ClientMessage {
         return jsonString;
     }
 
+    public String searchRequest(String roomId, String terms) {
+        jsonMessage = new JSONObject();
+        jsonMessage.put("type", "search");
+        jsonMessage.put("roomid", roomId);
+        jsonMessage.put("content", terms);
+        String jsonString = jsonMessage.toJSONString() + "\n";
+        return jsonString;
+    }
+
+    // Asks for the room's events again, from the first one missed
+    public String resyncRequest(String roomId, long seq) {
+        jsonMessage = new JSONObject();
+        jsonMessage.put("type", "resync");
+        jsonMessage.put("roomid", roomId);
+        jsonMessage.put("seq", seq);
+        String jsonString = jsonMessage.toJSONString() + "\n";
+        return jsonString;
+    }
+
     public String listRequest() {
         jsonMessage = new JSONObject();
         jsonMessage.put("type", "list");
@@ -81,6 +101,25 @@ public class ClientMessage {
         return jsonString;
     }
 
+    public String helloRequest() {
+        jsonMessage = new JSONObject();
+        JSONArray protocols = new JSONArray();
+        protocols.add("binary");
+        protocols.add("longjson");
+        protocols.add("json");
+        jsonMessage.put("type", "hello");
+        jsonMessage.put("protocols", protocols);
+        JSONArray compression = new JSONArray();
+        compression.add("deflate");
+        jsonMessage.put("compression", compression);
+        // Room events numbered, with a roomsync once caught up, see RoomEvents
+        JSONArray features = new JSONArray();
+        features.add("roomsync");
+        jsonMessage.put("features", features);
+        String jsonString = jsonMessage.toJSONString() + "\n";
+        return jsonString;
+    }
+
     public String quitRequest() {
         jsonMessage = new JSONObject();
         jsonMessage.put("type", "quit");
@@ -0,0 +1,74 @@
+/******************************************************************************
+ * Reads the Server's stream once it has agreed to deflate replies. Every
+ * frame then arrives as a record: a PLAIN byte followed by the frame as is,
+ * or a DEFLATED byte, a varint length and the frame deflated with a context
+ * that is kept for the whole connection.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Client;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class Decompressor {
+
+    public static final int PLAIN = 0;
+    public static final int DEFLATED = 1;
+
+    private Inflater inflater = new Inflater(true);
+    private byte[] output = new byte[1024];
+
+    // A stream holding exactly the next frame, in itself when it was not deflated
+    public DataInputStream next(DataInputStream in) throws IOException {
+        int marker = in.readUnsignedByte();
+        if (marker == PLAIN) {
+            return in;
+        }
+        if (marker != DEFLATED) {
+            throw new IOException("Unknown record marker " + marker);
+        }
+
+        byte[] input = new byte[readVarint(in)];
+        in.readFully(input);
+        inflater.setInput(input);
+
+        int total = 0;
+        try {
+            while (true) {
+                if (total == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int inflated = inflater.inflate(output, total, output.length - total);
+                total += inflated;
+                if (inflated == 0) {
+                    if (inflater.needsInput()) {
+                        break;
+                    }
+                    throw new IOException("Deflate stream ended unexpectedly");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated frame", e);
+        }
+        return new DataInputStream(new ByteArrayInputStream(output, 0, total));
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
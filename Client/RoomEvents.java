@@ -0,0 +1,110 @@
+/******************************************************************************
+ * Puts the events of the room the Client is in, its chat messages and room
+ * changes, in the order the room numbered them. An event that arrives ahead
+ * of one still missing is held back, and the Server is asked to resync the
+ * room from the first event missing. It answers with the events from there
+ * on, or with who is in the room if it no longer has them all, and then a
+ * roomsync giving the number of the room's next event, after which whatever
+ * was held back is shown.
+ *
+ * On entering a room the events sent to catch up on it are shown as they
+ * come, until the roomsync the Server sends once the Client is caught up.
+ * Events without a number, from a Server that does not number them, are
+ * always shown as they come.
+ *
+ * Only used by the Client's reading thread.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Client;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+public class RoomEvents {
+
+    private final SendThread sender;
+
+    // The room followed, null before entering one
+    private String roomId;
+    // The number of the last event shown, -1 until the room's roomsync
+    private long last = -1;
+    // Events that arrived ahead of a missing one, by number
+    private TreeMap<Long, JSONObject> held = new TreeMap<>();
+    private boolean resyncing = false;
+
+    RoomEvents(SendThread sender) {
+        this.sender = sender;
+    }
+
+    // The Client has moved to roomId, its events are followed from its roomsync
+    public void entered(String roomId) {
+        this.roomId = roomId;
+        last = -1;
+        held.clear();
+        resyncing = false;
+    }
+
+    // Returns the events that can be shown now that this one has arrived, in order
+    public ArrayList<JSONObject> arrived(JSONObject event) throws IOException {
+        ArrayList<JSONObject> ready = new ArrayList<>();
+        Object seq = event.get("seq");
+        if (seq == null || last < 0 || !inRoom(event)) {
+            ready.add(event);
+            return ready;
+        }
+        long number = Long.parseLong(seq.toString());
+        if (number <= last) {
+            return ready;   // seen already, a resync sends some twice
+        }
+        held.put(number, event);
+        release(ready);
+        if (!held.isEmpty() && !resyncing) {
+            resyncing = true;
+            sender.request(new ClientMessage().resyncRequest(roomId, last + 1));
+        }
+        return ready;
+    }
+
+    // The room's next event is numbered seq, returns the held events that can now be shown
+    public ArrayList<JSONObject> synced(String syncedRoomId, long seq) throws IOException {
+        ArrayList<JSONObject> ready = new ArrayList<>();
+        if (!syncedRoomId.equals(roomId)) {
+            return ready;
+        }
+        // Whatever was held from before then will not be sent again
+        while (!held.isEmpty() && held.firstKey() < seq) {
+            ready.add(held.pollFirstEntry().getValue());
+        }
+        last = seq - 1;
+        resyncing = false;
+        release(ready);
+        if (!held.isEmpty()) {
+            resyncing = true;
+            sender.request(new ClientMessage().resyncRequest(roomId, last + 1));
+        }
+        return ready;
+    }
+
+    // Moves the held events that follow on from the last one shown into ready
+    private void release(ArrayList<JSONObject> ready) {
+        while (!held.isEmpty() && held.firstKey() == last + 1) {
+            ready.add(held.pollFirstEntry().getValue());
+            last++;
+        }
+    }
+
+    // Chat messages name their room, from older Servers they can only be from the room
+    // followed, room changes name the room they are about
+    private boolean inRoom(JSONObject event) {
+        if (!"roomchange".equals(event.get("type"))) {
+            return event.get("roomid") == null || roomId.equals(event.get("roomid"));
+        }
+        return roomId.equals(event.get("former")) || roomId.equals(event.get("roomid"));
+    }
+
+}
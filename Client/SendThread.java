@@ -1,54 +1,76 @@
 /******************************************************************************
  * A thread created by the Client class at runtime, that reads in input from
  * the clients keyboard, marshalls the data into JSON format and send it to
- * the Server over a TCP connection.
+ * the Server over a TCP connection. The Client's reading thread sends its own
+ * requests, such as resyncs, through request().
  *
  * @author Rem, 2015
  ******************************************************************************/
 
 package Client;
 
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class SendThread implements Runnable {
 
+    // How long to wait for the Server to answer hello before staying on JSON
+    private static final long NEGOTIATION_TIMEOUT = 2000;
+
     Socket socket;
+    private final DataOutputStream outputStream;
 
-    SendThread(Socket socket) {
+    SendThread(Socket socket) throws IOException {
         this.socket = socket;
+        this.outputStream = new DataOutputStream(socket.getOutputStream());
+    }
+
+    // Sends a request for another thread, in between the user's
+    public void request(String request) throws IOException {
+        send(outputStream, request);
     }
 
     @Override
     public void run() {
 
         try {
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-
             Scanner userInput = new Scanner(System.in);
             String message;
 
+            // Offer the binary protocol, servers that do not understand hello never reply
+            if (!Client.jsonOnly) {
+                String helloReq = new ClientMessage().helloRequest();
+                outputStream.writeUTF(helloReq);
+                outputStream.flush();
+                try {
+                    Client.negotiated.await(NEGOTIATION_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted while negotiating, using JSON");
+                }
+            }
+
             // Send new identity message for the first time
             String newIdReq = new ClientMessage().newIdentityRequest("");
-            outputStream.writeUTF(newIdReq);
-            outputStream.flush();
+            send(outputStream, newIdReq);
 
             // Send roomchange request for the first time, to join MainHall
             String roomChange = new ClientMessage().joinRoomRequest("MainHall");
-            outputStream.writeUTF(roomChange);
-            outputStream.flush();
+            send(outputStream, roomChange);
 
             // Display the contents of the entire chat
             String listMsg = new ClientMessage().listRequest();
-            outputStream.writeUTF(listMsg);
-            outputStream.flush();
+            send(outputStream, listMsg);
 
             // Display contents for MainHall for first-time joiners
             String whoMsg = new ClientMessage().whoRequest("MainHall");
-            outputStream.writeUTF(whoMsg);
-            outputStream.flush();
+            send(outputStream, whoMsg);
 
             // After identity and room set-up, listen for new messages from clients keyboard.
             while (true) {
@@ -64,8 +86,7 @@ public class SendThread implements Runnable {
 
                         case "#quit":
                             String quitReq = new ClientMessage().quitRequest();
-                            outputStream.writeUTF(quitReq);
-                            outputStream.flush();
+                            send(outputStream, quitReq);
                             break;
 
                         case "#identitychange":
@@ -74,8 +95,7 @@ public class SendThread implements Runnable {
                                 if (newIdentity != null) {
                                     if (isValidName(newIdentity)) {
                                         String newIdMsg = new ClientMessage().newIdentityRequest(newIdentity);
-                                        outputStream.writeUTF(newIdMsg);
-                                        outputStream.flush();
+                                        send(outputStream, newIdMsg);
                                     } else {
                                         System.out.println("Names must be alphanumeric and must not start with a number.");
                                     }
@@ -90,8 +110,7 @@ public class SendThread implements Runnable {
                                 String roomId = messageTokens[1];
                                 if (roomId != null && isValidRoomName(roomId)) {
                                     String joinRoomMsg = new ClientMessage().joinRoomRequest(roomId);
-                                    outputStream.writeUTF(joinRoomMsg);
-                                    outputStream.flush();
+                                    send(outputStream, joinRoomMsg);
                                 } else {
                                     System.out.println("Invalid room name.");
                                 }
@@ -105,18 +124,31 @@ public class SendThread implements Runnable {
                                 String room = messageTokens[1];
                                 if (room != null) {
                                     String whoReqMsg = new ClientMessage().whoRequest(room);
-                                    outputStream.writeUTF(whoReqMsg);
-                                    outputStream.flush();
+                                    send(outputStream, whoReqMsg);
                                 }
                             } catch (Exception e) {
                                 System.out.println("Please provide the name of the room you wish to inspect");
                             }
                             break;
 
+                        case "#search":
+                            try {
+                                String room = messageTokens[1];
+                                String terms = message.substring(message.indexOf(room, command.length()) + room.length()).trim();
+                                if (!terms.isEmpty()) {
+                                    String searchReqMsg = new ClientMessage().searchRequest(room, terms);
+                                    send(outputStream, searchReqMsg);
+                                } else {
+                                    System.out.println("Please provide the words to search for");
+                                }
+                            } catch (Exception e) {
+                                System.out.println("Please provide the room, followed by the words to search for");
+                            }
+                            break;
+
                         case "#list":
                             String listReq = new ClientMessage().listRequest();
-                            outputStream.writeUTF(listReq);
-                            outputStream.flush();
+                            send(outputStream, listReq);
                             break;
 
                         case "#createroom":
@@ -125,7 +157,7 @@ public class SendThread implements Runnable {
                                 if ((newRoom != null)
                                         && isValidRoomName(newRoom)) {
                                     String createRequest = new ClientMessage().createRomRequest(newRoom);
-                                    outputStream.writeUTF(createRequest);
+                                    send(outputStream, createRequest);
                                 } else {
                                     System.out.println("Rooms must be alphanumeric with at least 3 " +
                                             "characters and no more than 16 characters");
@@ -142,8 +174,7 @@ public class SendThread implements Runnable {
                                 String time = messageTokens[2];
                                 String userToKick = messageTokens[3];
                                 String kickMsg = new ClientMessage().kickRequest(roomFrom, time, userToKick);
-                                outputStream.writeUTF(kickMsg);
-                                outputStream.flush();
+                                send(outputStream, kickMsg);
                             } catch (Exception e) {
                                 System.out.println("Please provide the room, followed by time followed by the user you wish to kick");
                             }
@@ -152,8 +183,7 @@ public class SendThread implements Runnable {
                         case "#delete":
                             try {
                                 String deleteReq = new ClientMessage().deleteRequest(messageTokens[1]);
-                                outputStream.writeUTF(deleteReq);
-                                outputStream.flush();
+                                send(outputStream, deleteReq);
                             } catch (Exception e) {
                                 System.out.println("Please provide the name of the room you wish to delete");
                             }
@@ -167,8 +197,7 @@ public class SendThread implements Runnable {
                 //  SENDS REGULAR CHAT MESSAGE
                 else {
                     String jsonChatMessage = new ClientMessage().chatMessage(message);
-                    outputStream.writeUTF(jsonChatMessage);
-                    outputStream.flush();
+                    send(outputStream, jsonChatMessage);
                 }
             }
         } catch (IOException e) {
@@ -177,6 +206,21 @@ public class SendThread implements Runnable {
         }
     }
 
+    // Sends a request built by ClientMessage in whichever protocol was negotiated
+    private synchronized void send(DataOutputStream outputStream, String request) throws IOException {
+        if (Client.binary) {
+            Client.codec.writeRequest(outputStream, (JSONObject) JSONValue.parse(request));
+        } else if (Client.longFrames) {
+            byte[] utf8 = request.getBytes(StandardCharsets.UTF_8);
+            outputStream.writeInt(utf8.length);
+            outputStream.write(utf8);
+            outputStream.flush();
+        } else {
+            outputStream.writeUTF(request);
+            outputStream.flush();
+        }
+    }
+
     private boolean isValidName(String input) {
         if ((input.length() >= 3 && input.length() <= 16)
                 && (input.matches("[A-Za-z0-9]+"))
@@ -0,0 +1,47 @@
+/******************************************************************************
+ * Carries room broadcasts and announcements between the Servers of a cluster.
+ * A node subscribes to the topic of a room while one of its clients is in it,
+ * so it is only sent what its own clients will see. A message published on a
+ * topic reaches every other node subscribed to it just once, together with
+ * the clients it is for on each node.
+ *
+ * The topics are ROOM followed by a room id, EVERYONE for announcements,
+ * which every node subscribes to, and NODE followed by a node id for one
+ * node's clients. Room ids are chosen by clients, so they only ever appear
+ * after ROOM and a room named * or @node cannot be mistaken for the others.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface Backplane {
+
+    String EVERYONE = "*";
+    String NODE = "@";
+    String ROOM = "#";
+
+    static String roomTopic(String roomId) {
+        return ROOM + roomId;
+    }
+
+    // Called on the backplane's own thread for each message published to this node
+    interface Subscriber {
+        // nodes and clients are who the message is for, empty for every client of every node
+        void published(String topic, ServerMessage message, String[] nodes, long[] clients);
+    }
+
+    // Completes once messages published on the topic will be delivered to this node
+    CompletableFuture<Void> subscribe(String topic);
+
+    void unsubscribe(String topic);
+
+    // Sends the message to the other nodes subscribed to the topic, it can be released once this returns
+    void publish(String topic, ServerMessage message, String[] nodes, long[] clients);
+
+    // False once the backplane is lost, the cluster then falls back to sending over its NodeLinks
+    boolean isConnected();
+
+}
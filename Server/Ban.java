@@ -14,10 +14,14 @@ public class Ban {
 
     private long timeOfBan;
     private long duration;
+    private String roomId;
+    private String userId;
 
     public Ban(long banTime, long duration, String roomId, String userId) {
         this.timeOfBan = banTime;
         this.duration = duration;
+        this.roomId = roomId;
+        this.userId = userId;
     }
 
     public boolean isBanned(long currentTime) {
@@ -30,4 +34,25 @@ public class Ban {
         return isBanned;
     }
 
+    // The first second at which the ban no longer applies
+    public long getExpiry() {
+        return timeOfBan + duration + 1;
+    }
+
+    public long getTimeOfBan() {
+        return timeOfBan;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
 }
@@ -0,0 +1,208 @@
+/**********************************************************************************
+ * Every Ban on the Server, indexed by room and then identity, so checking a
+ * join is two hash lookups however many bans there are. A second index from
+ * identity to that user's bans lets a ban follow them through identitychange.
+ *
+ * Bans expire through a hashed timer wheel of one second slots. Each Ban sits
+ * in the slot of the second it expires in and only that slot is looked at as
+ * each second passes, so expired bans are purged without scanning the rest.
+ * Bans longer than a turn of the wheel just stay in their slot for another
+ * turn, since whether one is due is decided by its absolute expiry and not by
+ * the slot. A ban that is already due when it is added, such as one restored
+ * from the journal, goes in the next slot to be purged rather than one the
+ * wheel has just passed, where it would wait a whole turn. A join checks the
+ * time as well, so a ban never outlives its duration while it waits to be
+ * purged.
+ *
+ * Bans added or moved by a rename are written to the StateJournal. Expiry is
+ * not, a replayed ban that has expired since is purged like any other.
+ *
+ * @author Rem, 2015
+ *********************************************************************************/
+
+package Server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class BanList {
+
+    private static final int WHEEL_SLOTS = 512;
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Ban>> bansByRoom = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Ban>> bansByUser = new ConcurrentHashMap<>();
+    private final List<ConcurrentLinkedQueue<Ban>> wheel = new ArrayList<>(WHEEL_SLOTS);
+
+    // The next second to purge, only changed by the timer
+    private volatile long nextTick;
+
+    public BanList() {
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    // Starts purging expired bans once a second on the given timer
+    public void start(ScheduledExecutorService timer) {
+        nextTick = now();
+        timer.scheduleAtFixedRate(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Bans identity from roomId for duration seconds, replacing any ban already there
+    public void ban(String roomId, String identity, long duration) {
+        add(new Ban(now(), duration, roomId, identity));
+    }
+
+    public boolean isBanned(String roomId, String identity) {
+        ConcurrentHashMap<String, Ban> roomBans = bansByRoom.get(roomId);
+        if (roomBans == null) {
+            return false;
+        }
+        Ban ban = roomBans.get(identity);
+        if (ban == null) {
+            return false;
+        }
+        if (ban.isBanned(now())) {
+            return true;
+        }
+        remove(ban);   // expired, the timer has not got to it yet
+        return false;
+    }
+
+    // Moves every ban on former over to the user's new identity
+    public void rename(String former, String identity) {
+        Set<Ban> bans = bansByUser.remove(former);
+        if (bans == null) {
+            return;
+        }
+        for (Ban ban : bans) {
+            ConcurrentHashMap<String, Ban> roomBans = bansByRoom.get(ban.getRoomId());
+            if (roomBans != null && roomBans.remove(former, ban)) {
+                StateJournal journal = Server.journal;
+                if (journal != null) {
+                    journal.unbanned(ban.getRoomId(), former);
+                }
+                add(new Ban(ban.getTimeOfBan(), ban.getDuration(), ban.getRoomId(), identity));
+            }
+        }
+    }
+
+    // Forgets the bans of a deleted room, so a new room with its name starts clean
+    public void clearRoom(String roomId) {
+        ConcurrentHashMap<String, Ban> roomBans = bansByRoom.remove(roomId);
+        if (roomBans != null) {
+            for (Ban ban : roomBans.values()) {
+                unindexUser(ban);
+            }
+        }
+    }
+
+    // Removes and returns the bans of a room that is moving to another node of the cluster
+    public ArrayList<Ban> takeRoom(String roomId) {
+        ArrayList<Ban> taken = new ArrayList<>();
+        ConcurrentHashMap<String, Ban> roomBans = bansByRoom.remove(roomId);
+        if (roomBans != null) {
+            for (Ban ban : roomBans.values()) {
+                unindexUser(ban);
+                taken.add(ban);
+            }
+        }
+        return taken;
+    }
+
+    // Takes in a ban moved here with its room, keeping when it started
+    public void restore(Ban ban) {
+        add(ban);
+    }
+
+    // Lifts the user's ban from the room, if there is one
+    public void unban(String roomId, String identity) {
+        ConcurrentHashMap<String, Ban> roomBans = bansByRoom.get(roomId);
+        Ban ban = roomBans == null ? null : roomBans.get(identity);
+        if (ban != null) {
+            remove(ban);
+        }
+    }
+
+    // A snapshot of every ban, including any that have expired but not been purged yet
+    public ArrayList<Ban> all() {
+        ArrayList<Ban> all = new ArrayList<>();
+        for (ConcurrentHashMap<String, Ban> roomBans : bansByRoom.values()) {
+            all.addAll(roomBans.values());
+        }
+        return all;
+    }
+
+    private void add(Ban ban) {
+        Ban replaced = bansByRoom.computeIfAbsent(ban.getRoomId(), r -> new ConcurrentHashMap<>())
+                .put(ban.getUserId(), ban);
+        if (replaced != null) {
+            unindexUser(replaced);
+        }
+        bansByUser.compute(ban.getUserId(), (user, bans) -> {
+            if (bans == null) {
+                bans = ConcurrentHashMap.newKeySet();
+            }
+            bans.add(ban);
+            return bans;
+        });
+        // The timer may be purging nextTick's slot right now, so a due ban goes in the one after
+        wheel.get(slot(Math.max(ban.getExpiry(), nextTick + 1))).add(ban);
+
+        StateJournal journal = Server.journal;
+        if (journal != null) {
+            journal.banned(ban);
+        }
+    }
+
+    private void remove(Ban ban) {
+        ConcurrentHashMap<String, Ban> roomBans = bansByRoom.get(ban.getRoomId());
+        if (roomBans != null && roomBans.remove(ban.getUserId(), ban)) {
+            unindexUser(ban);
+        }
+    }
+
+    private void unindexUser(Ban ban) {
+        bansByUser.computeIfPresent(ban.getUserId(), (user, bans) -> {
+            bans.remove(ban);
+            return bans.isEmpty() ? null : bans;
+        });
+    }
+
+    // Purges the slots of every second that has passed since the last run
+    private void expire() {
+        long now = now();
+        for (; nextTick <= now; nextTick++) {
+            Iterator<Ban> slot = wheel.get(slot(nextTick)).iterator();
+            while (slot.hasNext()) {
+                Ban ban = slot.next();
+                if (!ban.isBanned(now)) {
+                    slot.remove();
+                    remove(ban);
+                } else if (!isCurrent(ban)) {
+                    slot.remove();   // replaced, renamed or its room was deleted
+                }
+            }
+        }
+    }
+
+    private boolean isCurrent(Ban ban) {
+        ConcurrentHashMap<String, Ban> roomBans = bansByRoom.get(ban.getRoomId());
+        return roomBans != null && roomBans.get(ban.getUserId()) == ban;
+    }
+
+    private static int slot(long second) {
+        return (int) Math.floorMod(second, (long) WHEEL_SLOTS);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+}
@@ -0,0 +1,422 @@
+/******************************************************************************
+ * Encodes replies and decodes requests for clients that negotiated the
+ * BINARY Protocol. A frame is a varint payload length followed by a one byte
+ * message type code and that type's fields in a fixed order.
+ *
+ * Strings are UTF-8 with a varint length and times are 8 byte milliseconds.
+ * Room events end with their number in the room as a varint, 0 if they have
+ * none.
+ * Room ids and identities are written as names: a varint that is 0 for an
+ * inline string, or 1 + an id from the Server wide intern table. Each
+ * connection is sent a DEFINE frame for an id before the first frame that
+ * uses it, so shared frames stay encode-once.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BinaryCodec {
+
+    // Requests, client to server
+    public static final int MESSAGE = 1;
+    public static final int JOIN = 2;
+    public static final int WHO = 3;
+    public static final int LIST = 4;
+    public static final int CREATE_ROOM = 5;
+    public static final int DELETE = 6;
+    public static final int KICK = 7;
+    public static final int IDENTITY_CHANGE = 8;
+    public static final int QUIT = 9;
+    public static final int SEARCH = 10;
+    public static final int RESYNC = 11;
+
+    // Replies, server to client
+    public static final int CHAT = 20;
+    public static final int ROOM_CHANGE = 21;
+    public static final int ROOM_CONTENTS = 22;
+    public static final int ROOM_LIST = 23;
+    public static final int NEW_IDENTITY = 24;
+    public static final int ROOM_CONTENTS_PART = 25;   // a ROOM_CONTENTS with more parts to follow
+    public static final int ROOM_LIST_PART = 26;       // a ROOM_LIST with more parts to follow
+    public static final int SEARCH_RESULTS = 27;
+    public static final int SEARCH_RESULTS_PART = 28;  // a SEARCH_RESULTS with more parts to follow
+    public static final int ROOM_SYNC = 29;
+    public static final int DEFINE = 30;
+
+    // Once this many names are interned new ones are sent inline instead
+    private static final int MAX_INTERNED = 1 << 16;
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, String> names = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private static final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+
+    // Room events are written with seq 0 unless numbered, for clients that asked for it in hello
+    public static Frame encode(ServerMessage message, boolean numbered) throws IOException {
+        Writer w = writers.get();
+        w.reset();
+        long seq = numbered ? message.seq : 0;
+
+        switch (message.type) {
+            case "message":
+                w.writeByte(CHAT);
+                w.writeName(message.identity);
+                w.writeString(message.content);
+                w.writeName(message.roomId);
+                w.writeVarlong(seq);
+                break;
+
+            case "roomchange":
+                w.writeByte(ROOM_CHANGE);
+                w.writeName(message.identity);
+                w.writeName(message.former);
+                w.writeName(message.roomId);
+                w.writeVarlong(seq);
+                break;
+
+            case "roomsync":
+                w.writeByte(ROOM_SYNC);
+                w.writeName(message.roomId);
+                w.writeVarlong(seq);
+                break;
+
+            case "roomcontents":
+                w.writeByte(message.more ? ROOM_CONTENTS_PART : ROOM_CONTENTS);
+                w.writeName(message.roomId);
+                w.writeName(message.owner);
+                w.writeVarint(message.to - message.from);
+                for (int i = message.from; i < message.to; i++) {
+                    w.writeName(message.identities[i]);
+                }
+                break;
+
+            case "roomlist":
+                w.writeByte(message.more ? ROOM_LIST_PART : ROOM_LIST);
+                w.writeVarint(message.to - message.from);
+                for (int i = message.from; i < message.to; i++) {
+                    w.writeName(message.roomIds[i]);
+                    w.writeVarint(message.counts[i]);
+                }
+                break;
+
+            case "searchresults":
+                w.writeByte(message.more ? SEARCH_RESULTS_PART : SEARCH_RESULTS);
+                w.writeName(message.roomId);
+                w.writeVarint(message.to - message.from);
+                for (int i = message.from; i < message.to; i++) {
+                    w.writeName(message.identities[i]);
+                    w.writeString(message.contents[i]);
+                    w.writeLong(message.times[i]);
+                }
+                break;
+
+            case "newidentity":
+                w.writeByte(NEW_IDENTITY);
+                w.writeName(message.former);
+                w.writeName(message.identity);
+                break;
+
+            default:
+                throw new IOException("No binary encoding for " + message.type);
+        }
+        return w.toFrame();
+    }
+
+    // Tells a client which name an id stands for
+    public static Frame define(int id) {
+        Writer w = writers.get();
+        w.reset();
+        w.writeByte(DEFINE);
+        w.writeVarint(id);
+        w.writeString(names.get(id));
+        return w.toFrame();
+    }
+
+    // Reads one frame from a blocking stream into request
+    public static void readRequest(DataInputStream in, Request request) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift > 21) {
+                throw new IOException("Malformed frame length");
+            }
+        }
+        if (length > EventLoop.MAX_FRAME) {
+            throw new IOException("Request frame too large: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        decodeRequest(ByteBuffer.wrap(payload), length, request);
+    }
+
+    // Decodes exactly length bytes of payload into request, leaving the buffer after them
+    public static void decodeRequest(ByteBuffer buffer, int length, Request request) throws IOException {
+        int end = buffer.position() + length;
+        request.clear();
+        if (length < 1 || end > buffer.limit()) {
+            throw new IOException("Malformed binary request frame of " + length + " bytes");
+        }
+
+        int type = buffer.get() & 0xFF;
+        switch (type) {
+            case MESSAGE:
+                request.type = Request.Type.MESSAGE;
+                request.content = readString(buffer, end);
+                break;
+
+            case JOIN:
+                request.type = Request.Type.JOIN;
+                request.roomId = readName(buffer, end);
+                break;
+
+            case WHO:
+                request.type = Request.Type.WHO;
+                request.roomId = readName(buffer, end);
+                break;
+
+            case LIST:
+                request.type = Request.Type.LIST;
+                break;
+
+            case CREATE_ROOM:
+                request.type = Request.Type.CREATE_ROOM;
+                request.roomId = readName(buffer, end);
+                break;
+
+            case DELETE:
+                request.type = Request.Type.DELETE;
+                request.roomId = readName(buffer, end);
+                break;
+
+            case KICK:
+                request.type = Request.Type.KICK;
+                request.roomId = readName(buffer, end);
+                request.time = readVarint(buffer, end);
+                request.identity = readName(buffer, end);
+                break;
+
+            case IDENTITY_CHANGE:
+                request.type = Request.Type.IDENTITY_CHANGE;
+                request.identity = readName(buffer, end);
+                break;
+
+            case QUIT:
+                request.type = Request.Type.QUIT;
+                break;
+
+            case SEARCH:
+                request.type = Request.Type.SEARCH;
+                request.roomId = readName(buffer, end);
+                request.content = readString(buffer, end);
+                break;
+
+            case RESYNC:
+                request.type = Request.Type.RESYNC;
+                request.roomId = readName(buffer, end);
+                request.seq = readVarlong(buffer, end);
+                break;
+
+            default:
+                throw new IOException("Unknown binary request type " + type);
+        }
+
+        if (buffer.position() != end) {
+            throw new IOException("Malformed binary request of type " + type);
+        }
+    }
+
+    // The varint at the buffer's position without consuming it, -1 if it is incomplete
+    public static int peekVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        int pos = buffer.position();
+        for (int shift = 0; pos < buffer.limit(); shift += 7) {
+            int b = buffer.get(pos++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            if (shift > 21) {
+                throw new IOException("Malformed frame length");
+            }
+        }
+        return -1;
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            if (nextId.get() >= MAX_INTERNED) {
+                return -1;
+            }
+            id = ids.computeIfAbsent(name, n -> {
+                int newId = nextId.getAndIncrement();
+                names.put(newId, n);
+                return newId;
+            });
+        }
+        return id;
+    }
+
+    // Readers stop at end, the first byte after the request, rather than run into the next one
+    private static int readVarint(ByteBuffer buffer, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35 && buffer.position() < end; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readVarlong(ByteBuffer buffer, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70 && buffer.position() < end; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static String readString(ByteBuffer buffer, int end) throws IOException {
+        int length = readVarint(buffer, end);
+        if (length < 0 || length > end - buffer.position()) {
+            throw new IOException("Malformed string of " + length + " bytes");
+        }
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static String readName(ByteBuffer buffer, int end) throws IOException {
+        int ref = readVarint(buffer, end);
+        if (ref == 0) {
+            return readString(buffer, end);
+        }
+        String name = names.get(ref - 1);
+        if (name == null) {
+            throw new IOException("Unknown name id " + (ref - 1));
+        }
+        return name;
+    }
+
+    // Reusable per-thread scratch space, a frame is only copied out once it is complete
+    private static class Writer {
+
+        // Room for the longest varint length prefix ahead of the payload
+        private static final int HEADER = 5;
+
+        private byte[] bytes = new byte[1024];
+        private int pos;
+        private int[] interned = new int[16];
+        private int internedCount;
+
+        void reset() {
+            pos = HEADER;
+            internedCount = 0;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[pos++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[pos++] = (byte) value;
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[pos++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[pos++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, pos, utf8.length);
+            pos += utf8.length;
+        }
+
+        void writeName(String value) {
+            String name = value == null ? "" : value;
+            int id = intern(name);
+            if (id < 0) {
+                writeVarint(0);
+                writeString(name);
+            } else {
+                writeVarint(id + 1);
+                if (internedCount == interned.length) {
+                    interned = Arrays.copyOf(interned, interned.length * 2);
+                }
+                interned[internedCount++] = id;
+            }
+        }
+
+        Frame toFrame() {
+            // Write the length prefix right before the payload and copy from there
+            int payload = pos - HEADER;
+            int start = HEADER - varintSize(payload);
+            int p = start;
+            int value = payload;
+            while ((value & ~0x7F) != 0) {
+                bytes[p++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[p] = (byte) value;
+
+            int[] ids = internedCount == 0 ? null : Arrays.copyOf(interned, internedCount);
+            return Frame.copyOf(bytes, start, pos - start, ids);
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, pos + extra));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/******************************************************************************
+ * A publish/subscribe broker for the Backplane, run in any one Server with
+ * --broker-port and connected to by every node over TCP. Each node's frames
+ * are read by a thread of its own, and a published frame is passed on to the
+ * subscribers of its topic exactly as it arrived, so what one node publishes
+ * reaches every other node in the order it was published.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Broker {
+
+    private final ConcurrentHashMap<String, Set<Connection>> topics = new ConcurrentHashMap<>();
+
+    public void start(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        System.out.println("Broker is listening for nodes on port " + port);
+
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread reader = new Thread(new Connection(socket), "broker-connection");
+                    reader.start();
+                } catch (IOException e) {
+                    System.out.println("Error accepting a broker connection");
+                    e.printStackTrace();
+                }
+            }
+        }, "broker-acceptor");
+        acceptor.start();
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final Outbox outbox;
+        private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.outbox = new Outbox(socket, Server.senderPool, Server.maxBatch, 0, 0);
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    byte[] frame = NodeMessage.readFrame(in);
+                    NodeMessage message = NodeMessage.decode(frame, 4, frame.length - 4);
+                    switch (message.type) {
+
+                        case SUBSCRIBE:
+                            topics.computeIfAbsent(message.roomId, t -> ConcurrentHashMap.newKeySet()).add(this);
+                            subscribed.add(message.roomId);
+                            outbox.send(message.reply(true).encode());
+                            break;
+
+                        case UNSUBSCRIBE:
+                            unsubscribe(message.roomId);
+                            break;
+
+                        case PUBLISH:
+                            Set<Connection> subscribers = topics.get(message.roomId);
+                            if (subscribers == null) {
+                                break;
+                            }
+                            Frame shared = Frame.copyOf(frame, 0, frame.length, null);
+                            for (Connection subscriber : subscribers) {
+                                if (subscriber != this) {
+                                    subscriber.outbox.send(shared.retain());
+                                }
+                            }
+                            shared.release();
+                            break;
+
+                        default:
+                            System.out.println("Broker ignored a " + message.type);
+                            break;
+                    }
+                }
+            } catch (EOFException | SocketException e) {
+                System.out.println("Node disconnected from the broker");
+            } catch (IOException e) {
+                System.out.println("Error reading from a broker connection");
+                e.printStackTrace();
+            } finally {
+                for (String topic : subscribed) {
+                    unsubscribe(topic);
+                }
+                outbox.closeWhenDrained();
+            }
+        }
+
+        private void unsubscribe(String topic) {
+            subscribed.remove(topic);
+            topics.computeIfPresent(topic, (t, subscribers) -> {
+                subscribers.remove(this);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+}
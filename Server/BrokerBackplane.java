@@ -0,0 +1,133 @@
+/******************************************************************************
+ * The Backplane of a node connected to a Broker over TCP, which may well be
+ * running in the same process. Publishes are written through an Outbox that
+ * lingers for a moment, so a burst of broadcasts from the room shards goes
+ * to the broker as one batch in one write.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BrokerBackplane implements Backplane, Runnable {
+
+    private static final long SUBSCRIBE_TIMEOUT = 5000;
+
+    private final String address;
+    private final Socket socket;
+    private final Outbox outbox;
+    private final Subscriber subscriber;
+    private final ConcurrentHashMap<Integer, CompletableFuture<NodeMessage>> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCall = new AtomicInteger();
+    private volatile boolean connected = true;
+
+    // Connects to the broker at host:port
+    public BrokerBackplane(String address, long lingerMillis, Subscriber subscriber) throws IOException {
+        String[] hostPort = address.split(":");
+        this.address = address;
+        this.socket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+        this.outbox = new Outbox(socket, Server.senderPool, Server.maxBatch, lingerMillis, 0);
+        this.subscriber = subscriber;
+        socket.setTcpNoDelay(true);
+
+        Thread reader = new Thread(this, "backplane");
+        reader.start();
+        System.out.println("Connected to the broker at " + address);
+    }
+
+    @Override
+    public CompletableFuture<Void> subscribe(String topic) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.SUBSCRIBE);
+        request.roomId = topic;
+        int id;
+        do {
+            id = nextCall.incrementAndGet();
+        } while (id == 0);
+        int call = id;
+        request.call = call;
+        CompletableFuture<NodeMessage> reply = new CompletableFuture<>();
+        calls.put(call, reply);
+        send(request);
+
+        // A subscription the broker never confirms is given up on, the client is let in regardless
+        return reply.orTimeout(SUBSCRIBE_TIMEOUT, TimeUnit.MILLISECONDS).handle((done, e) -> {
+            calls.remove(call);
+            if (e != null) {
+                System.out.println("No reply from the broker to subscribing to " + topic);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void unsubscribe(String topic) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.UNSUBSCRIBE);
+        request.roomId = topic;
+        send(request);
+    }
+
+    @Override
+    public void publish(String topic, ServerMessage message, String[] nodes, long[] clients) {
+        NodeMessage publish = new NodeMessage(NodeMessage.Type.PUBLISH);
+        publish.roomId = topic;
+        publish.message = message;
+        publish.nodes = nodes;
+        publish.numbers = clients;
+        send(publish);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void run() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                NodeMessage message = NodeMessage.read(in);
+                if (message.type == NodeMessage.Type.REPLY) {
+                    CompletableFuture<NodeMessage> reply = calls.remove(message.call);
+                    if (reply != null) {
+                        reply.complete(message);
+                    }
+                } else if (message.type == NodeMessage.Type.PUBLISH) {
+                    subscriber.published(message.roomId, message.message, message.nodes, message.numbers);
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            System.out.println("Lost the broker at " + address);
+        } catch (IOException e) {
+            System.out.println("Error reading from the broker at " + address);
+            e.printStackTrace();
+        } finally {
+            connected = false;
+            outbox.closeWhenDrained();
+            for (CompletableFuture<NodeMessage> reply : calls.values()) {
+                reply.completeExceptionally(new IOException("Lost the broker at " + address));
+            }
+        }
+    }
+
+    private void send(NodeMessage message) {
+        try {
+            outbox.send(message.encode());
+        } catch (IOException e) {
+            System.out.println("Error encoding a " + message.type + " for the broker");
+            e.printStackTrace();
+        }
+    }
+
+}
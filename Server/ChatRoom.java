@@ -4,23 +4,80 @@
  * Comes with methods to broadcast chat messages to the clients in the room, in
  * addition to methods that return the list of users for each instance etc.
  *
+ * Each member is one entry holding both the connection and the identity it is
+ * shown under, kept in join order. Joins and leaves are O(1), and readers get
+ * an array snapshot of the members that is only rebuilt after a change, so a
+ * busy room's broadcasts share one copy instead of copying on every join.
+ *
+ * The roomcontents reply is cached too, until the members or owner change.
+ * Every chat message and room change broadcast to the room is one of its
+ * events, numbered one after the other. The last events are kept as they
+ * were broadcast, in RecentMessages, so someone joining is sent the chat
+ * among them without encoding it again or reading the room's log, and a
+ * member who missed some events is sent just those again.
+ *
+ * A room is owned by one of the Server's RoomShards. Its members are only read
+ * or changed by commands submitted to that shard, so none of this needs a
+ * lock. The owner and member count are also read by other threads.
+ *
  * @author Rem, 2015
  *********************************************************************************/
 
 package Server;
 
 import java.io.IOException;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class ChatRoom {
 
+    private static final Member[] NO_MEMBERS = new Member[0];
+
     private String roomId;
-    private String owner;
-    private CopyOnWriteArrayList identities = new CopyOnWriteArrayList();
-    private CopyOnWriteArrayList<ClientConnection> clientThreads = new CopyOnWriteArrayList<>();
+    private volatile String owner;
+    private RoomDirectory directory;
+
+    // Only touched on this room's shard
+    private LinkedHashMap<ClientConnection, Member> members = new LinkedHashMap<>();
+
+    // Null once members has changed, until the next read rebuilds it
+    private Member[] snapshot = NO_MEMBERS;
+    private volatile int size = 0;
+
+    // Bumped on every change to members, the cached contents also remember the owner
+    private long version = 0;
+    private ServerMessage contents;
+    private long contentsVersion = -1;
+    private String contentsOwner;
+
+    // What has been said in the room, when the Server keeps logs. Opened on the shard when first used.
+    private volatile RoomLog log;
+    private volatile boolean deleted = false;
+
+    // The last events broadcast, as they were encoded, and the number of the next one
+    private final RecentMessages recent = new RecentMessages(this);
 
-    ChatRoom(String roomId) {
+    // Work on a room, run on the room's shard
+    public interface Command {
+        void run(ChatRoom room) throws IOException;
+    }
+
+    public static class Member {
+
+        public final ClientConnection connection;
+        public final String identity;
+
+        Member(ClientConnection connection, String identity) {
+            this.connection = connection;
+            this.identity = identity;
+        }
+    }
+
+    ChatRoom(String roomId, RoomDirectory directory) {
         this.roomId = roomId;
+        this.directory = directory;
     }
 
     public String getRoomId() {
@@ -31,40 +88,214 @@ public class ChatRoom {
         return owner;
     }
 
-    public void setOwner(String owner) {
+    // Only called by RoomDirectory, which indexes rooms by owner
+    void setOwner(String owner) {
         this.owner = owner;
     }
 
-    public CopyOnWriteArrayList<String> getUsers() {
-        return identities;
+    // Runs the command on this room's shard. The future completes once it has run, even if it failed.
+    public CompletableFuture<Void> submit(Command command) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                command.run(this);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error running a command in " + roomId);
+                e.printStackTrace();
+            }
+        }, Server.shards.forRoom(roomId));
+    }
+
+    // Returns false if the client is already in the room
+    public boolean add(ClientConnection cC) {
+        if (members.containsKey(cC)) {
+            return false;
+        }
+        members.put(cC, new Member(cC, cC.getIdentity()));
+        changed();
+        directory.changed();
+        return true;
+    }
+
+    public boolean remove(ClientConnection cC) {
+        if (members.remove(cC) == null) {
+            return false;
+        }
+        changed();
+        directory.changed();
+        return true;
+    }
+
+    public boolean contains(ClientConnection cC) {
+        return members.containsKey(cC);
+    }
+
+    // Shows a member under their new identity, keeping their place in the room
+    public void rename(ClientConnection cC, String identity) {
+        if (members.containsKey(cC)) {
+            members.put(cC, new Member(cC, identity));
+            changed();
+        }
+    }
+
+    // Safe to call from any thread
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // A consistent view of the members at one point, must not be modified
+    public Member[] members() {
+        if (snapshot == null) {
+            snapshot = members.values().toArray(new Member[members.size()]);
+        }
+        return snapshot;
     }
 
-    public void addClient(ClientConnection cC) {
-        clientThreads.add(cC);
+    // Numbers the event, encodes it once per protocol and queues the same frame for every member.
+    // The room keeps it among its recent events, which release it once it is dropped.
+    public void broadcastToRoom(ServerMessage message) throws IOException {
+        message.seq = recent.next();
+        try {
+            broadcast(message);
+        } finally {
+            recent.add(message);
+        }
     }
 
-    public CopyOnWriteArrayList<ClientConnection> getClientThreads() {
-        return clientThreads;
+    // The number the room's next event will have
+    public long nextEvent() {
+        return recent.next();
     }
 
-    public void removeUser(String userIdentity) {
-        identities.remove(identities.indexOf(userIdentity));
-        for (int i = 0; i < clientThreads.size(); i++) {
-            if (clientThreads.get(i).getIdentity().equals(userIdentity)) {
-                clientThreads.remove(i);
+    private void broadcast(ServerMessage message) throws IOException {
+        boolean backplane = Server.cluster.getBackplane() != null;
+        ArrayList<ClientConnection> remote = null;
+        for (Member member : members()) {
+            if (backplane && member.connection instanceof RemoteClient) {
+                if (remote == null) {
+                    remote = new ArrayList<>();
+                }
+                remote.add(member.connection);
+            } else {
+                member.connection.sendShared(message);
             }
         }
+        // Members on other nodes are reached with one publish to the room's topic
+        if (remote != null) {
+            Server.cluster.publish(Backplane.roomTopic(roomId), message, remote);
+        }
+    }
+
+    // Keeps a chat message in the room's log, and hands it to the search index
+    public void record(String identity, String content) {
+        RoomLog current = log();
+        if (current != null) {
+            current.append(identity, content);
+        }
+        if (Server.index != null) {
+            Server.index.add(roomId, identity, content, System.currentTimeMillis());
+        }
+    }
+
+    // Completes once the room's log, if it keeps one, has been read back from disk, so a
+    // join can wait for it without holding up the shard
+    public CompletableFuture<Void> logRecovered() {
+        RoomLog current = Server.history > 0 ? log() : null;
+        return current == null ? CompletableFuture.completedFuture(null) : current.recovered();
+    }
+
+    // Sends a member who has just come in what was said before they did, from the recent
+    // messages if they go back far enough and from the log if not
+    public void replay(ClientConnection member) throws IOException {
+        RoomLog current = log();
+        long since = Server.historySeconds > 0 ? System.currentTimeMillis() - Server.historySeconds * 1000 : 0;
+        if (!recent.replay(member, Server.history, since, current == null)) {
+            current.replay(member, Server.history, since);
+        }
     }
 
-    public void broadcastToRoom(String message) throws IOException {
-        for (ClientConnection c : clientThreads) {
-            Thread send = new Thread(new ServerSendThread(c.getOutput(), message)); // here used to be json object
-            send.start();
+    // Sends a member who missed events the ones numbered from on, or who is in the room if those
+    // are no longer all held, then the number of the next event so they know they are up to date
+    public void resync(ClientConnection member, long from) throws IOException {
+        if (!contains(member)) {
+            return;
         }
+        if (!recent.replaySince(member, from)) {
+            member.sendShared(contents());
+        }
+        member.send(new ServerMessage().roomSyncMsg(roomId, recent.next()));
+    }
+
+    // Carries on numbering the events of a room moved here from where its former home was up to
+    void numberEventsFrom(long next) {
+        recent.numberFrom(next);
+    }
+
+    // Drops the recent events, once the room is gone
+    public void forgetRecent() {
+        recent.clear();
+    }
+
+    // The room has gone quiet, its recent events and its log's mappings are let go of until it is used again
+    void rest() {
+        recent.clear();
+        if (log != null && log.release()) {
+            log = null;
+        }
+    }
+
+    // The room is gone and so are its log and what it said in the search index, safe to call from any thread
+    void deleteLog() {
+        deleted = true;
+        RoomLog current = log;
+        if (Server.logs != null) {
+            Server.logs.delete(roomId, current);
+        }
+        submit(r -> {
+            r.forgetRecent();
+            if (current != null) {
+                current.unmap();
+            }
+        });
+        if (Server.index != null) {
+            Server.index.deleteRoom(roomId);
+        }
+    }
+
+    private RoomLog log() {
+        if (log == null && Server.logs != null && !deleted) {
+            log = Server.logs.open(roomId);
+        }
+        return log;
+    }
+
+    // The roomcontents reply, shared by everyone who asks until the room changes
+    public ServerMessage contents() {
+        String currentOwner = owner;
+        if (contents == null || contentsVersion != version || !Objects.equals(currentOwner, contentsOwner)) {
+            contents = new ServerMessage().roomContentsMsg(roomId, currentOwner, getUsersArray());
+            contentsVersion = version;
+            contentsOwner = currentOwner;
+        }
+        return contents;
+    }
+
+    private void changed() {
+        snapshot = null;
+        size = members.size();
+        version++;
     }
 
     public String[] getUsersArray() {
-        return (String[]) identities.toArray(new String[identities.size()]);
+        Member[] current = members();
+        String[] identities = new String[current.length];
+        for (int i = 0; i < current.length; i++) {
+            identities[i] = current[i].identity;
+        }
+        return identities;
     }
 
 }
@@ -1,46 +1,174 @@
 /********************************************************************************
- * A Thread class that represents a client's connection to the server. This class
- * reads messages from its MessageQueue and proccesses each request according to
- * a specific protocol.
+ * A Runnable class that represents a client's connection to the server. This class
+ * reads messages into its Mailbox and proccesses each request according to
+ * a specific protocol. Its threads come from Server.newThread, so they are
+ * virtual threads when the Server is started with --virtual.
  *
  * Utilizes private methods to implement the request-reply protocol procedures.
+ * Anything touching a room is sent to the node of the Cluster that is home to
+ * the room, where it runs on the shard that owns the room, and a client's room
+ * commands are chained so they run in the order it sent them. Moving between
+ * rooms is a handoff: leave the old room where it lives, then enter the new one.
  *
  * @author Rem, 2015
  *******************************************************************************/
 
 package Server;
 
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class ClientConnection extends Thread {
+public class ClientConnection implements Runnable {
 
-    protected String identity;
+    protected volatile String identity;
     protected Socket socket;
-    protected ConcurrentLinkedQueue<String> messageQueue = new ConcurrentLinkedQueue<String>();
-    protected ChatRoom currentRoom;
-    protected ConcurrentHashMap<ClientConnection, Ban> bannedUsers;
-
-    public ClientConnection(Socket socket, String identity, ConcurrentHashMap bannedUsers) {
+    protected Thread thread;
+    protected Mailbox<Request> messageQueue = new Mailbox<>(Server.mailboxCapacity, Server.mailboxOverflow,
+            Request::isDroppable, Request::recycle);
+    protected Outbox outbox;
+    // Requests the Mailbox dropped while full, only touched by the reading thread
+    private long droppedRequests = 0;
+
+    // Names this client to the node that is home to its room, which may be another Server
+    private static final AtomicLong nextSerial = new AtomicLong();
+    protected long serial = nextSerial.incrementAndGet();
+
+    // Only touched by this client's room commands, which run one after another
+    protected String currentRoomId;
+
+    // The last of this client's room commands, each starts once the one before has finished
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private AtomicReference<CompletableFuture<Void>> roomCommands = new AtomicReference<>(DONE);
+    // Completes once the quit reply is queued, null until they quit or drop the connection
+    protected AtomicReference<CompletableFuture<Void>> quit = new AtomicReference<>();
+
+    // Only used when the connection is serviced by an EventLoop
+    protected SocketChannel channel;
+    protected EventLoop loop;
+    protected ByteBuffer readBuffer;
+    protected ConcurrentLinkedQueue<Frame> pendingWrites;
+    protected AtomicInteger pendingCount = new AtomicInteger();
+    protected volatile boolean tooSlow = false;     // fell Server.outboxCapacity frames behind
+    protected ByteBuffer writeCursor;
+    protected long writeDeadline = 0;
+    protected volatile boolean closeAfterWrite = false;
+
+    // Switched by a hello request, guarded by this connection's lock while sending
+    protected volatile Protocol protocol = Protocol.JSON;
+    // Asked in hello for room events with their seq and roomsyncs, unmodified Clients never do
+    protected volatile boolean numbered = false;
+    private BitSet definedNames = new BitSet();
+    private Compressor compressor;
+
+    public ClientConnection(Socket socket, String identity) throws IOException {
         this.identity = identity;
         this.socket = socket;
-        this.bannedUsers = bannedUsers;
+        this.outbox = new Outbox(socket, Server.senderPool, Server.maxBatch, Server.linger,
+                Server.outboxCapacity);
+    }
+
+    public ClientConnection(SocketChannel channel, EventLoop loop, String identity) {
+        this.identity = identity;
+        this.socket = channel.socket();
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffer = ByteBuffer.allocate(EventLoop.INITIAL_READ);
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+    }
+
+    // For a RemoteClient, which only stands in for a client of another node
+    protected ClientConnection(String identity) {
+        this.identity = identity;
     }
 
     public String getIdentity() {
         return identity;
     }
 
-    public DataOutputStream getOutput() throws IOException {
-        return new DataOutputStream(socket.getOutputStream());
+    // The cluster node this client is connected to
+    public String getNode() {
+        return Server.cluster.getSelf();
+    }
+
+    public void start() {
+        thread = Server.newThread(this);
+        thread.start();
+    }
+
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public boolean isNonBlocking() {
+        return channel != null;
+    }
+
+    // Queues a reply for this client only, written in order by the EventLoop or a sender thread
+    public synchronized void send(ServerMessage message) throws IOException {
+        if (message.isRoomSync() && !numbered) {
+            return;     // a Client that does not number room events would not know it
+        }
+        if (!message.isPartitioned()) {
+            deliver(message.encode(protocol, numbered));
+            return;
+        }
+        // Each part is queued as soon as it is encoded, so the first goes out while the rest are built
+        int from = 0;
+        do {
+            ServerMessage part = message.part(from);
+            deliver(part.encode(protocol, false));
+            from = part.to;
+        } while (from < message.entries());
+    }
+
+    // Queues a message shared with other clients, encoded once per protocol for all of them
+    public synchronized void sendShared(ServerMessage message) throws IOException {
+        if (message.isPartitioned()) {
+            for (Frame part : message.partFrames(protocol)) {
+                deliver(part.retain());
+            }
+            return;
+        }
+        deliver(message.frame(protocol, numbered).retain());
+    }
+
+    // Must hold this connection's lock, so no frame can slip between a DEFINE and its use
+    private void deliver(Frame frame) {
+        int[] interned = frame.interned();
+        if (interned != null) {
+            for (int id : interned) {
+                if (!definedNames.get(id)) {
+                    definedNames.set(id);
+                    enqueue(BinaryCodec.define(id));
+                }
+            }
+        }
+        enqueue(frame);
+    }
+
+    private void enqueue(Frame frame) {
+        if (compressor != null) {
+            frame = compressor.wrap(frame);
+        }
+        if (isNonBlocking()) {
+            loop.enqueue(this, frame);
+        } else {
+            outbox.send(frame);
+        }
     }
 
     //  READS INPUT FROM THE CLIENT AND ADDS IT TO THE MESSAGE-QUEUE
@@ -49,25 +177,37 @@ public class ClientConnection extends Thread {
 
         try {
             DataInputStream in = new DataInputStream(socket.getInputStream());
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
 
-            Thread readFromQueue = new Thread(new ReadWrite());
+            Thread readFromQueue = Server.newThread(new ReadWrite());
             readFromQueue.start();
 
             try {
                 while (true) {
-                    synchronized (messageQueue) {
-                        String msg = in.readUTF();
-                        System.out.println(msg);
-                        messageQueue.add(msg);
+                    Request msg = Request.obtain();
+                    if (protocol == Protocol.BINARY) {
+                        BinaryCodec.readRequest(in, msg);
+                    } else {
+                        JsonCodec.readRequest(in, msg, protocol == Protocol.LONG_JSON);
+                    }
+                    System.out.println(msg);
+                    if (isHandshake(msg)) {
+                        msg.recycle();
+                        continue;
+                    }
+                    if (!messageQueue.put(msg)) {
+                        // Only droppable requests are lost, the client stays connected
+                        droppedRequests++;
+                        System.out.println("Dropped request from " + identity + ", mailbox is full ("
+                                + droppedRequests + " so far)");
                     }
                 }
-            } catch (EOFException e) {
-                quitRequest();
-                in.close();
-                out.close();
-                socket.close();
+            } catch (EOFException | SocketException e) {
                 System.out.println("Client " + identity + " terminated connection");
+            } catch (InterruptedException e) {
+                System.out.println("Client " + identity + " reader interrupted");
+            } finally {
+                // Lets ReadWrite finish the queued requests and clean up
+                messageQueue.close();
             }
         } catch (IOException e) {
             System.out.println("Error initialising clients IO");
@@ -83,401 +223,351 @@ public class ClientConnection extends Thread {
         public void run() {
 
             boolean readMessages = true;
+            ArrayList<Request> batch = new ArrayList<>(Server.mailboxBatch);
+
+            try {
+                while (readMessages) {
+
+                    // Parks until there is work, then handles a batch per wakeup
+                    if (messageQueue.drainTo(batch, Server.mailboxBatch) == -1) {
+                        disconnect();   // connection dropped without a quit request
+                        break;
+                    }
 
-            while (readMessages) {
-
-                while (!messageQueue.isEmpty() && readMessages) {
-
-                    String message = messageQueue.poll();
-                    Object obj = JSONValue.parse(message);
-                    JSONObject jsonMsg = (JSONObject) obj;
-
-                    String type = jsonMsg.get("type").toString();
-
-                    try {
-
-                        switch (type) {
-
-                            case "message":
-                                jsonMsg.put("identity", identity);
-                                currentRoom.broadcastToRoom(jsonMsg.toString());
-                                break;
-
-                            case "join":
-                                String roomId = jsonMsg.get("roomid").toString();
-                                clientJoinRequest(roomId);
-                                break;
-
-                            case "list":
-                                ArrayList<JSONObject> roomsWithCount = getRoomListWithCount();
-                                String response = new ServerMessage().roomListMsg(roomsWithCount);
-                                getOutput().writeUTF(response);
-                                getOutput().flush();
-                                break;
-
-                            case "createroom":
-                                String newRoomId = jsonMsg.get("roomid").toString();
-                                createRoomRequest(newRoomId);
-                                break;
-
-                            case "delete":
-                                String roomToDelete = jsonMsg.get("roomid").toString();
-                                deleteRoomRequest(roomToDelete);
-                                break;
-
-                            case "who":
-                                String roomRequested = jsonMsg.get("roomid").toString();
-                                whoRequest(roomRequested);
-                                break;
-
-                            case "identitychange":
-                                String newIdentityReq = jsonMsg.get("identity").toString();
-                                String formerIdentity = identity;
-                                identityChangeRequest(newIdentityReq, formerIdentity);
-                                break;
-
-                            case "kick":
-                                String room = jsonMsg.get("roomid").toString();
-                                String userToKick = jsonMsg.get("identity").toString();
-                                long banTime = Long.parseLong(jsonMsg.get("time").toString()); // number of seconds
-                                kickRequest(room, userToKick, banTime);
-                                break;
-
-                            case "quit":
-                                quitRequest();
-                                readMessages = false;
-                                break;
-
-                            default:
-                                System.out.println("An error occured when trying to read clients input");
-                                break;
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (readMessages) {
+                            readMessages = processMessage(batch.get(i));
                         }
-                    } catch (IOException e) {
-                        System.out.println("Error receiving client message");
-                        e.printStackTrace();
+                        batch.get(i).recycle();
                     }
-                } // end while
-            }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                System.out.println("Error closing socket on disconnection");
-                e.printStackTrace();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Client " + identity + " processor interrupted");
             }
+            // The socket is closed once the quit reply, if any, has been queued and sent
+            CompletableFuture<Void> done = quit.get();
+            (done != null ? done : DONE).whenComplete((d, e) -> {
+                endCompression();
+                outbox.closeWhenDrained();
+            });
         }
 
     }
 
-    private boolean isUsernameInUse(String newUsername) {
-        for (int i = 0; i < Server.userIdentities.size(); i++) {
-            if (Server.userIdentities.get(i).contains(newUsername)) {  // No Change
-                return true;
-            }
+    // Negotiates the protocol if this is a hello request, which must be handled by the
+    // reading thread itself since every following frame is read with the chosen protocol
+    protected boolean isHandshake(Request request) throws IOException {
+        if (request.getType() != Request.Type.HELLO) {
+            return false;
         }
-        return false;
-    }
-
-    private boolean isAlreadyInRoom(String identity, String roomId) {
-        ChatRoom room = Server.getRoom(roomId);
-        if (room != null) {
-            for (String client : room.getUsers()) {
-                if (client.equals(identity)) {
-                    return true;
-                }
-            }
+        Protocol chosen = Protocol.JSON;
+        if (!Server.jsonOnly && request.offersBinary) {
+            chosen = Protocol.BINARY;
+        } else if (request.offersLongJson) {
+            chosen = Protocol.LONG_JSON;
         }
-        return false;
-    }
 
-    private ArrayList<JSONObject> getRoomListWithCount() {
-        ArrayList<JSONObject> roomsWithCount = new ArrayList<>();
-        for (ChatRoom cR : Server.rooms) {
-            JSONObject roomWithCount = new JSONObject();
-            roomWithCount.put("roomid", cR.getRoomId());
-            roomWithCount.put("count", cR.getUsers().size());
-            roomsWithCount.add(roomWithCount);
-        }
-        return roomsWithCount;
-    }
+        boolean deflate = Server.compress && request.offersDeflate;
 
-    private void removeAnyRoomOwnerships(String identity) {
-        for (ChatRoom room : Server.rooms) {
-            if (room.getOwner() != null) {
-                if (room.getOwner().equals(identity)) {
-                    room.setOwner("");
-                    if (room.getUsers().isEmpty()) {
-                        deleteRoom(room.getRoomId());
-                    }
-                }
+        synchronized (this) {
+            deliver(new ServerMessage().helloMsg(chosen, deflate).encode(protocol, false));
+            protocol = chosen;
+            numbered = request.offersRoomSync;
+            if (deflate && compressor == null) {
+                compressor = new Compressor(Server.compressLevel, Server.compressThreshold);
             }
         }
+        return true;
     }
 
-    private void removeClientFromPreviousRoom(String roomId, String identity) {
-        if (roomId != null && !roomId.equals("MainHall")) {
-            ChatRoom previousRoom = Server.getRoom(roomId);
-            previousRoom.removeUser(identity);
+    // Handles a single request, returns false once the client has quit. Requests are copied
+    // into room commands, since the Request is recycled as soon as this returns.
+    protected boolean processMessage(Request request) {
+        boolean keepReading = true;
+        String roomId = request.roomId;
+
+        switch (request.getType()) {
+
+            case MESSAGE:
+                String content = request.content;
+                then(() -> currentRoomId == null ? DONE
+                        : Server.cluster.chat(currentRoomId, this, identity, content));
+                break;
+
+            case JOIN:
+                then(() -> clientJoinRequest(roomId));
+                break;
+
+            case LIST:
+                then(() -> Server.cluster.list(this));
+                break;
+
+            case CREATE_ROOM:
+                then(() -> createRoomRequest(roomId));
+                break;
+
+            case DELETE:
+                then(() -> deleteRoomRequest(roomId));
+                break;
+
+            case WHO:
+                // MainHall's owner is always "", so it is answered the same way as any other room
+                then(() -> Server.cluster.who(roomId, this));
+                break;
+
+            case SEARCH:
+                String terms = request.content;
+                then(() -> Server.cluster.search(roomId, this, terms));
+                break;
+
+            case RESYNC:
+                long from = request.seq;
+                then(() -> Server.cluster.resync(roomId, this, from));
+                break;
+
+            case IDENTITY_CHANGE:
+                String newIdentity = request.identity;
+                then(() -> identityChangeRequest(newIdentity));
+                break;
+
+            case KICK:
+                String userToKick = request.identity;
+                long time = request.time;   // time in seconds
+                then(() -> Server.cluster.kick(roomId, identity, userToKick, time));
+                break;
+
+            case QUIT:
+                quitRequest();
+                keepReading = false;
+                break;
+
+            default:
+                System.out.println("An error occured when trying to read clients input");
+                break;
         }
+        return keepReading;
     }
 
-    private void deleteRoom(String roomId) {
-        ChatRoom chatRoom = Server.getRoom(roomId);
-        Server.rooms.remove(Server.rooms.indexOf(chatRoom));
+    // Frees the connection's deflate state, frames queued after this are never read
+    protected synchronized void endCompression() {
+        if (compressor != null) {
+            compressor.end();
+        }
     }
 
-    private void moveAllToMainHall(String roomId) throws IOException {
-        ChatRoom chatRoom = Server.getRoom(roomId);
-        ChatRoom mainHall = Server.rooms.get(0);
-        mainHall.addClient(ClientConnection.this);
-        mainHall.getUsers().add(identity);
-        for (String user : chatRoom.getUsers()) {
-            String roomChangeMsg = new ServerMessage().roomChangeMsg(user, chatRoom.getRoomId(), "MainHall");
-            chatRoom.broadcastToRoom(roomChangeMsg);
-            mainHall.broadcastToRoom(roomChangeMsg);
-        }
+    // Cleans up after a client that dropped its connection without quitting, completes once done
+    protected CompletableFuture<Void> disconnect() {
+        return quitRequest();
     }
 
-    private void deleteRoomIfOwner(String userLeaving, ChatRoom roomLeaving) {
-        if (roomLeaving.getOwner() != null) {
-            if (roomLeaving.getOwner().equals(userLeaving)) {
-                if (roomLeaving.getUsers().size() == 0) {
-                    Server.deleteRoom(roomLeaving.getRoomId());
-                }
+    // Called by a room's home once it has moved this client out for a kick or delete
+    protected void evicted(String roomId) {
+        then(() -> {
+            if (!roomId.equals(currentRoomId)) {
+                return DONE;    // they had already left it themselves
             }
-        }
+            leftRoom();
+            return enter(RoomDirectory.MAIN_HALL, roomId);
+        });
     }
 
-    private void clientJoinRequest(String roomId) throws IOException {
-        if (roomId.equals("MainHall")) {
-            if (!isAlreadyInRoom(identity, roomId)) {
-
-                if (currentRoom != null) {
-                    removeClientFromPreviousRoom(currentRoom.getRoomId(), identity);
-                    // Delete previous room if they are the owner and no one is in it
-                    deleteRoomIfOwner(identity, currentRoom);
-                }
-
-                // Add them to the room
-                ChatRoom mainHall = Server.rooms.get(0);
-                currentRoom = mainHall;
-                currentRoom.getClientThreads().add(ClientConnection.this);        // Add new thread to chatroom
-                currentRoom.getUsers().add(ClientConnection.this.getIdentity()); // Add username to list of users
-
-                // Send room change message to all in the room
-                String response = new ServerMessage().roomChangeMsg
-                        (mainHall.getUsers().get(mainHall.getUsers().size() - 1), "", "MainHall");
-                Server.rooms.get(0).broadcastToRoom(response);
-
-                // List the people in Main Hall to the single user
-                String[] mainHallClients = mainHall.getUsersArray();
-                String listMsg = new ServerMessage().roomContentsMsg("MainHall", "", mainHallClients);
-                getOutput().writeUTF(listMsg);
-                getOutput().flush();
+    // Called when a node has left the cluster, a client whose room was there goes back to MainHall
+    protected void recheckRoom() {
+        then(() -> {
+            String roomId = currentRoomId;
+            if (roomId == null) {
+                return DONE;
             }
-        } else {
-            ClientConnection thisConnection = ClientConnection.this;
-            if (bannedUsers.containsKey(thisConnection)) { // check if they have been banned
-                Ban thisBan = bannedUsers.get(thisConnection);
-                if (thisBan.isBanned(System.currentTimeMillis() / 1000)) {
-                    return;
-                } else {
-                    Server.removeBan(thisConnection); //the timer has run up
-                    joinRoom(roomId);
+            return Server.cluster.isMember(roomId, this).thenCompose(reply -> {
+                if (reply.ok || !roomId.equals(currentRoomId)) {
+                    return DONE;
                 }
-            } else {
-                if (!isAlreadyInRoom(identity, roomId)) {    // not banned so just join them to the room
-                    joinRoom(roomId);
-                }
-            }
-        }
+                leftRoom();
+                return enter(RoomDirectory.MAIN_HALL, "");
+            });
+        });
     }
 
-    private void joinRoom(String roomId) throws IOException {
-        ChatRoom room = Server.getRoom(roomId);
-        if (room != null) { // Make sure the room they are joining exists
-
-            // Broadcast changes to rooms
-            String roomChangeMsg = new ServerMessage()
-                    .roomChangeMsg(identity, currentRoom.getRoomId(), roomId);
+    // A room command, which completes once the room's home has run it
+    private interface Step {
+        CompletableFuture<?> run() throws IOException;
+    }
 
-            currentRoom.broadcastToRoom(roomChangeMsg);
-            room.broadcastToRoom(roomChangeMsg);
+    // Runs the step once every earlier room command of this client has finished, the
+    // returned future completes after it
+    private CompletableFuture<Void> then(Step step) {
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        roomCommands.getAndSet(finished)
+                .thenCompose(done -> run(step))
+                .whenComplete((done, e) -> {
+                    if (e != null) {
+                        System.out.println("Error running a room command for " + identity);
+                        e.printStackTrace();
+                    }
+                    finished.complete(null);
+                });
+        return finished;
+    }
 
-            // Remove from current room
-            currentRoom.removeUser(identity);
+    private CompletableFuture<?> run(Step step) {
+        try {
+            return step.run();
+        } catch (IOException e) {
+            System.out.println("Error running a room command for " + identity);
+            e.printStackTrace();
+            return DONE;
+        }
+    }
 
-            // Delete previous room if they are the owner and no one is in it
-            deleteRoomIfOwner(identity, currentRoom);
+    private CompletableFuture<Void> clientJoinRequest(String roomId) {
+        if (roomId.equals(currentRoomId)) {
+            return DONE;
+        }
+        // The room must exist and they must not be banned from it
+        return Server.cluster.canJoin(roomId, identity).thenCompose(reply -> {
+            if (!reply.ok) {
+                return DONE;
+            }
+            // Joining MainHall is not announced to the room being left
+            boolean announce = currentRoomId != null && !roomId.equals(RoomDirectory.MAIN_HALL);
+            return move(roomId, announce);
+        });
+    }
 
-            // Put user in the new room
-            currentRoom = room;
+    // Leaves the current room where it is hosted, then enters the new one where that is
+    private CompletableFuture<Void> move(String roomId, boolean announce) {
+        String from = currentRoomId;
+        CompletableFuture<?> left = from == null ? DONE
+                : Server.cluster.leave(from, this, identity, roomId, announce);
+        return left.thenCompose(done -> {
+            leftRoom();
+            return enter(roomId, announce ? from : "");
+        });
+    }
 
-            // Record them as now being in the new room
-            currentRoom.getUsers().add(identity);
-            currentRoom.getClientThreads().add(ClientConnection.this);
-        }
+    // Enters the room, or MainHall if the room was deleted while they were on their way in.
+    // Entering from "" tells them who is in the room as well.
+    private CompletableFuture<Void> enter(String roomId, String former) {
+        return Server.cluster.subscribe(roomId)
+                .thenCompose(subscribed -> Server.cluster.enter(roomId, this, identity, former))
+                .thenCompose(reply -> {
+                    if (reply.ok) {
+                        currentRoomId = roomId;
+                        return DONE;
+                    }
+                    Server.cluster.unsubscribe(roomId);
+                    if (roomId.equals(RoomDirectory.MAIN_HALL)) {
+                        return DONE;
+                    }
+                    return enter(RoomDirectory.MAIN_HALL, "");
+                });
     }
 
-    private void createRoomRequest(String newRoomId) throws IOException {
-        boolean roomNameInUse = false;
-        for (ChatRoom r : Server.rooms) {
-            if (r.getRoomId().equals(newRoomId)) {
-                roomNameInUse = true;
-            }
-        }
-        if (roomNameInUse) {  // NO CHANGE
-            ArrayList<JSONObject> roomsResponse = getRoomListWithCount();
-            String roomListResponse = new ServerMessage().roomListMsg(roomsResponse);
-            getOutput().writeUTF(roomListResponse);
-            getOutput().flush();
-        } else {  //  CREATES THE NEW ROOM
-            Server.createRoom(newRoomId, identity);
-            ArrayList<JSONObject> roomsResponse = getRoomListWithCount();
-            String roomListResponse = new ServerMessage().roomListMsg(roomsResponse);
-            getOutput().writeUTF(roomListResponse);
-            getOutput().flush();
+    // They are no longer in their room, so this node may stop hearing from it
+    private void leftRoom() {
+        if (currentRoomId != null) {
+            Server.cluster.unsubscribe(currentRoomId);
+            currentRoomId = null;
         }
     }
 
-    private void deleteRoomRequest(String roomToDelete) throws IOException {
-        ChatRoom deletedRoom = Server.getRoom(roomToDelete);
-        if (deletedRoom != null) {
-            if (deletedRoom.getOwner().equals(identity)) {          // Make sure its not MainHall & the owner is deleting
-                // Do a room change for all users to main hall
-                moveAllToMainHall(roomToDelete);
-                // Delete room
-                deleteRoom(roomToDelete);
-                // Reply only to the user that deleted the room with a roomlist
-                ArrayList<JSONObject> serverRooms = getRoomListWithCount();
-                String deleteResponse = new ServerMessage().roomListMsg(serverRooms);
-                getOutput().writeUTF(deleteResponse);
-                getOutput().flush();
-            } else {
-                System.out.println("Client tried to delete an invalid rooom");
-            }
-        }
+    private CompletableFuture<Void> createRoomRequest(String newRoomId) {
+        // Creates the room unless the name is in use, either way the client gets the room list
+        return Server.cluster.create(newRoomId, identity)
+                .thenCompose(reply -> Server.cluster.list(this));
     }
 
-    private void whoRequest(String roomId) throws IOException {
-        if (roomId.equals("MainHall")) {
-            String[] users = Server.rooms.get(0).getUsers().toArray(
-                    new String[Server.rooms.get(0).getUsers().size()]);
-            String whoMainHallResponse = new ServerMessage().roomContentsMsg("MainHall", "", users);
-            getOutput().writeUTF(whoMainHallResponse);
-            getOutput().flush();
-        } else {
-            ChatRoom roomToLookIn = Server.getRoom(roomId);
-            if (roomToLookIn != null) {
-                String roomOwner = roomToLookIn.getOwner();
-                String[] usersInside = roomToLookIn.getUsers().toArray(
-                        new String[Server.getRoom(roomId).getUsers().size()]);
-                String whoResponse = new ServerMessage().roomContentsMsg(roomId, roomOwner, usersInside);
-
-                getOutput().writeUTF(whoResponse);
-                getOutput().flush();
+    private CompletableFuture<Void> deleteRoomRequest(String roomToDelete) {
+        // Only the owner can delete a room, and MainHall has none. Its home moves everyone in it to MainHall.
+        return Server.cluster.delete(roomToDelete, identity).thenCompose(reply -> {
+            if (!reply.ok) {
+                System.out.println("Client tried to delete an invalid rooom");
+                return DONE;
             }
-        }
+            // Reply only to the user that deleted the room with a roomlist
+            return Server.cluster.list(this);
+        });
     }
 
-    private void identityChangeRequest(String newIdentityReq, String formerIdentity) throws IOException {
+    private CompletableFuture<?> identityChangeRequest(String newIdentityReq) throws IOException {
+        String formerIdentity = identity;
         // FIRST TIME SETTING UP IDENTITY
         if (newIdentityReq.equals("")) {
-            Server.userIdentities.add(identity);
-            String firstIdResponse = new ServerMessage().newIdentityMsg("", identity);
-
-            getOutput().writeUTF(firstIdResponse);
-            getOutput().flush();
-        } else {
-            // CHECK IF ALREADY IN USE
-            if (isUsernameInUse(newIdentityReq)) {
-                String noChangeResponse = new ServerMessage().newIdentityMsg(formerIdentity, formerIdentity);
-                getOutput().writeUTF(noChangeResponse);
-                getOutput().flush();
-            }
-            // NOT IN USE SO UPDATE THE NAME
-            else {
-                // First Make integer available for other new guests
-                if (formerIdentity.matches("guest\\d{1,3}")) {
-                    String getNumber = formerIdentity.replaceAll("[^0-9]", "");
-                    Integer nowAvailableID = Integer.parseInt(getNumber);
-                    Server.makeIdAvailable(nowAvailableID);
-                }
-                // USER NAME NOT IN-USE, SO UPDATE THE SERVER LIST
-                for (int i = 0; i < Server.userIdentities.size(); i++) {
-                    if (Server.userIdentities.get(i).equals(formerIdentity)) {
-                        Server.userIdentities.set(i, newIdentityReq);
-                    }
-                }
-                // ALSO UPDATE CHAT-ROOM LIST
-                for (int i = 0; i < currentRoom.getUsers().size(); i++) {
-                    if (currentRoom.getUsers().get(i).equals(formerIdentity)) {
-                        currentRoom.getUsers().set(i, newIdentityReq);
-                    }
+            ServerMessage firstIdResponse = new ServerMessage().newIdentityMsg("", identity);
+            send(firstIdResponse);
+            return DONE;
+        }
+        if (newIdentityReq.equals(formerIdentity)) {
+            send(new ServerMessage().newIdentityMsg(formerIdentity, formerIdentity));
+            return DONE;
+        }
+        // A guest name is free only if it is from this node's blocks, any other name is leased cluster wide
+        int guest = GuestIds.parse(newIdentityReq);
+        CompletableFuture<Boolean> claimed = guest > 0
+                ? CompletableFuture.completedFuture(Server.guestIds.holds(guest))
+                : Server.cluster.getRegistry().claim(newIdentityReq, serial);
+
+        return claimed.thenCompose(ok -> {
+            // CLAIM THE NEW NAME, UNLESS ALREADY IN USE
+            if (!ok || !Server.identities.rename(formerIdentity, newIdentityReq, ClientConnection.this)) {
+                if (ok) {
+                    Server.cluster.getRegistry().release(newIdentityReq, serial);
                 }
-                // CHECK IF THE OWNER CURRENT ROOM
-                if (currentRoom.getOwner() != null) {
-                    if (currentRoom.getOwner().equals(identity)) {
-                        currentRoom.setOwner(newIdentityReq);
-                    }
+                try {
+                    send(new ServerMessage().newIdentityMsg(formerIdentity, formerIdentity));
+                } catch (IOException e) {
+                    System.out.println("Error sending the new identity reply to " + formerIdentity);
+                    e.printStackTrace();
                 }
-                // Check if owner of any other rooms
-                for (int i = 1; i < Server.rooms.size(); i++) {
-                    if (Server.rooms.get(i).getOwner().equals(formerIdentity)) {
-                        Server.rooms.get(i).setOwner(newIdentityReq);
-                    }
-                }
-
-                // SEND TO THE REST OF THE CHAT ROOM
-                identity = newIdentityReq;
-                String updatedId = new ServerMessage().newIdentityMsg(formerIdentity, identity);
-                Server.announce(updatedId);
+                return DONE;
             }
-        }
+            // NOT IN USE SO UPDATE THE NAME
+            // First Make integer available for other new guests, or the lease on a chosen name
+            Server.makeIdAvailable(formerIdentity);
+            Server.cluster.getRegistry().release(formerIdentity, serial);
+            identity = newIdentityReq;
+
+            // ALSO UPDATE CHAT-ROOM LIST, then keep their rooms and bans and tell everyone
+            CompletableFuture<?> renamed = currentRoomId == null ? DONE
+                    : Server.cluster.rename(currentRoomId, this, newIdentityReq);
+            return renamed.thenRun(() -> Server.cluster.identityChanged(formerIdentity, newIdentityReq));
+        });
     }
 
-    private void quitRequest() throws IOException {
-        if (identity.matches("guest\\d{1,3}")) {
-            String digit = identity.replaceAll("[A-Za-z]", "");
-            Integer availableId = Integer.parseInt(digit);
-            Server.makeIdAvailable(availableId);
+    // Queued after their other room commands, never waited on since it may be called on an EventLoop
+    private CompletableFuture<Void> quitRequest() {
+        CompletableFuture<Void> quitting = new CompletableFuture<>();
+        if (!quit.compareAndSet(null, quitting)) {
+            return quit.get();
         }
-        // Remove from current room
-        currentRoom.removeUser(identity);
-
-        // Send room change message, new room is an empty string
-        String roomChangeMsg = new ServerMessage().roomChangeMsg(identity, currentRoom.getRoomId(), "");
-        currentRoom.broadcastToRoom(roomChangeMsg);
-
-        // If they are the owner of any rooms, set the owner to be an empty string
-        removeAnyRoomOwnerships(identity);
-
-        Server.decreaseGuestCount();
-        // Send room change message back to client so it can quit
-        String singleRoomChangeMessage = new ServerMessage().roomChangeMsg(identity, "", "");
-        getOutput().writeUTF(singleRoomChangeMessage);
-        getOutput().flush();
-    }
-
-    private void kickRequest(String roomId, String userToKick, long banTime) throws IOException {
-        ChatRoom chatRoom = Server.getRoom(roomId);
-        if (chatRoom != null) {
-            if ((!chatRoom.getRoomId().equals("MainHall")) && chatRoom.getOwner().equals(identity)) {
-
-                long currentTime = System.currentTimeMillis() / 1000; //seconds
-
-                Ban ban = new Ban(currentTime, banTime, roomId, userToKick);
-                ClientConnection usersThread = Server.getUserThread(userToKick);
-                Server.addBannedUser(usersThread, ban);
-
-                if (usersThread != null) {
-                    usersThread.joinRoom("MainHall");
+        then(() -> {
+            String from = currentRoomId;
+            leftRoom();
+            Server.makeIdAvailable(identity);
+            Server.cluster.getRegistry().release(identity, serial);
+
+            // Remove from current room, which is then told they went to ""
+            CompletableFuture<?> left = from == null ? DONE
+                    : Server.cluster.leave(from, this, identity, "", false);
+            return left.thenRun(() -> {
+                // If they are the owner of any rooms, set the owner to be an empty string
+                Server.cluster.ownerGone(identity, true);
+
+                // Free the identity for someone else
+                Server.identities.remove(identity, ClientConnection.this);
+                Server.cluster.unregister(ClientConnection.this);
+
+                // Send room change message back to client so it can quit
+                try {
+                    send(new ServerMessage().roomChangeMsg(identity, "", ""));
+                } catch (IOException e) {
+                    System.out.println("Error sending the quit reply to " + identity);
+                    e.printStackTrace();
                 }
-
-            }
-        }
-
+            });
+        }).whenComplete((done, e) -> quitting.complete(null));
+        return quitting;
     }
 
-
 }
-
@@ -0,0 +1,664 @@
+/******************************************************************************
+ * The Servers working together as one chat service. Each room is hosted by
+ * one node, picked by a consistent HashRing of the nodes, and a client can be
+ * connected to any node. Requests about a room are sent to its home node over
+ * a NodeLink and run there by the RoomHost, and anything the room sends to a
+ * client of another node is forwarded back to that node to be written.
+ *
+ * Nodes find each other from a list of peers given at startup, every node a
+ * peer knows of is connected to in turn. When a node joins, the rooms whose
+ * home it now is are moved to it along with their members and bans. A node
+ * shutting down moves its rooms to their new homes first, while the rooms of
+ * a node that is lost are lost with it and their members go back to MainHall.
+ * With a Backplane, a room's broadcasts reach each other node with clients
+ * in it just once, instead of once for each of those clients.
+ * Identities are leased from their home node by the IdentityRegistry, so a
+ * name is only ever held by one client of the cluster.
+ *
+ * A Server started without a cluster port is a cluster of one, and every
+ * request is run by the local RoomHost without leaving the process.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class Cluster {
+
+    private static final long SHUTDOWN_WAIT = 2000;
+
+    private final String self;
+    private final HashRing ring = new HashRing();
+    private final RoomHost host = new RoomHost(this);
+    private final IdentityRegistry registry = new IdentityRegistry(this);
+    private final ConcurrentHashMap<String, NodeLink> links = new ConcurrentHashMap<>();
+
+    // Carries broadcasts to the other nodes once per node instead of once per member, if there is one
+    private volatile Backplane backplane;
+    private volatile Subscriptions subscriptions;
+
+    // This node's clients by serial, and the stand-ins for other nodes' clients by node and serial
+    private final ConcurrentHashMap<Long, ClientConnection> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RemoteClient> proxies = new ConcurrentHashMap<>();
+
+    public Cluster(String self) {
+        this.self = self;
+        ring.add(self);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public IdentityRegistry getRegistry() {
+        return registry;
+    }
+
+    // Publishes broadcasts through the backplane from now on, this node hears announcements
+    // and whatever is sent to its own clients from the start
+    public void useBackplane(Backplane backplane) {
+        this.subscriptions = new Subscriptions(backplane);
+        this.backplane = backplane;
+        CompletableFuture.allOf(backplane.subscribe(Backplane.EVERYONE),
+                backplane.subscribe(Backplane.NODE + self)).join();
+    }
+
+    // The backplane, null if there is none or it has been lost
+    public Backplane getBackplane() {
+        Backplane current = backplane;
+        return current != null && current.isConnected() ? current : null;
+    }
+
+    // Called before a client of this node enters the room, completes once its broadcasts will arrive
+    public CompletableFuture<Void> subscribe(String roomId) {
+        if (getBackplane() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return subscriptions.acquire(Backplane.roomTopic(roomId));
+    }
+
+    // Called once a client of this node has left the room
+    public void unsubscribe(String roomId) {
+        Subscriptions current = subscriptions;
+        if (current != null) {
+            current.release(Backplane.roomTopic(roomId));
+        }
+    }
+
+    // Sends the message to the recipients on other nodes through the backplane, or every
+    // client of every other node if recipients is null
+    public void publish(String topic, ServerMessage message, List<ClientConnection> recipients) {
+        Backplane current = getBackplane();
+        if (current == null) {
+            return;
+        }
+        String[] nodes = null;
+        long[] serials = null;
+        if (recipients != null) {
+            nodes = new String[recipients.size()];
+            serials = new long[recipients.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = recipients.get(i).getNode();
+                serials[i] = recipients.get(i).serial;
+            }
+        }
+        current.publish(topic, message, nodes, serials);
+    }
+
+    // Listens for other nodes on the port and connects to each of the peers, given as host:port
+    public void start(int port, List<String> peers) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        System.out.println("Node " + self + " is listening for nodes on port " + port);
+
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    NodeLink link = new NodeLink(this, socket, false);
+                    link.start();
+                    link.send(hello());
+                } catch (IOException e) {
+                    System.out.println("Error accepting a node connection");
+                    e.printStackTrace();
+                }
+            }
+        }, "node-acceptor");
+        acceptor.start();
+
+        // Know the cluster before leasing any names, so they are leased from their real homes
+        ArrayList<NodeLink> seeds = new ArrayList<>();
+        for (String peer : peers) {
+            NodeLink link = connect(peer);
+            if (link != null) {
+                seeds.add(link);
+            }
+        }
+        for (NodeLink link : seeds) {
+            link.awaitHello(SHUTDOWN_WAIT);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "node-shutdown"));
+    }
+
+    public void register(ClientConnection client) {
+        clients.put(client.serial, client);
+    }
+
+    public void unregister(ClientConnection client) {
+        clients.remove(client.serial, client);
+    }
+
+    public String homeOf(String roomId) {
+        String home = ring.nodeFor(roomId);
+        return home != null ? home : self;
+    }
+
+    public boolean isHome(String roomId) {
+        return homeOf(roomId).equals(self);
+    }
+
+    public NodeLink link(String node) {
+        return node == null ? null : links.get(node);
+    }
+
+    //  REQUESTS FROM THIS NODE'S CLIENTS, EACH RUN BY THE HOME OF ITS ROOM
+
+    public CompletableFuture<NodeMessage> canJoin(String roomId, String identity) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.CAN_JOIN);
+        request.roomId = roomId;
+        request.identity = identity;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> leave(String roomId, ClientConnection client, String identity,
+                                                String to, boolean announce) {
+        NodeMessage request = about(NodeMessage.Type.LEAVE, roomId, client);
+        request.identity = identity;
+        request.other = to;
+        request.ok = announce;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> enter(String roomId, ClientConnection client, String identity, String former) {
+        NodeMessage request = about(NodeMessage.Type.ENTER, roomId, client);
+        request.identity = identity;
+        request.other = former;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> chat(String roomId, ClientConnection client, String identity, String content) {
+        NodeMessage request = about(NodeMessage.Type.CHAT, roomId, client);
+        request.identity = identity;
+        request.content = content;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> who(String roomId, ClientConnection client) {
+        return route(about(NodeMessage.Type.WHO, roomId, client));
+    }
+
+    public CompletableFuture<NodeMessage> search(String roomId, ClientConnection client, String terms) {
+        NodeMessage request = about(NodeMessage.Type.SEARCH, roomId, client);
+        request.content = terms;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> resync(String roomId, ClientConnection client, long from) {
+        NodeMessage request = about(NodeMessage.Type.RESYNC, roomId, client);
+        request.time = from;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> create(String roomId, String owner) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.CREATE);
+        request.roomId = roomId;
+        request.identity = owner;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> delete(String roomId, String identity) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.DELETE);
+        request.roomId = roomId;
+        request.identity = identity;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> kick(String roomId, String identity, String userToKick, long time) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.KICK);
+        request.roomId = roomId;
+        request.identity = identity;
+        request.other = userToKick;
+        request.time = time;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> rename(String roomId, ClientConnection client, String identity) {
+        NodeMessage request = about(NodeMessage.Type.RENAME, roomId, client);
+        request.other = identity;
+        return route(request);
+    }
+
+    public CompletableFuture<NodeMessage> isMember(String roomId, ClientConnection client) {
+        return route(about(NodeMessage.Type.IS_MEMBER, roomId, client));
+    }
+
+    // Sends the client every room in the cluster, gathered from each node's own rooms
+    public CompletableFuture<Void> list(ClientConnection client) {
+        if (links.isEmpty()) {
+            try {
+                client.sendShared(Server.rooms.roomList());
+            } catch (IOException e) {
+                System.out.println("Error sending the room list to " + client.getIdentity());
+                e.printStackTrace();
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ArrayList<CompletableFuture<NodeMessage>> replies = new ArrayList<>();
+        replies.add(host.handle(new NodeMessage(NodeMessage.Type.LIST)));
+        for (NodeLink link : links.values()) {
+            NodeMessage request = new NodeMessage(NodeMessage.Type.LIST);
+            replies.add(link.call(request).exceptionally(e -> request.reply(false)));
+        }
+
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenAccept(done -> {
+            LinkedHashMap<String, Integer> rooms = new LinkedHashMap<>();
+            rooms.put(RoomDirectory.MAIN_HALL, 0);
+            for (CompletableFuture<NodeMessage> reply : replies) {
+                NodeMessage part = reply.join();
+                for (int i = 0; part.names != null && i < part.names.length; i++) {
+                    rooms.put(part.names[i], (int) part.numbers[i]);
+                }
+            }
+            String[] roomIds = new String[rooms.size()];
+            int[] counts = new int[rooms.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> room : rooms.entrySet()) {
+                roomIds[i] = room.getKey();
+                counts[i++] = room.getValue();
+            }
+            try {
+                client.send(new ServerMessage().roomListMsg(roomIds, counts));
+            } catch (IOException e) {
+                System.out.println("Error sending the room list to " + client.getIdentity());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // A client has a new identity: their rooms and bans follow them, and everyone is told
+    public void identityChanged(String former, String identity) {
+        NodeMessage changed = new NodeMessage(NodeMessage.Type.IDENTITY_CHANGED);
+        changed.identity = former;
+        changed.other = identity;
+        broadcast(changed);
+        renamed(former, identity, true);
+    }
+
+    // The identity has quit, any rooms they own are left without an owner
+    public void ownerGone(String identity, boolean everywhere) {
+        if (everywhere) {
+            NodeMessage gone = new NodeMessage(NodeMessage.Type.OWNER_GONE);
+            gone.identity = identity;
+            broadcast(gone);
+        }
+        for (ChatRoom room : Server.rooms.ownedBy(identity)) {
+            Server.rooms.setOwner(room, "");
+            room.submit(owned -> {
+                if (owned.isEmpty()) {
+                    Server.deleteRoom(owned.getRoomId());
+                }
+            });
+        }
+    }
+
+    //  CALLED BY THE ROOMHOST
+
+    // The member a request is about: the client itself if they are on this node, otherwise their
+    // stand-in, which is kept while they are in one of this node's rooms if register is set
+    ClientConnection member(String node, long client, String identity, boolean register) {
+        if (node == null || node.equals(self)) {
+            return clients.get(client);
+        }
+        String key = node + "/" + client;
+        RemoteClient proxy = register
+                ? proxies.computeIfAbsent(key, k -> new RemoteClient(node, client, identity))
+                : proxies.get(key);
+        if (proxy == null) {
+            proxy = new RemoteClient(node, client, identity);
+        }
+        if (identity != null) {
+            proxy.identity = identity;
+        }
+        return proxy;
+    }
+
+    void dropProxy(ClientConnection member) {
+        if (member instanceof RemoteClient) {
+            proxies.remove(member.getNode() + "/" + member.serial, member);
+        }
+    }
+
+    // Sends the request to the room's home, returns null if that is no longer connected
+    CompletableFuture<NodeMessage> forward(NodeMessage request) {
+        NodeLink link = links.get(homeOf(request.roomId));
+        if (link == null) {
+            return null;
+        }
+        request.hops++;
+        return link.call(request).exceptionally(e -> request.reply(false));
+    }
+
+    void deliver(String node, long client, ServerMessage message) {
+        Backplane current = getBackplane();
+        if (current != null) {
+            current.publish(Backplane.NODE + node, message, new String[] {node}, new long[] {client});
+            return;
+        }
+        NodeLink link = links.get(node);
+        if (link != null) {
+            NodeMessage deliver = new NodeMessage(NodeMessage.Type.DELIVER);
+            deliver.client = client;
+            deliver.message = message;
+            link.send(deliver);
+        }
+    }
+
+    void evicted(String node, long client, String roomId) {
+        NodeLink link = links.get(node);
+        if (link != null) {
+            NodeMessage evicted = new NodeMessage(NodeMessage.Type.EVICTED);
+            evicted.client = client;
+            evicted.roomId = roomId;
+            link.send(evicted);
+        }
+    }
+
+    //  CALLED BY THE BACKPLANE
+
+    // Sends a message another node published to the clients of this node it is for
+    void published(String topic, ServerMessage message, String[] nodes, long[] serials) {
+        try {
+            if (serials == null) {
+                for (ClientConnection client : Server.identities.connections()) {
+                    client.sendShared(message);
+                }
+                return;
+            }
+            for (int i = 0; i < serials.length; i++) {
+                ClientConnection client = self.equals(nodes[i]) ? clients.get(serials[i]) : null;
+                if (client != null) {
+                    client.sendShared(message);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error delivering a message published on " + topic);
+            e.printStackTrace();
+        } finally {
+            message.release();
+        }
+    }
+
+    //  CALLED BY THE NODELINKS
+
+    void received(NodeLink link, NodeMessage message) {
+        switch (message.type) {
+
+            case HELLO:
+                joined(link, message);
+                break;
+
+            case LEAVING:
+                System.out.println("Node " + message.node + " is leaving");
+                ring.remove(message.node);
+                registry.renewAll();
+                break;
+
+            case CLAIM:
+            case RELEASE:
+            case RENEW:
+                link.send(leaseRequest(message));
+                break;
+
+            case IDENTITY_CHANGED:
+                // With a backplane the node the client is on announces it to everyone
+                renamed(message.identity, message.other, getBackplane() == null);
+                break;
+
+            case OWNER_GONE:
+                ownerGone(message.identity, false);
+                break;
+
+            case DELIVER:
+                ClientConnection client = clients.get(message.client);
+                if (client != null) {
+                    try {
+                        client.send(message.message);
+                    } catch (IOException e) {
+                        System.out.println("Error delivering to " + client.getIdentity());
+                        e.printStackTrace();
+                    }
+                }
+                break;
+
+            case EVICTED:
+                ClientConnection evicted = clients.get(message.client);
+                if (evicted != null) {
+                    evicted.evicted(message.roomId);
+                }
+                break;
+
+            case BAN:
+                Server.bans.restore(new Ban(message.time, message.duration, message.roomId, message.identity));
+                break;
+
+            case ROOM_STATE:
+                host.received(message);
+                break;
+
+            default:
+                // A room request, replied to once its home has run it
+                host.handle(message).whenComplete((reply, e) -> {
+                    if (e != null) {
+                        System.out.println("Error handling " + message + " from " + link.getPeer());
+                        e.printStackTrace();
+                        reply = message.reply(false);
+                    }
+                    link.send(reply);
+                });
+                break;
+        }
+    }
+
+    void linkClosed(NodeLink link) {
+        String peer = link.getPeer();
+        if (peer == null || !links.remove(peer, link)) {
+            return;
+        }
+        System.out.println("Lost node " + peer);
+        ring.remove(peer);
+
+        // Their clients are gone, and so are the rooms this node's clients had on it
+        ArrayList<RemoteClient> gone = new ArrayList<>();
+        for (RemoteClient proxy : proxies.values()) {
+            if (proxy.getNode().equals(peer)) {
+                proxies.remove(proxy.getNode() + "/" + proxy.serial, proxy);
+                gone.add(proxy);
+            }
+        }
+        host.nodeLost(gone);
+        for (ClientConnection client : clients.values()) {
+            client.recheckRoom();
+        }
+        registry.nodeLost(peer);
+        registry.renewAll();
+        rebalance();
+    }
+
+    //  MEMBERSHIP
+
+    private NodeLink connect(String node) {
+        String[] address = node.split(":");
+        try {
+            Socket socket = new Socket(address[0], Integer.parseInt(address[1]));
+            NodeLink link = new NodeLink(this, socket, true);
+            link.start();
+            link.send(hello());
+            return link;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not connect to node " + node);
+            return null;
+        }
+    }
+
+    private NodeMessage hello() {
+        NodeMessage hello = new NodeMessage(NodeMessage.Type.HELLO);
+        hello.node = self;
+        hello.nodes = ring.nodes().toArray(new String[0]);
+        registry.held(hello);
+        return hello;
+    }
+
+    // Two nodes that connect to each other at once keep the link opened by the lower node id
+    private void joined(NodeLink link, NodeMessage hello) {
+        String peer = hello.node;
+        if (peer.equals(self)) {
+            link.close();
+            return;
+        }
+        NodeLink existing = links.putIfAbsent(peer, link);
+        if (existing != null && existing != link) {
+            String opener = link.isOutbound() ? self : peer;
+            boolean keepNew = opener.equals(self.compareTo(peer) < 0 ? self : peer);
+            if (!keepNew || !links.replace(peer, existing, link)) {
+                link.close();
+                return;
+            }
+            existing.close();
+        }
+        if (existing == null) {
+            System.out.println("Node " + peer + " joined");
+            ring.add(peer);
+            registry.adopt(hello);
+            registry.renewAll();
+            rebalance();
+        }
+
+        // Connect to any node the peer knows of that this one does not
+        for (String node : hello.nodes) {
+            if (!node.equals(self) && !links.containsKey(node)) {
+                connect(node);
+            }
+        }
+    }
+
+    // Moves every room whose home is now another node to it
+    private ArrayList<CompletableFuture<Void>> rebalance() {
+        ArrayList<CompletableFuture<Void>> moves = new ArrayList<>();
+        for (ChatRoom room : Server.rooms.list()) {
+            if (!isHome(room.getRoomId())) {
+                moves.add(host.transfer(room));
+            }
+        }
+        return moves;
+    }
+
+    private void renamed(String former, String identity, boolean announce) {
+        Server.rooms.transferOwnership(former, identity);
+        Server.bans.rename(former, identity);
+        if (!announce) {
+            return;
+        }
+        try {
+            Server.announce(new ServerMessage().newIdentityMsg(former, identity));
+        } catch (IOException e) {
+            System.out.println("Error announcing the new identity " + identity);
+            e.printStackTrace();
+        }
+    }
+
+    // Hands this node's rooms over to the rest of the cluster before the process exits
+    private void shutdown() {
+        if (links.isEmpty()) {
+            return;
+        }
+        NodeMessage leaving = new NodeMessage(NodeMessage.Type.LEAVING);
+        leaving.node = self;
+        broadcast(leaving);
+        ring.remove(self);
+
+        try {
+            CompletableFuture.allOf(rebalance().toArray(new CompletableFuture<?>[0]))
+                    .get(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.out.println("Could not hand over every room before shutting down");
+        }
+        for (NodeLink link : links.values()) {
+            link.closeAndWait(SHUTDOWN_WAIT);
+        }
+    }
+
+    private void broadcast(NodeMessage message) {
+        for (NodeLink link : links.values()) {
+            link.send(message);
+        }
+    }
+
+    private NodeMessage about(NodeMessage.Type type, String roomId, ClientConnection client) {
+        NodeMessage request = new NodeMessage(type);
+        request.roomId = roomId;
+        request.node = client.getNode();
+        request.client = client.serial;
+        return request;
+    }
+
+    // Runs a lease request for a name this node is home to
+    private NodeMessage leaseRequest(NodeMessage request) {
+        switch (request.type) {
+            case CLAIM:
+                return request.reply(registry.grant(request.identity, request.node, request.client));
+            case RELEASE:
+                registry.revoke(request.identity, request.node, request.client);
+                return request.reply(true);
+            default:
+                return registry.renewed(request);
+        }
+    }
+
+    // Runs the request on the room's home, a node that cannot be reached answers no
+    private CompletableFuture<NodeMessage> route(NodeMessage request) {
+        return route(request.roomId, request);
+    }
+
+    // Runs the request on the home of the room or name, a node that cannot be reached answers no
+    CompletableFuture<NodeMessage> route(String key, NodeMessage request) {
+        NodeLink link = links.get(homeOf(key));
+        if (link == null) {
+            switch (request.type) {
+                case CLAIM:
+                case RELEASE:
+                case RENEW:
+                    return CompletableFuture.completedFuture(leaseRequest(request));
+                default:
+                    return host.handle(request);
+            }
+        }
+        return link.call(request).exceptionally(e -> {
+            System.out.println("No reply from " + link.getPeer() + " to " + request);
+            return request.reply(false);
+        });
+    }
+
+}
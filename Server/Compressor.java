@@ -0,0 +1,97 @@
+/******************************************************************************
+ * Deflates the frames sent to one client that negotiated compression. A
+ * single deflate context lives for the whole connection, so the repeated keys
+ * and identities of earlier messages make later ones cheaper, and each frame
+ * is flushed on its own so the Client never waits on a partial message.
+ *
+ * Once compression is on every frame becomes a record: a PLAIN byte and the
+ * frame unchanged, for frames under the threshold, or a DEFLATED byte, a
+ * varint length and the deflated bytes of exactly one frame.
+ *
+ * Frames must be wrapped in the order they go on the wire.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+public class Compressor {
+
+    public static final int PLAIN = 0;
+    public static final int DEFLATED = 1;
+
+    // Room for the record marker and the longest varint length ahead of the deflated bytes
+    private static final int HEADER = 6;
+
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private Deflater deflater;
+    private final int threshold;
+
+    public Compressor(int level, int threshold) {
+        this.deflater = new Deflater(level, true);
+        this.threshold = threshold;
+    }
+
+    // Replaces frame with its record, taking over the caller's reference
+    public Frame wrap(Frame frame) {
+        if (deflater == null) {
+            return frame;   // connection is closed, nothing will be read
+        }
+        byte[] bytes = scratch.get();
+
+        if (frame.length() < threshold) {
+            bytes = ensure(bytes, frame.length() + 1);
+            bytes[0] = PLAIN;
+            System.arraycopy(frame.array(), 0, bytes, 1, frame.length());
+            Frame record = Frame.copyOf(bytes, 0, frame.length() + 1, null);
+            frame.release();
+            return record;
+        }
+
+        deflater.setInput(frame.array(), 0, frame.length());
+        int pos = HEADER;
+        while (true) {
+            bytes = ensure(bytes, pos + 64);
+            int written = deflater.deflate(bytes, pos, bytes.length - pos, Deflater.SYNC_FLUSH);
+            pos += written;
+            if (pos < bytes.length) {
+                break;   // the flush fit, all input is consumed
+            }
+        }
+        frame.release();
+
+        // Marker and length go right before the deflated bytes, copied out from there
+        int length = pos - HEADER;
+        int start = HEADER - 1 - BinaryCodec.varintSize(length);
+        int p = start;
+        bytes[p++] = DEFLATED;
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            bytes[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[p] = (byte) value;
+        return Frame.copyOf(bytes, start, pos - start, null);
+    }
+
+    // Frees the native deflate state, later frames are passed through untouched
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    private static byte[] ensure(byte[] bytes, int size) {
+        if (bytes.length < size) {
+            bytes = Arrays.copyOf(bytes, Math.max(size, bytes.length * 2));
+            scratch.set(bytes);
+        }
+        return bytes;
+    }
+
+}
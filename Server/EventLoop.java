@@ -0,0 +1,302 @@
+/******************************************************************************
+ * A single selector thread that services many non-blocking client channels.
+ * The Server starts a small, fixed number of these when running in NIO mode
+ * and hands each accepted SocketChannel to one of them.
+ *
+ * Frames on the wire are identical to DataOutputStream.writeUTF, a 2 byte
+ * unsigned length followed by modified UTF-8, so unmodified Clients work.
+ * Each connection reads into a small buffer that only grows, up to MAX_FRAME,
+ * while a larger frame is arriving and goes back to its small size once it is
+ * empty, so idle connections hold next to nothing.
+ * Frames queued for a connection are sent with one gathering write of up to
+ * maxBatch buffers, optionally lingering so that bursts coalesce. A client
+ * that falls Server.outboxCapacity frames behind is disconnected, as it would
+ * in blocking mode.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop extends Thread {
+
+    // Largest frame writeUTF can produce, including its length prefix
+    protected static final int MAX_FRAME = 65535 + 2;
+    // Enough for the frames of ordinary chat
+    protected static final int INITIAL_READ = 1024;
+
+    private Selector selector;
+    private ConcurrentLinkedQueue<ClientConnection> registrations = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<ClientConnection> writeRequests = new ConcurrentLinkedQueue<>();
+
+    // Connections holding back their writes until their linger deadline, oldest first
+    private ArrayDeque<ClientConnection> lingering = new ArrayDeque<>();
+    private ByteBuffer[] gather;
+    private long lingerMillis;
+
+    // Requests are handled before the next frame is decoded, so one is enough per loop
+    private Request request = new Request();
+
+    public EventLoop(String name, int maxBatch, long lingerMillis) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.gather = new ByteBuffer[Math.max(1, maxBatch)];
+        this.lingerMillis = lingerMillis;
+    }
+
+    // Called from the accept thread, the channel is registered on the next wakeup
+    public void register(ClientConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    // Called from any thread, the connection is closed once what is queued for it has been written
+    public void closeWhenDrained(ClientConnection connection) {
+        connection.closeAfterWrite = true;
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    // Called from any thread, takes over the caller's reference to the frame
+    public void enqueue(ClientConnection connection, Frame frame) {
+        int capacity = Server.outboxCapacity;
+        if (connection.pendingCount.incrementAndGet() > capacity && capacity > 0) {
+            frame.release();
+            connection.tooSlow = true;
+        } else {
+            connection.pendingWrites.add(frame);
+        }
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (lingering.isEmpty()) {
+                    selector.select();
+                } else {
+                    long wait = lingering.peek().writeDeadline - System.currentTimeMillis();
+                    selector.select(Math.max(1, wait));
+                }
+                registerPending();
+                requestWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(key, connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key, connection);
+                        }
+                    } catch (IOException e) {
+                        close(key, connection);
+                    } catch (RuntimeException e) {
+                        // A bug or a request nothing expected, only this connection is given up on
+                        System.out.println("Error serving client " + connection.getIdentity());
+                        e.printStackTrace();
+                        close(key, connection);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error in event loop " + getName());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerPending() {
+        ClientConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                connection.channel.configureBlocking(false);
+                connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                System.out.println("Error registering client " + connection.getIdentity());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void requestWrites() {
+        ClientConnection connection;
+        while ((connection = writeRequests.poll()) != null) {
+            if (connection.tooSlow) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    System.out.println("Client " + connection.getIdentity() + " too slow to keep up, closing its connection");
+                    close(key, connection);
+                }
+                continue;
+            }
+            if (lingerMillis == 0 || connection.closeAfterWrite) {
+                enableWrite(connection);
+            } else if (connection.writeDeadline == 0) {
+                connection.writeDeadline = System.currentTimeMillis() + lingerMillis;
+                lingering.add(connection);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        while (!lingering.isEmpty() && lingering.peek().writeDeadline <= now) {
+            connection = lingering.poll();
+            connection.writeDeadline = 0;
+            enableWrite(connection);
+        }
+    }
+
+    private void enableWrite(ClientConnection connection) {
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read(SelectionKey key, ClientConnection connection) throws IOException {
+        ByteBuffer buffer = connection.readBuffer;
+        int read = connection.channel.read(buffer);
+        if (read == -1) {
+            close(key, connection);
+            return;
+        }
+
+        buffer.flip();
+        int needed = 0;     // bytes of the frame that has only partly arrived, if it is known
+        while (true) {
+            // Checked per frame, a hello switches the protocol for the frames after it
+            if (connection.protocol == Protocol.BINARY) {
+                int length = BinaryCodec.peekVarint(buffer);
+                if (length < 0) {
+                    break;
+                }
+                int header = BinaryCodec.varintSize(length);
+                if (header + length > MAX_FRAME) {
+                    throw new IOException("Request frame too large: " + length);
+                }
+                if (buffer.remaining() < header + length) {
+                    needed = header + length;
+                    break;
+                }
+                buffer.position(buffer.position() + header);
+                BinaryCodec.decodeRequest(buffer, length, request);
+            } else {
+                int header = connection.protocol == Protocol.LONG_JSON ? 4 : 2;
+                if (buffer.remaining() < header) {
+                    break;
+                }
+                int length = header == 4
+                        ? buffer.getInt(buffer.position())
+                        : buffer.getShort(buffer.position()) & 0xFFFF;
+                if (length < 0 || header + length > MAX_FRAME) {
+                    throw new IOException("Request frame too large: " + length);
+                }
+                if (buffer.remaining() < header + length) {
+                    needed = header + length;
+                    break;
+                }
+                JsonCodec.decode(buffer.array(), buffer.arrayOffset() + buffer.position() + header, length, request);
+                buffer.position(buffer.position() + header + length);
+            }
+            System.out.println(request);
+            if (connection.isHandshake(request)) {
+                continue;
+            }
+            if (!connection.processMessage(request)) {
+                // Nothing more is read, the connection closes once the quit reply is out
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                connection.quit.get().whenComplete((done, e) -> closeWhenDrained(connection));
+                break;
+            }
+        }
+        buffer.compact();
+        connection.readBuffer = fit(buffer, needed);
+    }
+
+    // Grows the buffer to hold a frame bigger than it, or shrinks it back once it is empty
+    private static ByteBuffer fit(ByteBuffer buffer, int needed) {
+        if (needed > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_FRAME, Math.max(needed, buffer.capacity() * 2)));
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+        if (buffer.position() == 0 && buffer.capacity() > INITIAL_READ) {
+            return ByteBuffer.allocate(INITIAL_READ);
+        }
+        return buffer;
+    }
+
+    private void write(SelectionKey key, ClientConnection connection) throws IOException {
+        while (true) {
+            // Gather the head of the queue, resuming a partly written frame first
+            int count = 0;
+            Iterator<Frame> frames = connection.pendingWrites.iterator();
+            while (count < gather.length && frames.hasNext()) {
+                Frame frame = frames.next();
+                gather[count] = (count == 0 && connection.writeCursor != null)
+                        ? connection.writeCursor : frame.buffer();
+                count++;
+            }
+            if (count == 0) {
+                break;
+            }
+
+            connection.channel.write(gather, 0, count);
+
+            int written = 0;
+            while (written < count && !gather[written].hasRemaining()) {
+                connection.pendingWrites.poll().release();
+                connection.pendingCount.decrementAndGet();
+                written++;
+            }
+            connection.writeCursor = written < count ? gather[written] : null;
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+            if (connection.writeCursor != null) {
+                return;   // socket buffer is full, wait for the next OP_WRITE
+            }
+        }
+        if (connection.closeAfterWrite) {
+            close(key, connection);
+        } else {
+            key.interestOps(connection.quit.get() == null ? SelectionKey.OP_READ : 0);
+        }
+    }
+
+    private void close(SelectionKey key, ClientConnection connection) {
+        key.cancel();
+        try {
+            connection.channel.close();
+            // A client that dropped the connection is still taken out of its room, its
+            // frames are freed once nothing more can be queued for it
+            connection.disconnect().whenComplete((done, e) -> {
+                connection.endCompression();
+                Frame frame;
+                while ((frame = connection.pendingWrites.poll()) != null) {
+                    frame.release();
+                }
+            });
+            System.out.println("Client " + connection.getIdentity() + " terminated connection");
+        } catch (IOException e) {
+            System.out.println("Error closing channel on disconnection");
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/******************************************************************************
+ * An encoded message ready to go on the wire: for JSON the same 2 byte length
+ * and modified UTF-8 bytes that DataOutputStream.writeUTF would produce, for
+ * LONG_JSON a 4 byte length instead, for BINARY a varint length and a
+ * BinaryCodec payload.
+ *
+ * A broadcast is encoded into one Frame and that same buffer is written to
+ * every recipient. Frames are reference counted, each queued copy holds a
+ * reference and the backing array goes back to a pool once all are released.
+ *
+ * E.g Frame frame = Frame.encode(message);
+ *     for each client: client.send(frame);   // retains
+ *     frame.release();                       // drop the encoder's reference
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Frame {
+
+    // Backing arrays are pooled by size, the rare larger LONG_JSON or BINARY frame is not pooled
+    private static final int[] SIZE_CLASSES = {128, 512, 2048, 8192, EventLoop.MAX_FRAME};
+    private static final int MAX_POOLED_PER_CLASS = 1024;
+    private static final List<ConcurrentLinkedQueue<byte[]>> pools = new ArrayList<>(SIZE_CLASSES.length);
+    private static final AtomicInteger[] pooledCounts = new AtomicInteger[SIZE_CLASSES.length];
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            pools.add(new ConcurrentLinkedQueue<>());
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private final byte[] bytes;
+    private final int length;
+    private final int[] interned;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Frame(byte[] bytes, int length, int[] interned) {
+        this.bytes = bytes;
+        this.length = length;
+        this.interned = interned;
+    }
+
+    // Copies an already framed message into a pooled array, the caller owns one reference
+    public static Frame copyOf(byte[] source, int offset, int length, int[] interned) {
+        byte[] bytes = borrow(length);
+        System.arraycopy(source, offset, bytes, 0, length);
+        return new Frame(bytes, length, interned);
+    }
+
+    // Encodes the message exactly as writeUTF does, the caller owns one reference
+    public static Frame encode(String message) throws UTFDataFormatException {
+        int utfLength = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                utfLength++;
+            } else if (c > 0x07FF) {
+                utfLength += 3;
+            } else {
+                utfLength += 2;
+            }
+        }
+        if (utfLength > 65535) {
+            throw new UTFDataFormatException("encoded string too long: " + utfLength + " bytes");
+        }
+
+        byte[] bytes = borrow(utfLength + 2);
+        int pos = 0;
+        bytes[pos++] = (byte) (utfLength >>> 8);
+        bytes[pos++] = (byte) utfLength;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[pos++] = (byte) c;
+            } else if (c > 0x07FF) {
+                bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return new Frame(bytes, pos, null);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // BinaryCodec name ids this frame refers to, null for JSON frames
+    public int[] interned() {
+        return interned;
+    }
+
+    public Frame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            giveBack(bytes);
+        }
+    }
+
+    // A read-only view with its own position, so each channel can write the shared bytes
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes, 0, length).asReadOnlyBuffer();
+    }
+
+    // The backing array, valid up to length(), for codecs that read the frame in place
+    byte[] array() {
+        return bytes;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    private static byte[] borrow(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                byte[] pooled = pools.get(i).poll();
+                if (pooled != null) {
+                    pooledCounts[i].decrementAndGet();
+                    return pooled;
+                }
+                return new byte[SIZE_CLASSES[i]];
+            }
+        }
+        return new byte[size];
+    }
+
+    private static void giveBack(byte[] bytes) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (bytes.length == SIZE_CLASSES[i]) {
+                if (pooledCounts[i].incrementAndGet() <= MAX_POOLED_PER_CLASS) {
+                    pools.get(i).add(bytes);
+                } else {
+                    pooledCounts[i].decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/******************************************************************************
+ * Hands out guest numbers from the blocks of them this node has leased from
+ * the IdentityRegistry, so guests on different nodes never share a name. The
+ * lowest free number is taken from a GuestIds bitmap of this node's own ids,
+ * and the id's place in the bitmap says which leased block and which number
+ * within it the guest gets.
+ *
+ * The next block is leased as soon as a guest is given a number from the last
+ * one held, so accepting a client only waits on another node when guests
+ * arrive faster than a block can be leased. A node not in a cluster leases
+ * blocks 0, 1, 2 and so on from itself, and its guests are numbered just as
+ * they were before blocks.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class GuestBlocks {
+
+    private static final int BLOCK = IdentityRegistry.BLOCK;
+    private static final int MAX_BLOCKS = 1 << 16;
+    private static final int MAX_ATTEMPTS = 64;
+
+    private final GuestIds ids = new GuestIds();
+
+    // Leased blocks in the order they were leased, each stored plus one so that 0 is unset
+    private final AtomicIntegerArray blocks = new AtomicIntegerArray(MAX_BLOCKS);
+    private final AtomicInteger held = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Integer> indexOf = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private CompletableFuture<Void> leasing;
+    private int nextBlock = 0;
+
+    public int allocate() {
+        int id = ids.allocate();
+        int index = (id - 1) / BLOCK;
+        if (index + 1 >= held.get()) {
+            fetch();
+        }
+        for (int attempt = 0; blocks.get(index) == 0 && attempt < MAX_ATTEMPTS; attempt++) {
+            // Only when guests came faster than blocks could be leased
+            fetch().join();
+        }
+        int block = blocks.get(index) - 1;
+        if (block < 0) {
+            ids.release(id);
+            throw new IllegalStateException("Could not lease a block of guest ids");
+        }
+        return block * BLOCK + (id - 1) % BLOCK + 1;
+    }
+
+    // Freeing a number from a block this node does not hold does nothing
+    public void release(int number) {
+        Integer index = indexOf.get((number - 1) / BLOCK);
+        if (number > 0 && index != null) {
+            ids.release(index * BLOCK + (number - 1) % BLOCK + 1);
+        }
+    }
+
+    // Whether the number is from one of this node's blocks
+    public boolean holds(int number) {
+        return number > 0 && indexOf.containsKey((number - 1) / BLOCK);
+    }
+
+    // Leases one more block, or completes with the lease already under way
+    public synchronized CompletableFuture<Void> fetch() {
+        if (leasing == null || leasing.isDone()) {
+            leasing = lease(MAX_ATTEMPTS);
+        }
+        return leasing;
+    }
+
+    // Tries the lowest block not yet tried, and the one after it if another node holds it
+    private CompletableFuture<Void> lease(int attempts) {
+        int block;
+        synchronized (this) {
+            block = nextBlock++;
+        }
+        IdentityRegistry registry = Server.cluster.getRegistry();
+        return registry.claim(IdentityRegistry.BLOCK_PREFIX + block, 0).thenCompose(ok -> {
+            if (ok) {
+                int index = held.get();
+                indexOf.put(block, index);
+                blocks.set(index, block + 1);
+                held.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            if (attempts <= 1) {
+                System.out.println("Could not lease a block of guest ids");
+                return CompletableFuture.completedFuture(null);
+            }
+            return lease(attempts - 1);
+        });
+    }
+
+}
@@ -0,0 +1,118 @@
+/******************************************************************************
+ * Hands out the numbers in guest identities, always the lowest one not in
+ * use, starting from guest1. Ids live in a bitmap of longs that is claimed
+ * and freed with compare-and-swap, so a storm of accepts never blocks on a
+ * lock and no id is ever boxed.
+ *
+ * The bitmap grows a chunk of 65536 ids at a time. A hint records the first
+ * word that may still have a free bit, so allocation does not rescan the
+ * full words in front of it. Every release bumps the hint's version, so an
+ * allocation that raced a release never moves the hint past the freed id.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class GuestIds {
+
+    public static final String PREFIX = "guest";
+
+    private static final int WORDS_PER_CHUNK = 1024;
+    private static final int MAX_CHUNKS = 1 << 14;
+
+    private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    // High 32 bits count releases, low 32 bits are the first word that may have a free id
+    private final AtomicLong hint = new AtomicLong();
+
+    public GuestIds() {
+        chunk(0).set(0, 1L);   // there is no guest0
+    }
+
+    public int allocate() {
+        while (true) {
+            long observed = hint.get();
+            int start = (int) observed;
+            for (int word = start; ; word++) {
+                AtomicLongArray chunk = chunk(word / WORDS_PER_CHUNK);
+                int i = word % WORDS_PER_CHUNK;
+                long bits = chunk.get(i);
+                while (bits != -1L) {
+                    long free = Long.lowestOneBit(~bits);
+                    if (chunk.compareAndSet(i, bits, bits | free)) {
+                        if (word > start) {
+                            // Only moves if nothing was released meanwhile
+                            hint.compareAndSet(observed, (observed & 0xFFFFFFFF00000000L) | word);
+                        }
+                        return word * 64 + Long.numberOfTrailingZeros(free);
+                    }
+                    bits = chunk.get(i);
+                }
+            }
+        }
+    }
+
+    // Freeing an id that is not allocated does nothing
+    public void release(int id) {
+        if (id <= 0 || id / 64 / WORDS_PER_CHUNK >= MAX_CHUNKS) {
+            return;
+        }
+        int word = id / 64;
+        AtomicLongArray chunk = chunks.get(word / WORDS_PER_CHUNK);
+        if (chunk == null) {
+            return;
+        }
+        int i = word % WORDS_PER_CHUNK;
+        long mask = 1L << (id % 64);
+        long bits = chunk.get(i);
+        while ((bits & mask) != 0 && !chunk.compareAndSet(i, bits, bits & ~mask)) {
+            bits = chunk.get(i);
+        }
+
+        long observed;
+        long lowered;
+        do {
+            observed = hint.get();
+            long version = (observed >>> 32) + 1;
+            lowered = (version << 32) | Math.min((int) observed, word);
+        } while (!hint.compareAndSet(observed, lowered));
+    }
+
+    // The id in a guest identity such as guest12, -1 if it is not one
+    public static int parse(String identity) {
+        if (identity == null || !identity.startsWith(PREFIX)) {
+            return -1;
+        }
+        int length = identity.length() - PREFIX.length();
+        if (length < 1 || length > 9 || identity.charAt(PREFIX.length()) == '0') {
+            return -1;
+        }
+        int id = 0;
+        for (int i = PREFIX.length(); i < identity.length(); i++) {
+            char c = identity.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    private AtomicLongArray chunk(int index) {
+        if (index >= MAX_CHUNKS) {
+            throw new IllegalStateException("Out of guest ids");
+        }
+        AtomicLongArray chunk = chunks.get(index);
+        if (chunk == null) {
+            chunks.compareAndSet(index, null, new AtomicLongArray(WORDS_PER_CHUNK));
+            chunk = chunks.get(index);
+        }
+        return chunk;
+    }
+
+}
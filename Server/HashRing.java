@@ -0,0 +1,87 @@
+/******************************************************************************
+ * A consistent hash ring that decides which node of a cluster is home to each
+ * room. Every node is placed on the ring at VIRTUAL_NODES points and a room
+ * belongs to the first node point at or after its own hash, so when a node
+ * joins or leaves only the rooms next to its points change home.
+ *
+ * The ring is replaced rather than changed, lookups read whichever copy is
+ * current without locking.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class HashRing {
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private volatile TreeMap<Long, String> points = new TreeMap<>();
+    private volatile TreeSet<String> nodes = new TreeSet<>();
+
+    public synchronized void add(String node) {
+        if (nodes.contains(node)) {
+            return;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(points);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            next.put(hash(node + "#" + i), node);
+        }
+        TreeSet<String> nextNodes = new TreeSet<>(nodes);
+        nextNodes.add(node);
+        points = next;
+        nodes = nextNodes;
+    }
+
+    public synchronized void remove(String node) {
+        if (!nodes.contains(node)) {
+            return;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(points);
+        next.values().removeIf(node::equals);
+        TreeSet<String> nextNodes = new TreeSet<>(nodes);
+        nextNodes.remove(node);
+        points = next;
+        nodes = nextNodes;
+    }
+
+    // The node that is home to this room, null if the ring is empty
+    public String nodeFor(String roomId) {
+        TreeMap<Long, String> current = points;
+        if (current.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = current.ceilingEntry(hash(roomId));
+        return point != null ? point.getValue() : current.firstEntry().getValue();
+    }
+
+    public List<String> nodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    // 64 bit FNV-1a with a final mix, so ids differing only in their last character still spread out
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
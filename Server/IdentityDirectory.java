@@ -0,0 +1,54 @@
+/******************************************************************************
+ * Every connected client, keyed by its exact identity. Lookups for kicks and
+ * direct messages are O(1), and an identity can only ever be held by one
+ * connection: registering or renaming claims the new name with a single
+ * putIfAbsent, so two clients asking for the same name at once cannot both
+ * get it.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class IdentityDirectory {
+
+    private final ConcurrentHashMap<String, ClientConnection> connections = new ConcurrentHashMap<>();
+
+    // Returns false if the identity is already held by another connection
+    public boolean register(String identity, ClientConnection connection) {
+        return connections.putIfAbsent(identity, connection) == null;
+    }
+
+    // Claims identity for the connection and only then releases former,
+    // returns false and changes nothing if identity is taken
+    public boolean rename(String former, String identity, ClientConnection connection) {
+        if (connections.putIfAbsent(identity, connection) != null) {
+            return false;
+        }
+        connections.remove(former, connection);
+        return true;
+    }
+
+    // Releases the identity if it still belongs to this connection
+    public void remove(String identity, ClientConnection connection) {
+        connections.remove(identity, connection);
+    }
+
+    // The connection holding exactly this identity, null if there is none
+    public ClientConnection get(String identity) {
+        return identity == null ? null : connections.get(identity);
+    }
+
+    public boolean contains(String identity) {
+        return identity != null && connections.containsKey(identity);
+    }
+
+    // A live view of every registered connection, safe to iterate while clients come and go
+    public Collection<ClientConnection> connections() {
+        return connections.values();
+    }
+
+}
@@ -0,0 +1,180 @@
+/******************************************************************************
+ * Makes identities unique across the whole cluster. Every name has a home
+ * node, picked by the same HashRing as rooms, and the home hands out leases
+ * on it: a client keeps a name by its node renewing the lease every RENEW
+ * milliseconds, and a lease not renewed for LEASE milliseconds, such as one
+ * held by a node that crashed, lapses and the name is free again.
+ *
+ * Guest identities are not leased one by one. Each node leases blocks of
+ * BLOCK guest numbers, under the names #block0, #block1 and so on, and gives
+ * out the numbers of its own blocks without asking anyone. A guest name from
+ * another node's block can not be taken with identitychange.
+ *
+ * A Server that is not in a cluster is home to every name, so its claims are
+ * answered straight away without a network round trip.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class IdentityRegistry {
+
+    public static final int BLOCK = 1024;
+    public static final String BLOCK_PREFIX = "#block";
+
+    private static final long LEASE = 30000;
+    private static final long RENEW = 10000;
+
+    private final Cluster cluster;
+
+    // Leases granted by this node on the names it is home to
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    // Names held by this node, with the serial of the client holding them or 0 for guest blocks
+    private final ConcurrentHashMap<String, Long> held = new ConcurrentHashMap<>();
+
+    public IdentityRegistry(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    // Renews every lease this node holds once every RENEW milliseconds on the given timer
+    public void start(ScheduledExecutorService timer) {
+        timer.scheduleAtFixedRate(this::renewAll, RENEW, RENEW, TimeUnit.MILLISECONDS);
+    }
+
+    //  HOLDING NAMES
+
+    // Claims the name for a client of this node, completes with false if someone else holds it
+    public CompletableFuture<Boolean> claim(String name, long client) {
+        NodeMessage request = new NodeMessage(NodeMessage.Type.CLAIM);
+        request.identity = name;
+        request.node = cluster.getSelf();
+        request.client = client;
+        return cluster.route(name, request).thenApply(reply -> {
+            if (reply.ok) {
+                held.put(name, client);
+            }
+            return reply.ok;
+        });
+    }
+
+    public void release(String name, long client) {
+        if (!held.remove(name, client)) {
+            return;
+        }
+        NodeMessage request = new NodeMessage(NodeMessage.Type.RELEASE);
+        request.identity = name;
+        request.node = cluster.getSelf();
+        request.client = client;
+        cluster.route(name, request);
+    }
+
+    public boolean holds(String name) {
+        return held.containsKey(name);
+    }
+
+    // Sends each home the names it should keep leased for this node
+    public void renewAll() {
+        HashMap<String, ArrayList<String>> byHome = new HashMap<>();
+        for (String name : held.keySet()) {
+            byHome.computeIfAbsent(cluster.homeOf(name), home -> new ArrayList<>()).add(name);
+        }
+        for (Map.Entry<String, ArrayList<String>> home : byHome.entrySet()) {
+            NodeMessage renew = new NodeMessage(NodeMessage.Type.RENEW);
+            renew.node = cluster.getSelf();
+            fill(renew, home.getValue());
+            cluster.route(home.getValue().get(0), renew).thenAccept(reply -> {
+                for (int i = 0; reply.names != null && i < reply.names.length; i++) {
+                    System.out.println("Lease on " + reply.names[i] + " is held by another node");
+                }
+            });
+        }
+    }
+
+    // Lists every name this node holds in the message, so a node it greets knows of them at once
+    public void held(NodeMessage hello) {
+        fill(hello, new ArrayList<>(held.keySet()));
+    }
+
+    private void fill(NodeMessage message, ArrayList<String> names) {
+        message.names = new String[names.size()];
+        message.numbers = new long[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            Long client = held.get(names.get(i));
+            message.names[i] = names.get(i);
+            message.numbers[i] = client != null ? client : 0;
+        }
+    }
+
+    //  GRANTING LEASES, ON THE NAME'S HOME
+
+    // Takes on the leases a node that has just joined holds on names this node is now home to
+    public void adopt(NodeMessage hello) {
+        for (int i = 0; i < hello.names.length; i++) {
+            if (cluster.isHome(hello.names[i]) && !grant(hello.names[i], hello.node, hello.numbers[i])) {
+                System.out.println("Lease on " + hello.names[i] + " is held by another node");
+            }
+        }
+    }
+
+    // Grants the lease unless another client holds a lease on the name that has not lapsed
+    public boolean grant(String name, String node, long client) {
+        long now = System.currentTimeMillis();
+        Lease granted = leases.compute(name, (n, lease) -> {
+            if (lease == null || lease.expires < now || lease.isHeldBy(node, client)) {
+                return new Lease(node, client, now + LEASE);
+            }
+            return lease;
+        });
+        return granted.isHeldBy(node, client);
+    }
+
+    public void revoke(String name, String node, long client) {
+        leases.computeIfPresent(name, (n, lease) -> lease.isHeldBy(node, client) ? null : lease);
+    }
+
+    // Renews or grants each name, and replies with the ones another client holds
+    public NodeMessage renewed(NodeMessage renew) {
+        ArrayList<String> conflicts = new ArrayList<>();
+        for (int i = 0; i < renew.names.length; i++) {
+            if (!grant(renew.names[i], renew.node, renew.numbers[i])) {
+                conflicts.add(renew.names[i]);
+            }
+        }
+        NodeMessage reply = renew.reply(conflicts.isEmpty());
+        reply.names = conflicts.toArray(new String[0]);
+        return reply;
+    }
+
+    // The node's leases lapse now instead of once they run out
+    public void nodeLost(String node) {
+        leases.values().removeIf(lease -> lease.node.equals(node));
+    }
+
+    private static class Lease {
+
+        final String node;
+        final long client;
+        final long expires;
+
+        Lease(String node, long client, long expires) {
+            this.node = node;
+            this.client = client;
+            this.expires = expires;
+        }
+
+        boolean isHeldBy(String node, long client) {
+            return this.node.equals(node) && this.client == client;
+        }
+    }
+
+}
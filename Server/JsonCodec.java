@@ -0,0 +1,598 @@
+/******************************************************************************
+ * A streaming codec for the fixed JSON chat schema, used in place of
+ * json-simple on the Server. Requests are decoded straight from the frame's
+ * modified UTF-8 bytes into a reusable Request, matching keys and the type
+ * without building any intermediate objects. Replies are written directly
+ * into a Frame with the same bytes writeUTF would have produced, or behind a 4
+ * byte length for LONG_JSON clients.
+ *
+ * Characters outside the Basic Multilingual Plane are written as escaped
+ * surrogate pairs, so the text is valid UTF-8 as well as modified UTF-8 and
+ * either framing can carry it.
+ *
+ * Unknown keys are skipped, so clients may send extra fields.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class JsonCodec {
+
+    private static final byte[] TYPE = ascii("type");
+    private static final byte[] ROOM_ID = ascii("roomid");
+    private static final byte[] IDENTITY = ascii("identity");
+    private static final byte[] CONTENT = ascii("content");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] SEQ = ascii("seq");
+    private static final byte[] PROTOCOLS = ascii("protocols");
+    private static final byte[] BINARY = ascii("binary");
+    private static final byte[] LONG_JSON = ascii("longjson");
+    private static final byte[] COMPRESSION = ascii("compression");
+    private static final byte[] DEFLATE = ascii("deflate");
+    private static final byte[] FEATURES = ascii("features");
+    private static final byte[] ROOM_SYNC = ascii("roomsync");
+
+    // Wire names of the request types, in the same order as TYPES
+    private static final byte[][] TYPE_NAMES = {
+            ascii("message"), ascii("join"), ascii("who"), ascii("list"), ascii("createroom"),
+            ascii("delete"), ascii("kick"), ascii("identitychange"), ascii("quit"), ascii("hello"),
+            ascii("search"), ascii("resync")
+    };
+    private static final Request.Type[] TYPES = {
+            Request.Type.MESSAGE, Request.Type.JOIN, Request.Type.WHO, Request.Type.LIST,
+            Request.Type.CREATE_ROOM, Request.Type.DELETE, Request.Type.KICK,
+            Request.Type.IDENTITY_CHANGE, Request.Type.QUIT, Request.Type.HELLO, Request.Type.SEARCH,
+            Request.Type.RESYNC
+    };
+
+    private static final ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(Decoder::new);
+    private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+    // Reads one writeUTF frame, or int length framed one when long, from a blocking stream
+    public static void readRequest(DataInputStream in, Request request, boolean longFrame) throws IOException {
+        Decoder decoder = decoders.get();
+        int length = longFrame ? in.readInt() : in.readUnsignedShort();
+        if (length < 0 || length > EventLoop.MAX_FRAME) {
+            throw new IOException("Request frame too large: " + length);
+        }
+        byte[] bytes = decoder.scratch(length);
+        in.readFully(bytes, 0, length);
+        decoder.decode(bytes, 0, length, request);
+    }
+
+    // Decodes the modified UTF-8 body of a frame, without its length prefix
+    public static void decode(byte[] bytes, int offset, int length, Request request) throws IOException {
+        decoders.get().decode(bytes, offset, length, request);
+    }
+
+    // Room events carry their seq only when numbered, for clients that asked for it in hello
+    public static Frame encode(ServerMessage message, boolean longFrame, boolean numbered) throws IOException {
+        Encoder e = encoders.get();
+        e.reset();
+        long seq = numbered ? message.seq : 0;
+
+        e.begin(message.type);
+        switch (message.type) {
+            case "message":
+                e.field("identity", message.identity);
+                e.field("content", message.content);
+                e.field("roomid", message.roomId);
+                e.seq(seq);
+                break;
+
+            case "newidentity":
+                e.field("former", message.former);
+                e.field("identity", message.identity);
+                break;
+
+            case "roomchange":
+                e.field("identity", message.identity);
+                e.field("former", message.former);
+                e.field("roomid", message.roomId);
+                e.seq(seq);
+                break;
+
+            case "roomsync":
+                e.field("roomid", message.roomId);
+                e.seq(seq);
+                break;
+
+            case "roomcontents":
+                e.field("roomid", message.roomId);
+                e.key("identities");
+                e.raw('[');
+                for (int i = message.from; i < message.to; i++) {
+                    if (i > message.from) {
+                        e.raw(',');
+                    }
+                    e.string(message.identities[i]);
+                }
+                e.raw(']');
+                e.field("owner", message.owner);
+                break;
+
+            case "roomlist":
+                e.key("rooms");
+                e.raw('[');
+                for (int i = message.from; i < message.to; i++) {
+                    if (i > message.from) {
+                        e.raw(',');
+                    }
+                    e.raw('{');
+                    e.ascii("\"roomid\":");
+                    e.string(message.roomIds[i]);
+                    e.ascii(",\"count\":");
+                    e.ascii(Integer.toString(message.counts[i]));
+                    e.raw('}');
+                }
+                e.raw(']');
+                break;
+
+            case "searchresults":
+                e.field("roomid", message.roomId);
+                e.key("results");
+                e.raw('[');
+                for (int i = message.from; i < message.to; i++) {
+                    if (i > message.from) {
+                        e.raw(',');
+                    }
+                    e.raw('{');
+                    e.ascii("\"identity\":");
+                    e.string(message.identities[i]);
+                    e.ascii(",\"content\":");
+                    e.string(message.contents[i]);
+                    e.ascii(",\"time\":");
+                    e.ascii(Long.toString(message.times[i]));
+                    e.raw('}');
+                }
+                e.raw(']');
+                break;
+
+            case "hello":
+                e.field("protocol", message.protocol);
+                if (message.compression != null) {
+                    e.field("compression", message.compression);
+                }
+                break;
+
+            default:
+                throw new IOException("No JSON encoding for " + message.type);
+        }
+        if (message.more) {
+            e.key("more");
+            e.ascii("true");
+        }
+        e.raw('}');
+        return e.toFrame(longFrame);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static class Decoder {
+
+        private byte[] bytes;
+        private int pos;
+        private int end;
+        private byte[] scratch = new byte[1024];
+        private StringBuilder chars = new StringBuilder();
+
+        byte[] scratch(int length) {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            return scratch;
+        }
+
+        void decode(byte[] bytes, int offset, int length, Request request) throws IOException {
+            this.bytes = bytes;
+            this.pos = offset;
+            this.end = offset + length;
+            request.clear();
+
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                expect('"');
+                int keyStart = pos;
+                while (next() != '"') {
+                    // keys in this schema never contain escapes
+                }
+                int keyEnd = pos - 1;
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                if (matches(keyStart, keyEnd, TYPE)) {
+                    request.type = readType();
+                } else if (matches(keyStart, keyEnd, ROOM_ID)) {
+                    request.roomId = readString();
+                } else if (matches(keyStart, keyEnd, IDENTITY)) {
+                    request.identity = readString();
+                } else if (matches(keyStart, keyEnd, CONTENT)) {
+                    request.content = readString();
+                } else if (matches(keyStart, keyEnd, TIME)) {
+                    request.time = readLong();
+                } else if (matches(keyStart, keyEnd, SEQ)) {
+                    request.seq = readLong();
+                } else if (matches(keyStart, keyEnd, PROTOCOLS)) {
+                    readOffered(request);
+                } else if (matches(keyStart, keyEnd, COMPRESSION)) {
+                    readOffered(request);
+                } else if (matches(keyStart, keyEnd, FEATURES)) {
+                    readOffered(request);
+                } else {
+                    skipValue();
+                }
+
+                skipWhitespace();
+                byte c = next();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw malformed();
+                }
+            }
+        }
+
+        private Request.Type readType() throws IOException {
+            expect('"');
+            int start = pos;
+            while (peek() != '"') {
+                if (next() == '\\') {
+                    throw malformed();
+                }
+            }
+            int stop = pos;
+            pos++;
+            for (int i = 0; i < TYPE_NAMES.length; i++) {
+                if (matches(start, stop, TYPE_NAMES[i])) {
+                    return TYPES[i];
+                }
+            }
+            return Request.Type.UNKNOWN;
+        }
+
+        private String readString() throws IOException {
+            if (peek() == 'n') {
+                skipValue();
+                return null;
+            }
+            expect('"');
+
+            // Plain ASCII without escapes is by far the common case
+            int start = pos;
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b == '"') {
+                    pos++;
+                    return new String(bytes, start, pos - 1 - start, StandardCharsets.ISO_8859_1);
+                }
+                if (b == '\\' || b < 0) {
+                    break;
+                }
+                pos++;
+            }
+
+            chars.setLength(0);
+            for (int i = start; i < pos; i++) {
+                chars.append((char) bytes[i]);
+            }
+            while (true) {
+                int b = next() & 0xFF;
+                if (b == '"') {
+                    return chars.toString();
+                } else if (b == '\\') {
+                    chars.append(readEscape());
+                } else if (b < 0x80) {
+                    chars.append((char) b);
+                } else if ((b & 0xE0) == 0xC0) {
+                    chars.append((char) (((b & 0x1F) << 6) | (next() & 0x3F)));
+                } else if ((b & 0xF0) == 0xE0) {
+                    int b2 = next() & 0x3F;
+                    int b3 = next() & 0x3F;
+                    chars.append((char) (((b & 0x0F) << 12) | (b2 << 6) | b3));
+                } else if ((b & 0xF8) == 0xF0) {
+                    // Plain UTF-8 from a LONG_JSON client, outside the BMP
+                    int b2 = next() & 0x3F;
+                    int b3 = next() & 0x3F;
+                    int b4 = next() & 0x3F;
+                    chars.appendCodePoint(((b & 0x07) << 18) | (b2 << 12) | (b3 << 6) | b4);
+                } else {
+                    throw malformed();
+                }
+            }
+        }
+
+        private char readEscape() throws IOException {
+            byte c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    return (char) c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw malformed();
+                        }
+                        value = (value << 4) | digit;
+                    }
+                    return (char) value;
+                default:
+                    throw malformed();
+            }
+        }
+
+        // Kick times arrive as strings from the Client but plain numbers are accepted too
+        private long readLong() throws IOException {
+            boolean quoted = peek() == '"';
+            if (quoted) {
+                pos++;
+            }
+            boolean negative = peek() == '-';
+            if (negative) {
+                pos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                value = value * 10 + (bytes[pos++] - '0');
+                digits++;
+            }
+            if (digits == 0) {
+                throw malformed();
+            }
+            if (quoted) {
+                expect('"');
+            }
+            return negative ? -value : value;
+        }
+
+        private void readOffered(Request request) throws IOException {
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() == '"') {
+                    int start = pos + 1;
+                    skipValue();
+                    request.offersBinary |= matches(start, pos - 1, BINARY);
+                    request.offersLongJson |= matches(start, pos - 1, LONG_JSON);
+                    request.offersDeflate |= matches(start, pos - 1, DEFLATE);
+                    request.offersRoomSync |= matches(start, pos - 1, ROOM_SYNC);
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+                byte c = next();
+                if (c == ']') {
+                    return;
+                }
+                if (c != ',') {
+                    throw malformed();
+                }
+            }
+        }
+
+        private void skipValue() throws IOException {
+            byte c = peek();
+            if (c == '"') {
+                pos++;
+                while (true) {
+                    byte b = next();
+                    if (b == '\\') {
+                        next();
+                    } else if (b == '"') {
+                        return;
+                    }
+                }
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    byte b = peek();
+                    if (b == '"') {
+                        skipValue();
+                        continue;
+                    }
+                    pos++;
+                    if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            } else {
+                // number, true, false or null
+                while (pos < end && bytes[pos] != ',' && bytes[pos] != '}' && bytes[pos] != ']'
+                        && bytes[pos] > ' ') {
+                    pos++;
+                }
+            }
+        }
+
+        private boolean matches(int start, int stop, byte[] expected) {
+            if (stop - start != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (bytes[start + i] != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && bytes[pos] <= ' ' && bytes[pos] >= 0) {
+                pos++;
+            }
+        }
+
+        private void expect(char c) throws IOException {
+            if (next() != c) {
+                throw malformed();
+            }
+        }
+
+        private byte peek() throws IOException {
+            if (pos >= end) {
+                throw malformed();
+            }
+            return bytes[pos];
+        }
+
+        private byte next() throws IOException {
+            if (pos >= end) {
+                throw malformed();
+            }
+            return bytes[pos++];
+        }
+
+        private IOException malformed() {
+            return new IOException("Malformed JSON request at byte " + pos);
+        }
+    }
+
+    // Reusable per-thread scratch space, a frame is only copied out once it is complete
+    private static class Encoder {
+
+        private byte[] bytes = new byte[1024];
+        private int pos;
+
+        void reset() {
+            pos = 4;   // the length goes in front once the size is known
+        }
+
+        void begin(String type) {
+            raw('{');
+            ascii("\"type\":\"");
+            ascii(type);
+            raw('"');
+        }
+
+        // Every field follows the type, so each is preceded by a comma
+        void key(String name) {
+            raw(',');
+            raw('"');
+            ascii(name);
+            ascii("\":");
+        }
+
+        void field(String name, String value) {
+            key(name);
+            string(value);
+        }
+
+        // Room events carry their number, when they have one
+        void seq(long seq) {
+            if (seq > 0) {
+                key("seq");
+                ascii(Long.toString(seq));
+            }
+        }
+
+        void string(String value) {
+            if (value == null) {
+                ascii("null");
+                return;
+            }
+            // Worst case is a six byte escape for every char, plus the quotes
+            ensure(value.length() * 6 + 2);
+            bytes[pos++] = '"';
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    bytes[pos++] = '\\';
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x20 || Character.isSurrogate(c)) {
+                    String hex = Integer.toHexString(c);
+                    bytes[pos++] = '\\';
+                    bytes[pos++] = 'u';
+                    for (int pad = hex.length(); pad < 4; pad++) {
+                        bytes[pos++] = '0';
+                    }
+                    for (int h = 0; h < hex.length(); h++) {
+                        bytes[pos++] = (byte) hex.charAt(h);
+                    }
+                } else if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else {
+                    bytes[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                    bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            bytes[pos++] = '"';
+        }
+
+        void ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bytes[pos++] = (byte) s.charAt(i);
+            }
+        }
+
+        void raw(char c) {
+            ensure(1);
+            bytes[pos++] = (byte) c;
+        }
+
+        Frame toFrame(boolean longFrame) throws UTFDataFormatException {
+            int length = pos - 4;
+            if (longFrame) {
+                bytes[0] = (byte) (length >>> 24);
+                bytes[1] = (byte) (length >>> 16);
+                bytes[2] = (byte) (length >>> 8);
+                bytes[3] = (byte) length;
+                return Frame.copyOf(bytes, 0, pos, null);
+            }
+            if (length > 65535) {
+                throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+            }
+            bytes[2] = (byte) (length >>> 8);
+            bytes[3] = (byte) length;
+            return Frame.copyOf(bytes, 2, pos - 2, null);
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, pos + extra));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/******************************************************************************
+ * A bounded queue of requests read from a single client, consumed by that
+ * client's ReadWrite processor. The consumer parks until a request arrives
+ * and then drains a batch of them, so idle connections use no CPU.
+ *
+ * When the mailbox is full the Overflow policy decides whether the reader
+ * waits (pushing back on the client over TCP) or a request is dropped. Only
+ * requests the droppable test allows are ever dropped, the others wait for
+ * room as under BLOCK, and whatever is dropped or refused is handed to
+ * discard so it can be recycled. put tells the caller when something was
+ * dropped, so a client is never left thinking it was handled.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class Mailbox<T> {
+
+    public enum Overflow {
+        BLOCK,          // reader waits until the processor makes room
+        DROP_NEWEST,    // the incoming request is discarded
+        DROP_OLDEST     // the oldest queued request is discarded
+    }
+
+    private final ArrayDeque<T> requests;
+    private final int capacity;
+    private final Overflow overflow;
+    private final Predicate<T> droppable;
+    private final Consumer<T> discard;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+
+    public Mailbox(int capacity, Overflow overflow, Predicate<T> droppable, Consumer<T> discard) {
+        this.capacity = Math.max(1, capacity);
+        this.overflow = overflow;
+        this.droppable = droppable;
+        this.discard = discard;
+        this.requests = new ArrayDeque<>(this.capacity);
+    }
+
+    // Returns false if this or an older request was dropped, or the mailbox is closed
+    public boolean put(T request) throws InterruptedException {
+        boolean dropped = false;
+        lock.lock();
+        try {
+            while (requests.size() >= capacity && !closed) {
+                if (overflow == Overflow.DROP_NEWEST && droppable.test(request)) {
+                    discard.accept(request);
+                    return false;
+                } else if (overflow == Overflow.DROP_OLDEST && dropOldest()) {
+                    dropped = true;
+                } else {
+                    notFull.await();
+                }
+            }
+            if (closed) {
+                discard.accept(request);
+                return false;
+            }
+            requests.add(request);
+            notEmpty.signal();
+            return !dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the oldest queued request that may be dropped, false if none may
+    private boolean dropOldest() {
+        Iterator<T> queued = requests.iterator();
+        while (queued.hasNext()) {
+            T oldest = queued.next();
+            if (droppable.test(oldest)) {
+                queued.remove();
+                discard.accept(oldest);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parks until at least one request is queued, then moves up to max of them into batch.
+    // Returns the number drained, or -1 once the mailbox is closed and empty.
+    public int drainTo(List<T> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (requests.isEmpty()) {
+                if (closed) {
+                    return -1;
+                }
+                notEmpty.await();
+            }
+            int drained = 0;
+            while (drained < max && !requests.isEmpty()) {
+                batch.add(requests.poll());
+                drained++;
+            }
+            notFull.signalAll();
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // No more requests will arrive, the consumer finishes what is queued and stops
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
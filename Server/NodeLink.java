@@ -0,0 +1,159 @@
+/******************************************************************************
+ * A TCP connection to another Server of the cluster. Messages are written
+ * through an Outbox on the Server's sender threads, so a shard forwarding a
+ * broadcast never waits on the network, and read by this link's own thread.
+ *
+ * A call sends a request and returns a future for its REPLY. Calls fail if no
+ * reply comes within CALL_TIMEOUT or the link is lost, so a client's room
+ * commands never wait on a dead node.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NodeLink implements Runnable {
+
+    private static final long CALL_TIMEOUT = 5000;
+
+    private final Cluster cluster;
+    private final Socket socket;
+    private final Outbox outbox;
+    private final ConcurrentHashMap<Integer, CompletableFuture<NodeMessage>> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCall = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    // Set from the peer's HELLO
+    private volatile String peer;
+    private final CompletableFuture<Void> greeted = new CompletableFuture<>();
+    private final boolean outbound;
+
+    public NodeLink(Cluster cluster, Socket socket, boolean outbound) throws IOException {
+        this.cluster = cluster;
+        this.socket = socket;
+        this.outbound = outbound;
+        this.outbox = new Outbox(socket, Server.senderPool, Server.maxBatch, 0, 0);
+        socket.setTcpNoDelay(true);
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    // Waits at most timeout milliseconds for the peer's HELLO to have been handled
+    public void awaitHello(long timeout) {
+        try {
+            greeted.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.out.println("No hello from a node within " + timeout + "ms");
+        }
+    }
+
+    // Whether this end opened the connection
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    public void start() {
+        Thread reader = new Thread(this, "node-link");
+        reader.start();
+    }
+
+    public void send(NodeMessage message) {
+        try {
+            outbox.send(message.encode());
+        } catch (IOException e) {
+            System.out.println("Error encoding a " + message.type + " for " + peer);
+            e.printStackTrace();
+        }
+    }
+
+    // Sends a request and completes with its reply
+    public CompletableFuture<NodeMessage> call(NodeMessage request) {
+        CompletableFuture<NodeMessage> reply = new CompletableFuture<>();
+        if (closed) {
+            reply.completeExceptionally(new IOException("Link to " + peer + " is closed"));
+            return reply;
+        }
+        int id;
+        do {
+            id = nextCall.incrementAndGet();
+        } while (id == 0);
+        int call = id;
+        request.call = call;
+        calls.put(call, reply);
+        send(request);
+        return reply.orTimeout(CALL_TIMEOUT, TimeUnit.MILLISECONDS)
+                .whenComplete((done, e) -> calls.remove(call));
+    }
+
+    @Override
+    public void run() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                NodeMessage message = NodeMessage.read(in);
+                boolean hello = message.type == NodeMessage.Type.HELLO && peer == null;
+                if (hello) {
+                    peer = message.node;
+                }
+                if (message.type == NodeMessage.Type.REPLY) {
+                    CompletableFuture<NodeMessage> reply = calls.remove(message.call);
+                    if (reply != null) {
+                        reply.complete(message);
+                    }
+                } else {
+                    cluster.received(this, message);
+                }
+                if (hello) {
+                    greeted.complete(null);
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            System.out.println("Node " + peer + " disconnected");
+        } catch (IOException e) {
+            System.out.println("Error reading from node " + peer);
+            e.printStackTrace();
+        } finally {
+            close();
+            cluster.linkClosed(this);
+        }
+    }
+
+    // Closes the link once everything queued has been written, waiting at most timeout milliseconds
+    public void closeAndWait(long timeout) {
+        close();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!socket.isClosed() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbox.closeWhenDrained();
+        for (CompletableFuture<NodeMessage> reply : calls.values()) {
+            reply.completeExceptionally(new IOException("Link to " + peer + " was lost"));
+        }
+        calls.clear();
+    }
+
+}
@@ -0,0 +1,293 @@
+/******************************************************************************
+ * A message between two Servers of a cluster, sent over a NodeLink. Requests
+ * for a room are sent to the node that is home to it, and carry a call number
+ * when the sender waits for the REPLY with the same number.
+ *
+ * A frame is a 4 byte length and then the type and every field in a fixed
+ * order, so both ends must run the same version of the Server. Only the
+ * fields the type uses are set, the rest are written as empty.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class NodeMessage {
+
+    public enum Type {
+        HELLO,              // node, nodes: the nodes the sender knows of, names and numbers: as in RENEW
+        LEAVING,            // node is shutting down and hands its rooms on first
+        REPLY,              // call, ok, message or names and numbers
+        CAN_JOIN,           // roomId, identity
+        LEAVE,              // roomId, node and client, identity, other: the room moved to, ok: announce
+        ENTER,              // roomId, node and client, identity, other: the former room, "" if not announced
+        CHAT,               // roomId, node and client, identity, content
+        WHO,                // roomId, node and client
+        SEARCH,             // roomId, node and client, content: the terms
+        RESYNC,             // roomId, node and client, time: the first room event wanted
+        LIST,               // no fields, replied with the rooms this node is home to
+        CREATE,             // roomId, identity: the owner
+        DELETE,             // roomId, identity: who asked
+        KICK,               // roomId, identity: who asked, other: the user kicked, time
+        RENAME,             // roomId, node and client, other: the new identity
+        IS_MEMBER,          // roomId, node and client
+        IDENTITY_CHANGED,   // identity: the former identity, other: the new one
+        OWNER_GONE,         // identity
+        DELIVER,            // client, message
+        EVICTED,            // client, roomId
+        BAN,                // roomId, identity, time: when banned, duration
+        ROOM_STATE,         // roomId, identity: the owner, names, numbers and nodes: the members, time: the next event
+        CLAIM,              // identity: the name, node and client, replied ok if leased to them
+        RELEASE,            // identity: the name, node and client
+        RENEW,              // node, names and numbers: the names and the clients holding them
+        SUBSCRIBE,          // roomId: the topic, replied once publishes on it will arrive
+        UNSUBSCRIBE,        // roomId: the topic
+        PUBLISH             // roomId: the topic, message, nodes and numbers: the clients it is for
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    Type type;
+    int call;                   // 0 when no reply is wanted
+    int hops;                   // times the request has been forwarded to a room's home
+    String node;
+    long client;                // a client's serial on its own node
+    String roomId;
+    String identity;
+    String other;
+    String content;
+    long time;
+    long duration;
+    boolean ok;
+    ServerMessage message;
+    String[] names;
+    long[] numbers;
+    String[] nodes;
+
+    public NodeMessage(Type type) {
+        this.type = type;
+    }
+
+    // A reply to this request, which must have been sent with a call number
+    public NodeMessage reply(boolean ok) {
+        NodeMessage reply = new NodeMessage(Type.REPLY);
+        reply.call = call;
+        reply.ok = ok;
+        return reply;
+    }
+
+    // A new frame with the 4 byte length and the message, the caller owns its reference
+    public Frame encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(type.ordinal());
+        out.writeInt(call);
+        out.writeByte(hops);
+        writeString(out, node);
+        out.writeLong(client);
+        writeString(out, roomId);
+        writeString(out, identity);
+        writeString(out, other);
+        writeString(out, content);
+        out.writeLong(time);
+        out.writeLong(duration);
+        out.writeBoolean(ok);
+        writeMessage(out, message);
+        writeStrings(out, names);
+        writeLongs(out, numbers);
+        writeStrings(out, nodes);
+        out.flush();
+
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return Frame.copyOf(frame, 0, frame.length, null);
+    }
+
+    // Reads one frame from a blocking stream
+    public static NodeMessage read(DataInputStream stream) throws IOException {
+        byte[] frame = readFrame(stream);
+        return decode(frame, 4, frame.length - 4);
+    }
+
+    // Reads one whole frame, its 4 byte length included, from a blocking stream
+    public static byte[] readFrame(DataInputStream stream) throws IOException {
+        int length = stream.readInt();
+        if (length < 0) {
+            throw new IOException("Malformed node frame length: " + length);
+        }
+        byte[] frame = new byte[length + 4];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        stream.readFully(frame, 4, length);
+        return frame;
+    }
+
+    public static NodeMessage decode(byte[] payload, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+
+        int type = in.readUnsignedByte();
+        if (type >= TYPES.length) {
+            throw new IOException("Unknown node message type " + type);
+        }
+        NodeMessage message = new NodeMessage(TYPES[type]);
+        message.call = in.readInt();
+        message.hops = in.readUnsignedByte();
+        message.node = readString(in);
+        message.client = in.readLong();
+        message.roomId = readString(in);
+        message.identity = readString(in);
+        message.other = readString(in);
+        message.content = readString(in);
+        message.time = in.readLong();
+        message.duration = in.readLong();
+        message.ok = in.readBoolean();
+        message.message = readMessage(in);
+        message.names = readStrings(in);
+        message.numbers = readLongs(in);
+        message.nodes = readStrings(in);
+        return message;
+    }
+
+    // Every field a client could be sent, lists are sent whole and split into parts by the receiver
+    private static void writeMessage(DataOutputStream out, ServerMessage message) throws IOException {
+        out.writeBoolean(message != null);
+        if (message == null) {
+            return;
+        }
+        writeString(out, message.type);
+        writeString(out, message.identity);
+        writeString(out, message.former);
+        writeString(out, message.roomId);
+        writeString(out, message.content);
+        writeString(out, message.owner);
+        writeStrings(out, message.identities);
+        writeStrings(out, message.roomIds);
+        if (message.counts == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(message.counts.length);
+            for (int count : message.counts) {
+                out.writeInt(count);
+            }
+        }
+        writeStrings(out, message.contents);
+        writeLongs(out, message.times);
+        out.writeLong(message.seq);
+    }
+
+    private static ServerMessage readMessage(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        ServerMessage message = new ServerMessage();
+        message.type = readString(in);
+        message.identity = readString(in);
+        message.former = readString(in);
+        message.roomId = readString(in);
+        message.content = readString(in);
+        message.owner = readString(in);
+        message.identities = readStrings(in);
+        message.roomIds = readStrings(in);
+        int counts = in.readInt();
+        if (counts >= 0) {
+            message.counts = new int[counts];
+            for (int i = 0; i < counts; i++) {
+                message.counts[i] = in.readInt();
+            }
+        }
+        message.contents = readStrings(in);
+        message.times = readLongs(in);
+        message.seq = in.readLong();
+        if (message.isPartitioned()) {
+            message.to = message.entries();
+        }
+        return message;
+    }
+
+    // Strings may be longer than writeUTF allows, and null
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        String[] strings = new String[length];
+        for (int i = 0; i < length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + (roomId != null ? " roomid=" + roomId : "");
+    }
+
+}
@@ -0,0 +1,153 @@
+/******************************************************************************
+ * The ordered write queue for a single blocking client connection. Anything
+ * sent to the client (replies, room broadcasts, announcements) is queued here
+ * and written out by one of the Server's shared sender threads.
+ *
+ * At most one sender drains a given Outbox at a time, so messages reach the
+ * client in the order they were sent and never interleave on the stream.
+ * Queued frames are coalesced, up to maxBatch of them go out in one write and
+ * one flush, and a sender can linger briefly so a burst shares a single write.
+ *
+ * A client's queue is bounded. One that falls capacity frames behind is too
+ * slow to keep up and is cut off, which also frees a sender blocked writing to
+ * it, so one stalled client cannot tie up the shared senders for long. Links
+ * between nodes pass a capacity of 0 and are never cut off.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Outbox implements Runnable {
+
+    // Large enough for a full batch of typical chat frames to leave in one write
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Socket socket;
+    private BufferedOutputStream out;
+    private ScheduledExecutorService senders;
+    private int maxBatch;
+    private long lingerMillis;
+    private ConcurrentLinkedQueue<Frame> messages = new ConcurrentLinkedQueue<>();
+    private int capacity;       // frames queued before the socket is closed, 0 for no limit
+    private AtomicInteger queued = new AtomicInteger();
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+
+    public Outbox(Socket socket, ScheduledExecutorService senders, int maxBatch, long lingerMillis,
+                  int capacity) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        this.senders = senders;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerMillis = lingerMillis;
+        this.capacity = capacity;
+    }
+
+    // Takes over the caller's reference to the frame
+    public void send(Frame frame) {
+        if (closing) {
+            frame.release();
+            return;
+        }
+        if (queued.incrementAndGet() > capacity && capacity > 0) {
+            frame.release();
+            abandon();
+            return;
+        }
+        messages.add(frame);
+        schedule();
+    }
+
+    // Writes out whatever is still queued and then closes the socket
+    public void closeWhenDrained() {
+        closing = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            if (lingerMillis > 0 && !closing) {
+                senders.schedule(this, lingerMillis, TimeUnit.MILLISECONDS);
+            } else {
+                senders.execute(this);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        do {
+            Frame frame;
+            int batched = 0;
+            try {
+                while ((frame = messages.poll()) != null) {
+                    queued.decrementAndGet();
+                    try {
+                        if (!closed) {
+                            frame.writeTo(out);
+                            batched++;
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                    if (batched == maxBatch) {
+                        out.flush();
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Error sending to client, dropping its queued messages");
+                closed = true;
+                while ((frame = messages.poll()) != null) {
+                    queued.decrementAndGet();
+                    frame.release();
+                }
+            }
+
+            if (closing && messages.isEmpty()) {
+                close();
+            }
+            scheduled.set(false);
+
+            // Something may have been queued after the last poll but before the flag was cleared
+        } while ((!messages.isEmpty() || (closing && !closed)) && scheduled.compareAndSet(false, true));
+    }
+
+    // Closing the socket fails any write blocked on it, the sender then drops what is queued
+    private void abandon() {
+        if (closing) {
+            return;
+        }
+        System.out.println("Client too slow to keep up, closing its connection");
+        closing = true;
+        close();
+        schedule();
+    }
+
+    private void close() {
+        if (!socket.isClosed()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing socket on disconnection");
+                e.printStackTrace();
+            }
+        }
+        closed = true;
+    }
+
+}
@@ -0,0 +1,25 @@
+/******************************************************************************
+ * The wire protocols a client connection can speak. Every connection starts
+ * on JSON, and switches only when the client asks for another protocol in a
+ * hello request and the Server allows it.
+ *
+ * LONG_JSON carries the same JSON text as JSON behind a 4 byte length instead
+ * of writeUTF's 2 byte one, so no single message is limited to 64KB.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+public enum Protocol {
+    JSON("json"),               // writeUTF framed JSON text, what every Client understands
+    LONG_JSON("longjson"),      // int length framed UTF-8 JSON text
+    BINARY("binary");           // varint framed BinaryCodec messages with interned names
+
+    // The name a client offers and the Server replies with in hello
+    public final String wireName;
+
+    Protocol(String wireName) {
+        this.wireName = wireName;
+    }
+}
@@ -0,0 +1,229 @@
+/******************************************************************************
+ * The last events of one room, its chat messages and room changes, kept in
+ * memory as the very ServerMessages that were broadcast, along with the
+ * frames they were encoded into. Someone joining is sent the chat among them
+ * by queueing those same frames again, so catching up is a straight buffer
+ * write with no encoding or disk read, and a member who missed some events
+ * is sent everything from the first one they missed the same way.
+ *
+ * Events are numbered from 1, and the numbering carries on when the ring is
+ * emptied. The ring has a fixed size, allocated when the room's first event
+ * is kept. Like the rest of its ChatRoom it is only touched on the room's
+ * shard, so there is a single writer and no lock. Each room keeps at most
+ * Server.recent events and Server.recentRoomBytes of frames, dropping the
+ * oldest first.
+ *
+ * Across all rooms at most Server.recentBytes are kept. Once a second the
+ * sweeper empties the rings of rooms that have been quiet for longer than
+ * Server.recentIdle seconds, and if that is still too much, those of the
+ * rooms least recently used until it is not. A room whose ring is emptied
+ * this way lets go of its log's mappings as well.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RecentMessages {
+
+    // Frames are counted as they are encoded, this is for the message itself
+    private static final int OVERHEAD = 64;
+
+    // Across every room
+    private static final AtomicLong totalBytes = new AtomicLong();
+    private static final Set<RecentMessages> holding = ConcurrentHashMap.newKeySet();
+
+    private final ChatRoom room;
+
+    // Null while empty. Event number n is in slot n % capacity.
+    private ServerMessage[] messages;
+    private long[] times;
+    private int[] sizes;
+    private long next = 1;      // number of the next event
+    private int count = 0;      // held, the ones numbered just before next
+
+    // Read by the sweeper
+    private volatile long bytes = 0;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    RecentMessages(ChatRoom room) {
+        this.room = room;
+    }
+
+    public static void start(ScheduledExecutorService timer) {
+        timer.scheduleAtFixedRate(RecentMessages::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Bytes held across every room, safe to call from any thread
+    public static long totalBytes() {
+        return totalBytes.get();
+    }
+
+    // Keeps the event numbered next that has just been broadcast, it is released once it is dropped
+    public void add(ServerMessage message) {
+        int capacity = Server.recent;
+        if (capacity <= 0) {
+            next++;
+            message.release();
+            // Nothing is kept, but the sweeper still lets go of the room's log once it is quiet
+            lastUsed = System.currentTimeMillis();
+            holding.add(this);
+            return;
+        }
+        if (messages == null) {
+            messages = new ServerMessage[capacity];
+            times = new long[capacity];
+            sizes = new int[capacity];
+            holding.add(this);
+        }
+        if (count == messages.length) {
+            dropOldest();
+        }
+        int slot = (int) (next % messages.length);
+        int size = message.encodedBytes() + OVERHEAD;
+        messages[slot] = message;
+        times[slot] = System.currentTimeMillis();
+        sizes[slot] = size;
+        next++;
+        count++;
+        bytes += size;
+        totalBytes.addAndGet(size);
+        lastUsed = times[slot];
+        trim();
+    }
+
+    // The number the room's next event will have
+    public long next() {
+        return next;
+    }
+
+    // Sends the member the last chat messages, only those said since the given time if it is
+    // not 0. Unless complete, returns false without sending anything if older ones were dropped
+    // that the member should have been sent.
+    public boolean replay(ClientConnection member, int last, long since, boolean complete) throws IOException {
+        if (last <= 0) {
+            return true;
+        }
+        // Back from the newest to the oldest chat message they are sent
+        int first = count;
+        int found = 0;
+        boolean reachedSince = false;
+        for (int i = count - 1; i >= 0 && found < last; i--) {
+            if (times[slot(i)] < since) {
+                reachedSince = true;
+                break;
+            }
+            if (isChat(messages[slot(i)])) {
+                first = i;
+                found++;
+            }
+        }
+        if (!complete && found < last && !reachedSince) {
+            return false;
+        }
+        for (int i = first; i < count; i++) {
+            if (isChat(messages[slot(i)])) {
+                send(member, slot(i));
+            }
+        }
+        lastUsed = System.currentTimeMillis();
+        trim();
+        return true;
+    }
+
+    // Sends the member every event numbered from on, returns false without sending
+    // anything if some of them are no longer held
+    public boolean replaySince(ClientConnection member, long from) throws IOException {
+        if (from < next - count || from > next) {
+            return false;
+        }
+        for (long number = from; number < next; number++) {
+            send(member, (int) (number % messages.length));
+        }
+        lastUsed = System.currentTimeMillis();
+        trim();
+        return true;
+    }
+
+    // Skips the numbering ahead, for a room that has moved here from another node
+    public void numberFrom(long number) {
+        if (number > next) {
+            clear();
+            next = number;
+        }
+    }
+
+    // Drops everything held, the numbering carries on
+    public void clear() {
+        while (count > 0) {
+            dropOldest();
+        }
+        messages = null;
+        times = null;
+        sizes = null;
+        holding.remove(this);
+    }
+
+    // Held event i, 0 being the oldest
+    private int slot(int i) {
+        return (int) ((next - count + i) % messages.length);
+    }
+
+    private static boolean isChat(ServerMessage message) {
+        return "message".equals(message.getType());
+    }
+
+    // Sends a held event, counting the frame if it had to be encoded for the member's protocol
+    private void send(ClientConnection member, int slot) throws IOException {
+        member.sendShared(messages[slot]);
+        int size = messages[slot].encodedBytes() + OVERHEAD;
+        bytes += size - sizes[slot];
+        totalBytes.addAndGet(size - sizes[slot]);
+        sizes[slot] = size;
+    }
+
+    // Drops the oldest while over the room's limit, always keeping the newest
+    private void trim() {
+        while (bytes > Server.recentRoomBytes && count > 1) {
+            dropOldest();
+        }
+    }
+
+    private void dropOldest() {
+        int slot = slot(0);
+        messages[slot].release();
+        messages[slot] = null;
+        bytes -= sizes[slot];
+        totalBytes.addAndGet(-sizes[slot]);
+        count--;
+    }
+
+    // Empties the rings of idle rooms, then of the least recently used while over the limit
+    private static void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            ArrayList<RecentMessages> rings = new ArrayList<>(holding);
+            rings.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+            long over = totalBytes.get() - Server.recentBytes;
+            for (RecentMessages ring : rings) {
+                if (now - ring.lastUsed < Server.recentIdle * 1000 && over <= 0) {
+                    break;
+                }
+                over -= ring.bytes;
+                ring.room.submit(r -> r.rest());
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error sweeping the rooms' recent events");
+            e.printStackTrace();
+        }
+    }
+
+}
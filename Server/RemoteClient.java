@@ -0,0 +1,44 @@
+/******************************************************************************
+ * Stands in for a client of another node while they are in a room this node
+ * is home to. The room treats it as any other member, and everything sent to
+ * it is forwarded to the client's own node to be encoded and written there.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+public class RemoteClient extends ClientConnection {
+
+    private final String node;
+
+    // The room they are in on this node, read when their node is lost
+    volatile ChatRoom room;
+
+    public RemoteClient(String node, long serial, String identity) {
+        super(identity);
+        this.node = node;
+        this.serial = serial;
+    }
+
+    @Override
+    public String getNode() {
+        return node;
+    }
+
+    @Override
+    public void send(ServerMessage message) {
+        Server.cluster.deliver(node, serial, message);
+    }
+
+    @Override
+    public void sendShared(ServerMessage message) {
+        Server.cluster.deliver(node, serial, message);
+    }
+
+    @Override
+    protected void evicted(String roomId) {
+        Server.cluster.evicted(node, serial, roomId);
+    }
+
+}
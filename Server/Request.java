@@ -0,0 +1,99 @@
+/******************************************************************************
+ * A decoded client request. JsonCodec and BinaryCodec fill these in straight
+ * from the bytes on the wire, and they are recycled once handled so that a
+ * busy connection does not allocate a new object per request.
+ *
+ * Only the fields the request's type uses are set, the rest are null.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Request {
+
+    public enum Type {
+        MESSAGE, JOIN, WHO, LIST, CREATE_ROOM, DELETE, KICK, IDENTITY_CHANGE, QUIT, HELLO, SEARCH, RESYNC, UNKNOWN
+    }
+
+    private static final int MAX_POOLED = 4096;
+    private static final ConcurrentLinkedQueue<Request> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    Type type = Type.UNKNOWN;
+    String roomId;
+    String identity;
+    String content;             // a chat message, or the terms of a search
+    long time;                  // kick duration in seconds
+    long seq;                   // the first room event a resync asks for
+    boolean offersBinary;       // hello listed the binary protocol
+    boolean offersLongJson;     // hello listed the longjson protocol
+    boolean offersDeflate;      // hello listed deflate compression
+    boolean offersRoomSync;     // hello listed the roomsync feature, numbered room events
+
+    public static Request obtain() {
+        Request request = pool.poll();
+        if (request == null) {
+            return new Request();
+        }
+        pooled.decrementAndGet();
+        return request;
+    }
+
+    public void recycle() {
+        clear();
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.add(this);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public void clear() {
+        type = Type.UNKNOWN;
+        roomId = null;
+        identity = null;
+        content = null;
+        time = 0;
+        seq = 0;
+        offersBinary = false;
+        offersLongJson = false;
+        offersDeflate = false;
+        offersRoomSync = false;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // Chat, who, list and search can be lost under load without leaving the client or its
+    // rooms in a state it did not ask for, the rest change who is where and must be handled
+    public boolean isDroppable() {
+        return type == Type.MESSAGE || type == Type.WHO || type == Type.LIST || type == Type.SEARCH;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(type.name().toLowerCase());
+        if (roomId != null) {
+            s.append(" roomid=").append(roomId);
+        }
+        if (identity != null) {
+            s.append(" identity=").append(identity);
+        }
+        if (content != null) {
+            s.append(" content=").append(content);
+        }
+        if (type == Type.KICK) {
+            s.append(" time=").append(time);
+        }
+        if (type == Type.RESYNC) {
+            s.append(" seq=").append(seq);
+        }
+        return s.toString();
+    }
+
+}
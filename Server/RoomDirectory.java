@@ -0,0 +1,199 @@
+/******************************************************************************
+ * Every ChatRoom on the Server, keyed by room id, with a second index from
+ * each owner to the rooms they own. Lookups, creates and deletes are O(1) no
+ * matter how many rooms exist, and creating a room is atomic so two clients
+ * asking for the same name at once cannot both get it.
+ *
+ * MainHall is pinned: it always exists, has no owner and cannot be deleted.
+ *
+ * Rooms created and deleted and owners changed are written to the Server's
+ * StateJournal, when it has one, so they survive a restart. MainHall is not.
+ * A room is journaled as created only once it is in the map, and as deleted
+ * only once it is out of it, so a snapshot taken after the record was logged
+ * already shows the change. Changes to one room id hold that id's stripe, so
+ * their records are logged in the order they happened.
+ *
+ * The roomlist reply is cached along with its encoded frames. A version is
+ * bumped whenever a room is created or deleted or anyone joins or leaves one,
+ * and the reply is only rebuilt when it was cached under an older version.
+ * Cached replies are never released, a replaced one is left to the garbage
+ * collector so a client still sending its frames is never affected.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RoomDirectory {
+
+    public static final String MAIN_HALL = "MainHall";
+
+    private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<ChatRoom>> roomsByOwner = new ConcurrentHashMap<>();
+    private final ChatRoom mainHall;
+    private final Object[] stripes = new Object[64];
+
+    private final AtomicLong version = new AtomicLong();
+    private volatile CachedReply roomList;
+
+    private static class CachedReply {
+
+        final long version;
+        final ServerMessage message;
+
+        CachedReply(long version, ServerMessage message) {
+            this.version = version;
+            this.message = message;
+        }
+    }
+
+    public RoomDirectory() {
+        mainHall = new ChatRoom(MAIN_HALL, this);
+        mainHall.setOwner("");
+        rooms.put(MAIN_HALL, mainHall);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    public ChatRoom mainHall() {
+        return mainHall;
+    }
+
+    // The room with this id, null if there is none
+    public ChatRoom get(String roomId) {
+        return roomId == null ? null : rooms.get(roomId);
+    }
+
+    // Creates the room unless the id is taken, returns null if it was
+    public ChatRoom create(String roomId, String owner) {
+        ChatRoom room = new ChatRoom(roomId, this);
+        synchronized (stripe(roomId)) {
+            if (rooms.putIfAbsent(roomId, room) != null) {
+                return null;
+            }
+            journal(room, true);
+        }
+        changed();
+        setOwner(room, owner);
+        return room;
+    }
+
+    public boolean delete(String roomId) {
+        ChatRoom room = rooms.get(roomId);
+        if (room == null || room == mainHall) {
+            return false;
+        }
+        synchronized (stripe(roomId)) {
+            if (!rooms.remove(roomId, room)) {
+                return false;
+            }
+            journal(room, false);
+        }
+        changed();
+        setOwner(room, "");
+        return true;
+    }
+
+    // Changes a room's owner, keeping the owner index in step. "" means no owner.
+    public void setOwner(ChatRoom room, String owner) {
+        synchronized (room) {
+            String former = room.getOwner();
+            if (former != null && !former.isEmpty()) {
+                Set<ChatRoom> owned = roomsByOwner.get(former);
+                if (owned != null) {
+                    owned.remove(room);
+                    if (owned.isEmpty()) {
+                        roomsByOwner.remove(former, owned);
+                    }
+                }
+            }
+            room.setOwner(owner);
+            if (rooms.get(room.getRoomId()) != room || room == mainHall) {
+                return;
+            }
+            if (owner != null && !owner.isEmpty()) {
+                roomsByOwner.computeIfAbsent(owner, o -> ConcurrentHashMap.newKeySet()).add(room);
+            }
+            StateJournal journal = Server.journal;
+            if (journal != null) {
+                journal.ownerChanged(room.getRoomId(), owner == null ? "" : owner);
+            }
+        }
+    }
+
+    // Journals the room having been created or deleted, called holding its id's stripe
+    private void journal(ChatRoom room, boolean created) {
+        StateJournal journal = Server.journal;
+        if (journal != null) {
+            if (created) {
+                journal.roomCreated(room.getRoomId());
+            } else {
+                journal.roomDeleted(room.getRoomId());
+            }
+        }
+    }
+
+    private Object stripe(String roomId) {
+        return stripes[(roomId.hashCode() & 0x7FFFFFFF) % stripes.length];
+    }
+
+    // A snapshot of the rooms owned by this identity
+    public ArrayList<ChatRoom> ownedBy(String owner) {
+        Set<ChatRoom> owned = roomsByOwner.get(owner);
+        if (owned == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(owned);
+    }
+
+    // Hands every room owned by former over to its new identity
+    public void transferOwnership(String former, String owner) {
+        for (ChatRoom room : ownedBy(former)) {
+            setOwner(room, owner);
+        }
+    }
+
+    // Called when the room list or any room's member count has changed
+    void changed() {
+        version.incrementAndGet();
+    }
+
+    // The roomlist reply, shared by everyone who asks until something changes
+    public ServerMessage roomList() {
+        long current = version.get();
+        CachedReply cached = roomList;
+        if (cached != null && cached.version == current) {
+            return cached.message;
+        }
+
+        ArrayList<ChatRoom> snapshot = list();
+        String[] roomIds = new String[snapshot.size()];
+        int[] counts = new int[snapshot.size()];
+        for (int i = 0; i < snapshot.size(); i++) {
+            roomIds[i] = snapshot.get(i).getRoomId();
+            counts[i] = snapshot.get(i).size();
+        }
+        ServerMessage message = new ServerMessage().roomListMsg(roomIds, counts);
+        roomList = new CachedReply(current, message);
+        return message;
+    }
+
+    // A snapshot of every room, MainHall first
+    public ArrayList<ChatRoom> list() {
+        ArrayList<ChatRoom> list = new ArrayList<>(rooms.size());
+        list.add(mainHall);
+        for (ChatRoom room : rooms.values()) {
+            if (room != mainHall) {
+                list.add(room);
+            }
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,320 @@
+/******************************************************************************
+ * The room side of every client request, run on the node that is home to the
+ * room. Requests arrive as NodeMessages, from a client of this node or from
+ * another node, and run as commands on the shard owning the room. The member
+ * a request is about is the client's own ClientConnection when it is on this
+ * node, and a RemoteClient standing in for it when it is on another.
+ *
+ * A request for a room this node is not home to is forwarded once to the
+ * node that is, which covers requests that raced a room moving between nodes.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RoomHost {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Cluster cluster;
+
+    public RoomHost(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    // Runs a request for one of this node's rooms and completes with its reply
+    public CompletableFuture<NodeMessage> handle(NodeMessage request) {
+        if (request.roomId != null && !cluster.isHome(request.roomId) && request.hops == 0) {
+            CompletableFuture<NodeMessage> forwarded = cluster.forward(request);
+            if (forwarded != null) {
+                return forwarded;
+            }
+        }
+
+        ChatRoom room = Server.getRoom(request.roomId);
+        AtomicBoolean ok = new AtomicBoolean(false);
+
+        switch (request.type) {
+
+            case CAN_JOIN:
+                // MainHall never bans anyone, since no one can be kicked from it
+                boolean allowed = room != null && !Server.bans.isBanned(request.roomId, request.identity);
+                return CompletableFuture.completedFuture(request.reply(allowed));
+
+            case LEAVE:
+                if (room == null) {
+                    return replied(request, true);
+                }
+                ClientConnection leaving = cluster.member(request.node, request.client, request.identity, false);
+                return room.submit(r -> leave(r, leaving, request.identity, request.other, request.ok))
+                        .thenApply(done -> request.reply(true));
+
+            case ENTER:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                ClientConnection entering = cluster.member(request.node, request.client, request.identity, true);
+                ChatRoom.Command join = r -> ok.set(enter(r, entering, request.identity, request.other));
+                // The first join after the Server starts waits for the room's log off the shard
+                AtomicReference<CompletableFuture<Void>> recovered = new AtomicReference<>(DONE);
+                return room.submit(r -> recovered.set(r.logRecovered()))
+                        .thenCompose(done -> recovered.get())
+                        .thenCompose(done -> room.submit(join))
+                        .thenApply(done -> request.reply(ok.get()));
+
+            case CHAT:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                return room.submit(r -> {
+                    r.record(request.identity, request.content);
+                    r.broadcastToRoom(new ServerMessage().chatMsg(r.getRoomId(), request.identity, request.content));
+                }).thenApply(done -> request.reply(true));
+
+            case WHO:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                ClientConnection asking = cluster.member(request.node, request.client, null, false);
+                return room.submit(r -> asking.sendShared(r.contents()))
+                        .thenApply(done -> request.reply(true));
+
+            case SEARCH:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                ClientConnection searching = cluster.member(request.node, request.client, null, false);
+                return Server.search(request.roomId, request.content)
+                        .thenCompose(results -> room.submit(r -> searching.send(results)))
+                        .thenApply(done -> request.reply(true));
+
+            case RESYNC:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                ClientConnection resyncing = cluster.member(request.node, request.client, null, false);
+                return room.submit(r -> r.resync(resyncing, request.time))
+                        .thenApply(done -> request.reply(true));
+
+            case LIST:
+                return CompletableFuture.completedFuture(list(request));
+
+            case CREATE:
+                return replied(request, Server.createRoom(request.roomId, request.identity));
+
+            case DELETE:
+                // MainHall's owner is always "", so it is never deleted
+                if (room == null || !room.getOwner().equals(request.identity)) {
+                    return replied(request, false);
+                }
+                // Deleted once everyone is out, so their moves are not kept among its recent events
+                return room.submit(r -> {
+                    for (ChatRoom.Member member : r.members()) {
+                        evict(r, member);
+                    }
+                    Server.deleteRoom(request.roomId);
+                }).thenApply(done -> request.reply(true));
+
+            case KICK:
+                if (room == null || room == Server.rooms.mainHall() || !room.getOwner().equals(request.identity)) {
+                    return replied(request, false);
+                }
+                Server.bans.ban(request.roomId, request.other, request.time); // time in seconds
+
+                // Only moved out if they are in the room they were banned from
+                return room.submit(r -> {
+                    for (ChatRoom.Member member : r.members()) {
+                        if (member.identity.equals(request.other)) {
+                            evict(r, member);
+                        }
+                    }
+                }).thenApply(done -> request.reply(true));
+
+            case RENAME:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                ClientConnection renamed = cluster.member(request.node, request.client, null, false);
+                return room.submit(r -> {
+                    r.rename(renamed, request.other);
+                    renamed.identity = request.other;
+                }).thenApply(done -> request.reply(true));
+
+            case IS_MEMBER:
+                if (room == null) {
+                    return replied(request, false);
+                }
+                ClientConnection member = cluster.member(request.node, request.client, null, false);
+                return room.submit(r -> ok.set(r.contains(member)))
+                        .thenApply(done -> request.reply(ok.get()));
+
+            default:
+                System.out.println("Not a room request: " + request);
+                return replied(request, false);
+        }
+    }
+
+    // Moves a room to the node that is now its home, with its owner, members and bans
+    public CompletableFuture<Void> transfer(ChatRoom room) {
+        return room.submit(r -> {
+            String home = cluster.homeOf(r.getRoomId());
+            NodeLink link = cluster.link(home);
+            if (cluster.isHome(r.getRoomId()) || link == null
+                    || (r == Server.rooms.mainHall() && r.isEmpty())) {
+                return;
+            }
+            for (Ban ban : Server.bans.takeRoom(r.getRoomId())) {
+                NodeMessage banned = new NodeMessage(NodeMessage.Type.BAN);
+                banned.roomId = ban.getRoomId();
+                banned.identity = ban.getUserId();
+                banned.time = ban.getTimeOfBan();
+                banned.duration = ban.getDuration();
+                link.send(banned);
+            }
+
+            ChatRoom.Member[] members = r.members();
+            NodeMessage state = new NodeMessage(NodeMessage.Type.ROOM_STATE);
+            state.roomId = r.getRoomId();
+            state.identity = r.getOwner();
+            state.names = new String[members.length];
+            state.numbers = new long[members.length];
+            state.nodes = new String[members.length];
+            for (int i = 0; i < members.length; i++) {
+                state.names[i] = members[i].identity;
+                state.numbers[i] = members[i].connection.serial;
+                state.nodes[i] = members[i].connection.getNode();
+                r.remove(members[i].connection);
+                cluster.dropProxy(members[i].connection);
+            }
+            state.time = r.nextEvent();
+            r.rest();
+            if (r != Server.rooms.mainHall()) {
+                Server.rooms.delete(r.getRoomId());
+            }
+            link.send(state);
+            System.out.println("Moved " + r.getRoomId() + " to " + home);
+        });
+    }
+
+    // Takes in a room moved here by its former home
+    public void received(NodeMessage state) {
+        ChatRoom room = Server.getRoom(state.roomId);
+        if (room == null) {
+            Server.createRoom(state.roomId, state.identity);
+            room = Server.getRoom(state.roomId);
+        }
+        room.submit(r -> {
+            r.numberEventsFrom(state.time);
+            for (int i = 0; i < state.names.length; i++) {
+                ClientConnection member = cluster.member(state.nodes[i], state.numbers[i], state.names[i], true);
+                if (member != null) {
+                    r.add(member);
+                    if (member instanceof RemoteClient) {
+                        ((RemoteClient) member).room = r;
+                    }
+                }
+            }
+        });
+    }
+
+    // Every member from a node that has gone, treated as if they had quit
+    public void nodeLost(ArrayList<RemoteClient> members) {
+        for (RemoteClient member : members) {
+            ChatRoom room = member.room;
+            if (room != null) {
+                room.submit(r -> leave(r, member, member.identity, "", false));
+            }
+            cluster.ownerGone(member.identity, false);
+        }
+    }
+
+    // Takes a member out of the room. A client quitting, going to "", is taken out before
+    // the room is told, otherwise the room and the client are told where they went first.
+    private void leave(ChatRoom room, ClientConnection member, String identity, String to, boolean announce)
+            throws IOException {
+        if (member == null || !room.contains(member)) {
+            return;
+        }
+        if (to.isEmpty()) {
+            room.remove(member);
+            room.broadcastToRoom(new ServerMessage().roomChangeMsg(identity, room.getRoomId(), ""));
+        } else {
+            if (announce) {
+                room.broadcastToRoom(new ServerMessage().roomChangeMsg(identity, room.getRoomId(), to));
+            }
+            room.remove(member);
+        }
+        cluster.dropProxy(member);
+
+        // Delete the room if they are the owner and no one is in it
+        if (identity.equals(room.getOwner()) && room.isEmpty()) {
+            Server.deleteRoom(room.getRoomId());
+        }
+    }
+
+    // Adds a member, returns false if the room was deleted while they were on their way in.
+    // A member with no former room is told the room's contents as well. Once caught up they
+    // are told the number of the room's next event.
+    private boolean enter(ChatRoom room, ClientConnection member, String identity, String former)
+            throws IOException {
+        if (member == null || Server.getRoom(room.getRoomId()) != room) {
+            cluster.dropProxy(member);
+            return false;
+        }
+        if (former.isEmpty()) {
+            room.add(member);
+            room.broadcastToRoom(new ServerMessage().roomChangeMsg(identity, "", room.getRoomId()));
+            member.sendShared(room.contents());
+        } else {
+            // The old room was told already, the client with it
+            room.broadcastToRoom(new ServerMessage().roomChangeMsg(identity, former, room.getRoomId()));
+            room.add(member);
+        }
+        room.replay(member);
+        member.send(new ServerMessage().roomSyncMsg(room.getRoomId(), room.nextEvent()));
+        if (member instanceof RemoteClient) {
+            ((RemoteClient) member).room = room;
+        }
+        return true;
+    }
+
+    // Moves a member out to MainHall for a kick or delete, their own node takes them into MainHall
+    private void evict(ChatRoom room, ChatRoom.Member member) throws IOException {
+        room.broadcastToRoom(new ServerMessage().roomChangeMsg(member.identity, room.getRoomId(), RoomDirectory.MAIN_HALL));
+        room.remove(member.connection);
+        cluster.dropProxy(member.connection);
+        member.connection.evicted(room.getRoomId());
+    }
+
+    // The rooms this node is home to and how many are in each
+    private NodeMessage list(NodeMessage request) {
+        ArrayList<ChatRoom> rooms = Server.rooms.list();
+        ArrayList<String> names = new ArrayList<>(rooms.size());
+        ArrayList<Long> counts = new ArrayList<>(rooms.size());
+        for (ChatRoom room : rooms) {
+            if (cluster.isHome(room.getRoomId())) {
+                names.add(room.getRoomId());
+                counts.add((long) room.size());
+            }
+        }
+        NodeMessage reply = request.reply(true);
+        reply.names = names.toArray(new String[0]);
+        reply.numbers = new long[counts.size()];
+        for (int i = 0; i < reply.numbers.length; i++) {
+            reply.numbers[i] = counts.get(i);
+        }
+        return reply;
+    }
+
+    private static CompletableFuture<NodeMessage> replied(NodeMessage request, boolean ok) {
+        return CompletableFuture.completedFuture(request.reply(ok));
+    }
+
+}
@@ -0,0 +1,324 @@
+/******************************************************************************
+ * Every chat message said in one room, appended to the room's segment files
+ * through MappedByteBuffers so that writing a message is a copy into memory
+ * and the OS writes it out in its own time. Each record is a 4 byte length,
+ * then the time it was said, the identity's length, the identity and the
+ * content. A length of 0 marks where a segment's records end.
+ *
+ * A sparse index keeps the number, time and place of every INDEX_EVERY-th
+ * record, so a replay of the last messages or of a time window starts from
+ * the nearest indexed record instead of the start of the log.
+ *
+ * Like the rest of its ChatRoom the log is only used on the room's shard. The
+ * segments are recovered, created and mapped by RoomLogs on its own thread,
+ * the next one as soon as the current one is half full, and messages said
+ * while a segment is not ready yet wait in memory, so appending never waits
+ * on the disk. Nor does a replay: a join waits, off the shard, for the
+ * segments already on disk to be mapped before the room's first replay.
+ *
+ * Once the room has gone quiet its ChatRoom lets go of the log, which unmaps
+ * every segment, and opens it again from disk when the room is next used.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+public class RoomLog {
+
+    private static final int INDEX_EVERY = 64;
+    private static final int SEGMENT_SIZE = RoomLogs.SEGMENT_SIZE;
+
+    private final RoomLogs logs;
+    private final String roomId;
+    private final Executor shard;
+
+    private final CompletableFuture<ArrayList<MappedByteBuffer>> recovering;
+    private boolean recovered = false;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    private MappedByteBuffer current;
+    private CompletableFuture<MappedByteBuffer> next;
+
+    // Records not yet in a segment, and the number of records that are
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private long count = 0;
+
+    // Set from any thread once the room is deleted
+    private volatile boolean closed = false;
+
+    // The sparse index, entry i is record number indexNumbers[i]
+    private int indexSize = 0;
+    private long[] indexNumbers = new long[16];
+    private long[] indexTimes = new long[16];
+    private int[] indexSegments = new int[16];
+    private int[] indexOffsets = new int[16];
+
+    RoomLog(RoomLogs logs, String roomId) {
+        this.logs = logs;
+        this.roomId = roomId;
+        this.shard = Server.shards.forRoom(roomId);
+        this.recovering = logs.recover(roomId);
+        recovering.thenRunAsync(this::drain, shard);
+    }
+
+    public void append(String identity, String content) {
+        if (closed) {
+            return;
+        }
+        byte[] id = identity.getBytes(StandardCharsets.UTF_8);
+        byte[] text = content.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 4 + id.length + text.length;
+        if (length + 4 > SEGMENT_SIZE) {
+            System.out.println("Message too long to keep in the log of " + roomId);
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length + 4);
+        record.putInt(length).putLong(System.currentTimeMillis()).putInt(id.length).put(id).put(text);
+        pending.add(record.array());
+        drain();
+    }
+
+    // Sends the member the last messages said in the room, only those said since the
+    // given time if it is not 0, oldest first
+    public void replay(ClientConnection member, int last, long since) throws IOException {
+        if (last <= 0 || closed) {
+            return;
+        }
+        // Joins wait for recovered() first, until then only the messages still pending are sent
+        ready();
+        long first = Math.max(0, count + pending.size() - last);
+
+        // Start at the later of the index entries before the first record and before the time
+        int entry = Math.max(floorNumber(first), since > 0 ? floorTime(since) : -1);
+        long number = 0;
+        if (entry >= 0) {
+            number = indexNumbers[entry];
+            for (int s = indexSegments[entry], offset = indexOffsets[entry]; s < segments.size(); s++, offset = 0) {
+                ByteBuffer segment = segments.get(s).duplicate();
+                while (offset + 4 <= SEGMENT_SIZE) {
+                    int length = segment.getInt(offset);
+                    if (length <= 0) {
+                        break;
+                    }
+                    segment.position(offset + 4);
+                    if (number >= first) {
+                        send(member, segment, length, since);
+                    }
+                    offset += 4 + length;
+                    number++;
+                }
+            }
+        }
+        for (byte[] record : pending) {
+            if (number++ >= first) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                buffer.position(4);
+                send(member, buffer, record.length - 4, since);
+            }
+        }
+    }
+
+    // Completes once the segments already on disk are mapped, even if that failed
+    public CompletableFuture<Void> recovered() {
+        return recovering.handle((segments, e) -> null);
+    }
+
+    // No more is kept, RoomLogs deletes the files
+    public void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Unmaps the segments of a room gone quiet and closes the log, unless it is still being read
+    // back or some messages are waiting for a segment. Returns whether it was let go of.
+    boolean release() {
+        if (!recovered || !pending.isEmpty()) {
+            return false;
+        }
+        closed = true;
+        unmap();
+        return true;
+    }
+
+    // Unmaps every segment of a closed log, on the room's shard since that is the only place they are used
+    void unmap() {
+        for (MappedByteBuffer segment : segments) {
+            RoomLogs.unmap(segment);
+        }
+        segments.clear();
+        current = null;
+        if (next != null) {
+            next.thenAccept(RoomLogs::unmap);
+            next = null;
+        }
+        if (!recovered) {
+            recovered = true;   // never adopted now, so unmapped once they are ready
+            recovering.thenAccept(found -> found.forEach(RoomLogs::unmap));
+        }
+    }
+
+    // Writes whatever is waiting into the segments there are
+    private void drain() {
+        while (!pending.isEmpty() && !closed) {
+            if (!ready()) {
+                return;
+            }
+            byte[] record = pending.peek();
+            if (current.remaining() < record.length) {
+                if (!roll()) {
+                    return;
+                }
+                continue;
+            }
+            int offset = current.position();
+            current.put(record);
+            index(count++, ByteBuffer.wrap(record).getLong(4), segments.size() - 1, offset);
+            pending.poll();
+
+            if (next == null && current.position() > SEGMENT_SIZE / 2) {
+                next = prepare(segments.size());
+            }
+        }
+    }
+
+    // Takes in the recovered segments once they are mapped, returns true once there is one to write to
+    private boolean ready() {
+        if (current != null) {
+            return true;
+        }
+        if (recovered || !recovering.isDone()) {
+            return recovered && roll();
+        }
+        recovered = true;
+        try {
+            for (MappedByteBuffer segment : recovering.join()) {
+                adopt(segment);
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+        if (segments.isEmpty()) {
+            return roll();
+        }
+        current = segments.get(segments.size() - 1);
+        return true;
+    }
+
+    // Indexes a recovered segment's records and leaves it positioned after them
+    private void adopt(MappedByteBuffer segment) {
+        segments.add(segment);
+        int offset = 0;
+        while (offset + 4 <= SEGMENT_SIZE) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || offset + 4 + length > SEGMENT_SIZE) {
+                break;
+            }
+            index(count++, segment.getLong(offset + 4), segments.size() - 1, offset);
+            offset += 4 + length;
+        }
+        segment.position(offset);
+    }
+
+    // Moves on to the next segment if it has been mapped, otherwise asks for it
+    private boolean roll() {
+        if (next == null) {
+            next = prepare(segments.size());
+        }
+        if (!next.isDone()) {
+            return false;
+        }
+        try {
+            MappedByteBuffer segment = next.join();
+            next = null;
+            if (segment == null) {
+                return false;
+            }
+            segments.add(segment);
+            current = segment;
+            return true;
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private CompletableFuture<MappedByteBuffer> prepare(int number) {
+        CompletableFuture<MappedByteBuffer> segment = logs.segment(roomId, number, this);
+        segment.thenRunAsync(this::drain, shard);
+        return segment;
+    }
+
+    private void fail(RuntimeException e) {
+        System.out.println("The log of " + roomId + " could not be opened, nothing more is kept");
+        e.printStackTrace();
+        closed = true;
+        pending.clear();
+    }
+
+    private void index(long number, long time, int segment, int offset) {
+        if (number % INDEX_EVERY != 0) {
+            return;
+        }
+        if (indexSize == indexNumbers.length) {
+            int size = indexSize * 2;
+            indexNumbers = Arrays.copyOf(indexNumbers, size);
+            indexTimes = Arrays.copyOf(indexTimes, size);
+            indexSegments = Arrays.copyOf(indexSegments, size);
+            indexOffsets = Arrays.copyOf(indexOffsets, size);
+        }
+        indexNumbers[indexSize] = number;
+        indexTimes[indexSize] = time;
+        indexSegments[indexSize] = segment;
+        indexOffsets[indexSize] = offset;
+        indexSize++;
+    }
+
+    // The last index entry at or before the record, or the first entry if there is none
+    private int floorNumber(long number) {
+        int at = Arrays.binarySearch(indexNumbers, 0, indexSize, number);
+        return at >= 0 ? at : Math.max(-at - 2, indexSize > 0 ? 0 : -1);
+    }
+
+    // The last index entry said at or before the time, or the first entry if there is none
+    private int floorTime(long time) {
+        int at = Arrays.binarySearch(indexTimes, 0, indexSize, time);
+        if (at < 0) {
+            return Math.max(-at - 2, indexSize > 0 ? 0 : -1);
+        }
+        while (at > 0 && indexTimes[at - 1] == time) {
+            at--;
+        }
+        return at;
+    }
+
+    // Sends the record at the buffer's position, after its length, unless it was said before since
+    private void send(ClientConnection member, ByteBuffer record, int length, long since) throws IOException {
+        int start = record.position();
+        long time = record.getLong();
+        if (time < since) {
+            record.position(start + length);
+            return;
+        }
+        byte[] id = new byte[record.getInt()];
+        record.get(id);
+        byte[] text = new byte[length - 12 - id.length];
+        record.get(text);
+        member.send(new ServerMessage().chatMsg(roomId, new String(id, StandardCharsets.UTF_8),
+                new String(text, StandardCharsets.UTF_8)));
+    }
+
+}
@@ -0,0 +1,145 @@
+/******************************************************************************
+ * Where the RoomLogs of every room are kept, a directory per room holding
+ * its numbered segment files. Creating, mapping, reading back and deleting
+ * segment files is file work, so it is all done on this class's own thread
+ * and never on a room's shard.
+ *
+ * Room ids come from clients, so a room's directory is named after the hex
+ * of its id, never the id itself, and any id the Server accepts gets a log.
+ *
+ * Every mapping counts against the OS's limit on mappings per process, so the
+ * segments of a room gone quiet are unmapped as soon as its log is let go of,
+ * rather than whenever the garbage collector gets to them.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RoomLogs {
+
+    public static final int SEGMENT_SIZE = 1 << 20;
+
+    // Unsafe.invokeCleaner, looked up once so JDKs without it still run and leave unmapping to the GC
+    private static Object unsafe;
+    private static Method invokeCleaner;
+
+    static {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Segments of idle room logs are left for the garbage collector to unmap");
+            invokeCleaner = null;
+        }
+    }
+
+    private final File dir;
+    private final ExecutorService files = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "room-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RoomLogs(String dir) {
+        this.dir = new File(dir);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            System.out.println("Could not create the room log directory " + dir);
+        }
+    }
+
+    public RoomLog open(String roomId) {
+        return new RoomLog(this, roomId);
+    }
+
+    // Maps every segment the room already has, in order, or an empty list for a new room
+    CompletableFuture<ArrayList<MappedByteBuffer>> recover(String roomId) {
+        return CompletableFuture.supplyAsync(() -> {
+            ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+            for (int number = 0; segmentFile(roomId, number).isFile(); number++) {
+                segments.add(map(roomId, number));
+            }
+            return segments;
+        }, files);
+    }
+
+    // Creates and maps the room's segment with this number, null if the log was closed first
+    CompletableFuture<MappedByteBuffer> segment(String roomId, int number, RoomLog log) {
+        return CompletableFuture.supplyAsync(() -> log.isClosed() ? null : map(roomId, number), files);
+    }
+
+    // Closes the log if it is open and removes the room's segments, queued behind any still being made
+    void delete(String roomId, RoomLog log) {
+        if (log != null) {
+            log.close();
+        }
+        files.execute(() -> {
+            File roomDir = roomDir(roomId);
+            File[] segments = roomDir.listFiles();
+            for (int i = 0; segments != null && i < segments.length; i++) {
+                if (!segments[i].delete()) {
+                    System.out.println("Could not delete " + segments[i]);
+                }
+            }
+            roomDir.delete();
+        });
+    }
+
+    // Unmaps a segment now, nothing may touch it or a duplicate of it again
+    static void unmap(MappedByteBuffer segment) {
+        if (invokeCleaner == null || segment == null) {
+            return;
+        }
+        try {
+            invokeCleaner.invoke(unsafe, segment);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Could not unmap a room log segment");
+            e.printStackTrace();
+        }
+    }
+
+    private MappedByteBuffer map(String roomId, int number) {
+        File file = segmentFile(roomId, number);
+        file.getParentFile().mkdirs();
+        // The mapping stays valid once the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < SEGMENT_SIZE) {
+                raf.setLength(SEGMENT_SIZE);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map " + file, e);
+        }
+    }
+
+    private File segmentFile(String roomId, int number) {
+        return new File(roomDir(roomId), String.format("%08d.log", number));
+    }
+
+    // room. and the id's UTF-8 bytes in hex, which no id can make into another path
+    private File roomDir(String roomId) {
+        StringBuilder name = new StringBuilder("room.");
+        for (byte b : roomId.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(dir, name.toString());
+    }
+
+}
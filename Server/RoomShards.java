@@ -0,0 +1,40 @@
+/******************************************************************************
+ * The threads that own the chat rooms. Every room belongs to one shard, picked
+ * by hashing its room id, and anything that reads or changes a room's members
+ * runs as a command on that shard's single thread. A room is then only ever
+ * touched by one thread and needs no locks, while rooms on different shards
+ * are worked on in parallel.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RoomShards {
+
+    private final ExecutorService[] shards;
+
+    public RoomShards(int count) {
+        shards = new ExecutorService[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            String name = "room-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(task -> new Thread(task, name));
+        }
+    }
+
+    // The shard owning this room, always the same one for a given room id
+    public Executor forRoom(String roomId) {
+        int h = roomId.hashCode();
+        h ^= h >>> 16;
+        return shards[(h & 0x7FFFFFFF) % shards.length];
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+}
@@ -0,0 +1,516 @@
+/******************************************************************************
+ * An inverted index over what is said in this node's rooms, for #search.
+ * Messages are handed to the index's own thread as they are said, so indexing
+ * never holds up a room's shard. They are indexed in memory and written out
+ * as a new SearchSegment once FLUSH_DOCS have built up, or once a second if
+ * fewer have. Messages not yet written out are lost if the Server dies, the
+ * RoomLog still has them.
+ *
+ * Segments are merged on a second thread, MERGE_FACTOR of similar size at a
+ * time, so there are only ever a few segments per size and a search reads
+ * the postings of its terms in each of them instead of scanning history.
+ *
+ * Deleting a room writes out what is in memory and leaves a tombstone: the
+ * room's docs in segments older than it are no longer found, and are dropped
+ * when those segments are merged. Tombstones are kept in their own file and
+ * forgotten once no segment is older than them.
+ *
+ * A search finds the docs in the room holding every term and ranks them by
+ * tf-idf, newer first on a tie, keeping only the best in a heap of size k.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class SearchIndex {
+
+    private static final int FLUSH_DOCS = 8192;
+    private static final long FLUSH_MILLIS = 1000;
+    private static final int MERGE_FACTOR = 8;
+    private static final int MAX_MERGED_DOCS = 4 * 1024 * 1024;
+    private static final int MAX_TERM = 32;
+    private static final char SEPARATOR = '\u0000';
+
+    private final File dir;
+    private final ScheduledExecutorService indexer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "search-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Everything below is only touched on the indexer thread
+    private final ArrayList<SearchSegment> segments = new ArrayList<>();
+    private final HashMap<String, Long> tombstones = new HashMap<>();
+    private long nextGeneration = 0;
+    private boolean merging = false;
+
+    // Indexed but not written out yet, the doc numbers are positions in docs
+    private final ArrayList<SearchSegment.Doc> docs = new ArrayList<>();
+    private final HashMap<String, SearchSegment.Postings> postings = new HashMap<>();
+
+    public SearchIndex(String dir) {
+        this.dir = new File(dir);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            System.out.println("Could not create the search index directory " + dir);
+        }
+        indexer.execute(this::recover);
+        indexer.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Indexes a chat message, from any thread
+    public void add(String roomId, String identity, String content, long time) {
+        indexer.execute(() -> index(new SearchSegment.Doc(roomId, identity, time, content)));
+    }
+
+    // Forgets everything said in the room, so a new room with its name starts clean
+    public void deleteRoom(String roomId) {
+        indexer.execute(() -> {
+            flush();
+            tombstones.put(roomId, nextGeneration);
+            saveTombstones();
+        });
+    }
+
+    // The k best matches for the terms in the room, as a searchresults reply
+    public CompletableFuture<ServerMessage> search(String roomId, String query, int k) {
+        return CompletableFuture.supplyAsync(() -> find(roomId, query, k), indexer);
+    }
+
+    // Lower case runs of letters and digits, too long ones are left out
+    static ArrayList<String> terms(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                if (i - start <= MAX_TERM) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    //  INDEXING, ON THE INDEXER THREAD
+
+    private void index(SearchSegment.Doc doc) {
+        int number = docs.size();
+        docs.add(doc);
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (String term : terms(doc.content)) {
+            counts.merge(term, 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> term : counts.entrySet()) {
+            postings.computeIfAbsent(key(doc.roomId, term.getKey()), k -> new SearchSegment.Postings(4))
+                    .add(number, term.getValue());
+        }
+        if (docs.size() >= FLUSH_DOCS) {
+            flush();
+        }
+    }
+
+    // Writes what is in memory out as the newest segment
+    private void flush() {
+        if (docs.isEmpty()) {
+            return;
+        }
+        long generation = nextGeneration++;
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(tmpFile(generation), new long[0])) {
+            for (SearchSegment.Doc doc : docs) {
+                writer.doc(doc);
+            }
+            ArrayList<String> keys = new ArrayList<>(postings.keySet());
+            Collections.sort(keys);
+            for (String key : keys) {
+                writer.key(key, postings.get(key));
+            }
+            segments.add(writer.finish(segmentFile(generation), generation));
+        } catch (IOException e) {
+            System.out.println("Error writing search segment " + generation + ", its messages are not indexed");
+            e.printStackTrace();
+        }
+        docs.clear();
+        postings.clear();
+        maybeMerge();
+    }
+
+    //  MERGING
+
+    // Merges the oldest MERGE_FACTOR segments of the first size with that many, one merge at a time
+    private void maybeMerge() {
+        if (merging) {
+            return;
+        }
+        HashMap<Integer, ArrayList<SearchSegment>> tiers = new HashMap<>();
+        for (SearchSegment segment : segments) {
+            if (segment.docCount >= MAX_MERGED_DOCS / MERGE_FACTOR) {
+                continue;
+            }
+            ArrayList<SearchSegment> tier = tiers.computeIfAbsent(tier(segment.docCount), t -> new ArrayList<>());
+            tier.add(segment);
+            if (tier.size() == MERGE_FACTOR) {
+                merging = true;
+                long generation = nextGeneration++;
+                HashMap<String, Long> hidden = new HashMap<>(tombstones);
+                merger.execute(() -> merge(tier, generation, hidden));
+                return;
+            }
+        }
+    }
+
+    private static int tier(int docs) {
+        int tier = 0;
+        for (int size = FLUSH_DOCS; size < docs; size *= MERGE_FACTOR) {
+            tier++;
+        }
+        return tier;
+    }
+
+    // On the merge thread. The inputs are immutable, so searches carry on with them meanwhile.
+    private void merge(ArrayList<SearchSegment> inputs, long generation, HashMap<String, Long> hidden) {
+        long[] replaces = new long[inputs.size()];
+        for (int i = 0; i < replaces.length; i++) {
+            replaces[i] = inputs.get(i).generation;
+        }
+        SearchSegment merged = null;
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(tmpFile(generation), replaces)) {
+            // The docs in order, renumbered without those of deleted rooms
+            int[][] renumbered = new int[inputs.size()][];
+            for (int s = 0; s < inputs.size(); s++) {
+                SearchSegment input = inputs.get(s);
+                renumbered[s] = new int[input.docCount];
+                for (int d = 0; d < input.docCount; d++) {
+                    SearchSegment.Doc doc = input.doc(d);
+                    if (isHidden(hidden, doc.roomId, input.generation)) {
+                        renumbered[s][d] = -1;
+                    } else {
+                        renumbered[s][d] = writer.docs();
+                        writer.doc(doc);
+                    }
+                }
+            }
+
+            // Then every key in order, taking its postings from each input in turn
+            SearchSegment.Cursor[] cursors = new SearchSegment.Cursor[inputs.size()];
+            for (int s = 0; s < cursors.length; s++) {
+                cursors[s] = inputs.get(s).cursor();
+                cursors[s].next();
+            }
+            while (true) {
+                String key = null;
+                for (SearchSegment.Cursor cursor : cursors) {
+                    if (cursor.key != null && (key == null || cursor.key.compareTo(key) < 0)) {
+                        key = cursor.key;
+                    }
+                }
+                if (key == null) {
+                    break;
+                }
+                SearchSegment.Postings list = new SearchSegment.Postings(16);
+                for (int s = 0; s < cursors.length; s++) {
+                    if (key.equals(cursors[s].key)) {
+                        SearchSegment.Postings from = cursors[s].postings();
+                        for (int i = 0; i < from.size; i++) {
+                            int doc = renumbered[s][from.docs[i]];
+                            if (doc >= 0) {
+                                list.add(doc, from.counts[i]);
+                            }
+                        }
+                        cursors[s].next();
+                    }
+                }
+                writer.key(key, list);
+            }
+            merged = writer.finish(segmentFile(generation), generation);
+        } catch (IOException e) {
+            System.out.println("Error merging search segments into " + generation);
+            e.printStackTrace();
+        }
+        SearchSegment result = merged;
+        indexer.execute(() -> merged(inputs, result));
+    }
+
+    // Back on the indexer thread, swaps the merged segment in for its inputs
+    // A merge that failed is tried again after the next flush
+    private void merged(ArrayList<SearchSegment> inputs, SearchSegment merged) {
+        merging = false;
+        if (merged == null) {
+            return;
+        }
+        segments.removeAll(inputs);
+        segments.add(merged);
+        for (SearchSegment input : inputs) {
+            input.delete();
+        }
+        forgetTombstones();
+        maybeMerge();
+    }
+
+    //  SEARCHING, ON THE INDEXER THREAD
+
+    private static class Hit {
+
+        final double score;
+        final long time;
+        final SearchSegment segment;    // null for a doc still in memory
+        final int doc;
+
+        Hit(double score, long time, SearchSegment segment, int doc) {
+            this.score = score;
+            this.time = time;
+            this.segment = segment;
+            this.doc = doc;
+        }
+    }
+
+    private static final Comparator<Hit> WORST_FIRST =
+            Comparator.<Hit>comparingDouble(hit -> hit.score).thenComparingLong(hit -> hit.time);
+
+    private ServerMessage find(String roomId, String query, int k) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (String term : new LinkedHashSet<>(terms(query))) {
+            keys.add(key(roomId, term));
+        }
+
+        // The postings of every term in each segment the room is not hidden in, then the ones in memory
+        ArrayList<SearchSegment> sources = new ArrayList<>();
+        ArrayList<SearchSegment.Postings[]> found = new ArrayList<>();
+        int[] frequency = new int[keys.size()];
+        long total = docs.size();
+        for (SearchSegment segment : segments) {
+            total += segment.docCount;
+            if (!isHidden(tombstones, roomId, segment.generation)) {
+                collect(segment, keys, frequency, sources, found);
+            }
+        }
+        collect(null, keys, frequency, sources, found);
+
+        double[] idf = new double[keys.size()];
+        for (int t = 0; t < idf.length; t++) {
+            idf[t] = Math.log(1 + (double) total / Math.max(1, frequency[t]));
+        }
+
+        PriorityQueue<Hit> best = new PriorityQueue<>(WORST_FIRST);
+        for (int s = 0; s < sources.size() && k > 0; s++) {
+            SearchSegment segment = sources.get(s);
+            SearchSegment.Postings[] lists = found.get(s);
+
+            // Walk the shortest list, looking each doc up in the others
+            int shortest = 0;
+            for (int t = 1; t < lists.length; t++) {
+                if (lists[t].size < lists[shortest].size) {
+                    shortest = t;
+                }
+            }
+            int[] at = new int[lists.length];
+            candidates:
+            for (int i = 0; i < lists[shortest].size; i++) {
+                int doc = lists[shortest].docs[i];
+                double score = 0;
+                for (int t = 0; t < lists.length; t++) {
+                    SearchSegment.Postings list = lists[t];
+                    while (at[t] < list.size && list.docs[at[t]] < doc) {
+                        at[t]++;
+                    }
+                    if (at[t] == list.size || list.docs[at[t]] != doc) {
+                        continue candidates;
+                    }
+                    score += (1 + Math.log(list.counts[at[t]])) * idf[t];
+                }
+                // Only a hit that could make the top k needs its time, for breaking ties
+                if (best.size() == k && score < best.peek().score) {
+                    continue;
+                }
+                long time = segment != null ? segment.time(doc) : docs.get(doc).time;
+                Hit hit = new Hit(score, time, segment, doc);
+                if (best.size() < k) {
+                    best.add(hit);
+                } else if (WORST_FIRST.compare(hit, best.peek()) > 0) {
+                    best.poll();
+                    best.add(hit);
+                }
+            }
+        }
+
+        ArrayList<Hit> hits = new ArrayList<>(best);
+        hits.sort(WORST_FIRST.reversed());
+        String[] identities = new String[hits.size()];
+        String[] contents = new String[hits.size()];
+        long[] times = new long[hits.size()];
+        for (int i = 0; i < hits.size(); i++) {
+            Hit hit = hits.get(i);
+            SearchSegment.Doc doc = hit.segment != null ? hit.segment.doc(hit.doc) : docs.get(hit.doc);
+            identities[i] = doc.identity;
+            contents[i] = doc.content;
+            times[i] = doc.time;
+        }
+        return new ServerMessage().searchResultsMsg(roomId, identities, contents, times);
+    }
+
+    // Adds the segment, or the docs in memory if it is null, to the sources if it holds every term
+    private void collect(SearchSegment segment, ArrayList<String> keys, int[] frequency,
+                         ArrayList<SearchSegment> sources, ArrayList<SearchSegment.Postings[]> found) {
+        SearchSegment.Postings[] lists = new SearchSegment.Postings[keys.size()];
+        boolean all = !keys.isEmpty();
+        for (int t = 0; t < keys.size(); t++) {
+            lists[t] = segment != null ? segment.postings(keys.get(t)) : postings.get(keys.get(t));
+            if (lists[t] == null) {
+                all = false;
+            } else {
+                frequency[t] += lists[t].size;
+            }
+        }
+        if (all) {
+            sources.add(segment);
+            found.add(lists);
+        }
+    }
+
+    //  RECOVERY AND TOMBSTONES
+
+    // Opens the segments already on disk, dropping any a finished merge replaced
+    private void recover() {
+        HashMap<Long, File> files = new HashMap<>();
+        File[] listed = dir.listFiles();
+        for (int i = 0; listed != null && i < listed.length; i++) {
+            String name = listed[i].getName();
+            if (name.endsWith(".tmp")) {
+                listed[i].delete();
+            } else if (name.endsWith(".seg")) {
+                try {
+                    files.put(Long.parseLong(name.substring(0, name.length() - 4)), listed[i]);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        ArrayList<Long> generations = new ArrayList<>(files.keySet());
+        Collections.sort(generations);
+        HashSet<Long> replaced = new HashSet<>();
+        for (long generation : generations) {
+            try {
+                SearchSegment segment = SearchSegment.open(files.get(generation), generation);
+                segments.add(segment);
+                for (long input : segment.replaces) {
+                    replaced.add(input);
+                }
+            } catch (IOException e) {
+                System.out.println("Skipping search segment " + files.get(generation) + ": " + e.getMessage());
+            }
+            nextGeneration = generation + 1;
+        }
+        segments.removeIf(segment -> {
+            if (replaced.contains(segment.generation)) {
+                segment.delete();
+                return true;
+            }
+            return false;
+        });
+        loadTombstones();
+        maybeMerge();
+    }
+
+    private static boolean isHidden(HashMap<String, Long> tombstones, String roomId, long generation) {
+        Long deleted = tombstones.get(roomId);
+        return deleted != null && generation < deleted;
+    }
+
+    // A tombstone no segment is older than hides nothing
+    private void forgetTombstones() {
+        long oldest = nextGeneration;
+        for (SearchSegment segment : segments) {
+            oldest = Math.min(oldest, segment.generation);
+        }
+        long first = oldest;
+        if (tombstones.values().removeIf(deleted -> deleted <= first)) {
+            saveTombstones();
+        }
+    }
+
+    private void loadTombstones() {
+        File file = new File(dir, "tombstones");
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            while (true) {
+                String roomId = in.readUTF();
+                tombstones.put(roomId, in.readLong());
+            }
+        } catch (EOFException e) {
+            // all read
+        } catch (IOException e) {
+            System.out.println("Error reading the search tombstones");
+            e.printStackTrace();
+        }
+    }
+
+    private void saveTombstones() {
+        File tmp = new File(dir, "tombstones.tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(file);
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                out.writeUTF(tombstone.getKey());
+                out.writeLong(tombstone.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            System.out.println("Error writing the search tombstones");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), new File(dir, "tombstones").toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error writing the search tombstones");
+            e.printStackTrace();
+        }
+    }
+
+    private static String key(String roomId, String term) {
+        return roomId + SEPARATOR + term;
+    }
+
+    private File segmentFile(long generation) {
+        return new File(dir, String.format("%012d.seg", generation));
+    }
+
+    private File tmpFile(long generation) {
+        return new File(dir, String.format("%012d.seg.tmp", generation));
+    }
+
+}
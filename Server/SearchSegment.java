@@ -0,0 +1,384 @@
+/******************************************************************************
+ * One immutable segment of the SearchIndex, a file holding a batch of chat
+ * messages and the inverted index over them. Each key is a room id and a term
+ * joined by a NUL, so a search in one room only reads that room's postings.
+ *
+ * The file is the docs, a table of where each doc starts, the postings of
+ * every key and then the dictionary of keys in sorted order, followed by a
+ * trailer giving where each part starts. A doc is its room id, identity, the
+ * time it was said and its content. A key's postings are its doc numbers as
+ * varint gaps, each followed by how often the term is in the doc.
+ *
+ * Segments are memory-mapped. Like RoomLog's sparse index only every
+ * INDEX_EVERY-th key is kept in memory, a lookup scans forward from the
+ * nearest one. A segment made by merging lists the generations it replaces,
+ * so the inputs left behind by a crash mid-merge are deleted on recovery.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SearchSegment {
+
+    private static final int MAGIC = 0x53454731;
+    private static final int TRAILER = 20;
+    private static final int INDEX_EVERY = 16;
+
+    // A chat message as it is kept in a segment
+    public static class Doc {
+
+        final String roomId;
+        final String identity;
+        final long time;
+        final String content;
+
+        Doc(String roomId, String identity, long time, String content) {
+            this.roomId = roomId;
+            this.identity = identity;
+            this.time = time;
+            this.content = content;
+        }
+    }
+
+    // The docs a key is in, ascending, and how often it is in each
+    public static class Postings {
+
+        int[] docs;
+        int[] counts;
+        int size = 0;
+
+        Postings(int capacity) {
+            docs = new int[Math.max(1, capacity)];
+            counts = new int[Math.max(1, capacity)];
+        }
+
+        void add(int doc, int count) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            docs[size] = doc;
+            counts[size] = count;
+            size++;
+        }
+    }
+
+    final long generation;
+    final int docCount;
+    final long[] replaces;
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int docTable;
+    private final int dictionary;
+    private final int keyCount;
+
+    // Every INDEX_EVERY-th key and where its dictionary entry starts
+    private final String[] indexKeys;
+    private final int[] indexOffsets;
+
+    private SearchSegment(File file, long generation, MappedByteBuffer mapped) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.buffer = mapped;
+
+        int end = mapped.capacity();
+        if (end < 8 + TRAILER || mapped.getInt(0) != MAGIC || mapped.getInt(end - 4) != MAGIC) {
+            throw new IOException("Not a complete search segment: " + file);
+        }
+        docTable = mapped.getInt(end - TRAILER);
+        dictionary = mapped.getInt(end - TRAILER + 4);
+        docCount = mapped.getInt(end - TRAILER + 8);
+        keyCount = mapped.getInt(end - TRAILER + 12);
+
+        replaces = new long[mapped.getInt(4)];
+        for (int i = 0; i < replaces.length; i++) {
+            replaces[i] = mapped.getLong(8 + i * 8);
+        }
+
+        indexKeys = new String[(keyCount + INDEX_EVERY - 1) / INDEX_EVERY];
+        indexOffsets = new int[indexKeys.length];
+        Cursor cursor = cursor();
+        for (int i = 0; cursor.next(); i++) {
+            if (i % INDEX_EVERY == 0) {
+                indexKeys[i / INDEX_EVERY] = cursor.key;
+                indexOffsets[i / INDEX_EVERY] = cursor.entry;
+            }
+        }
+    }
+
+    public static SearchSegment open(File file, long generation) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid once the file is closed, or deleted
+            return new SearchSegment(file, generation, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    // The postings of the key, null if it is in none of this segment's docs
+    public Postings postings(String key) {
+        int at = Arrays.binarySearch(indexKeys, key);
+        if (at < 0) {
+            at = -at - 2;
+            if (at < 0) {
+                return null;
+            }
+        }
+        Cursor cursor = new Cursor(indexOffsets[at]);
+        for (int i = 0; i < INDEX_EVERY && cursor.next(); i++) {
+            int order = cursor.key.compareTo(key);
+            if (order == 0) {
+                return cursor.postings();
+            }
+            if (order > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public Doc doc(int number) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(buffer.getInt(docTable + number * 4));
+        String roomId = readString(in);
+        String identity = readString(in);
+        long time = in.getLong();
+        byte[] content = new byte[in.getInt()];
+        in.get(content);
+        return new Doc(roomId, identity, time, new String(content, StandardCharsets.UTF_8));
+    }
+
+    // When the doc was said, without reading the rest of it
+    public long time(int number) {
+        int at = buffer.getInt(docTable + number * 4);
+        at += 2 + (buffer.getShort(at) & 0xFFFF);
+        at += 2 + (buffer.getShort(at) & 0xFFFF);
+        return buffer.getLong(at);
+    }
+
+    // Walks the dictionary in key order
+    public Cursor cursor() {
+        return new Cursor(dictionary);
+    }
+
+    public class Cursor {
+
+        String key;
+        int entry;
+        private int next;
+        private int postingsAt;
+        private int postingsSize;
+
+        private Cursor(int start) {
+            this.next = start;
+        }
+
+        // The dictionary runs up to the trailer
+        public boolean next() {
+            if (next >= buffer.capacity() - TRAILER) {
+                key = null;
+                return false;
+            }
+            ByteBuffer in = buffer.duplicate();
+            in.position(next);
+            entry = next;
+            key = readString(in);
+            postingsAt = in.getInt();
+            postingsSize = in.getInt();
+            next = in.position();
+            return true;
+        }
+
+        public Postings postings() {
+            Postings postings = new Postings(postingsSize);
+            ByteBuffer in = buffer.duplicate();
+            in.position(postingsAt);
+            int doc = 0;
+            for (int i = 0; i < postingsSize; i++) {
+                doc += readVarint(in);
+                postings.add(doc, readVarint(in));
+            }
+            return postings;
+        }
+    }
+
+    void delete() {
+        if (!file.delete()) {
+            System.out.println("Could not delete " + file);
+        }
+    }
+
+    //  WRITING
+
+    // Writes a new segment: every doc first, in order, then every key in ascending order
+    public static class Writer implements Closeable {
+
+        private final File tmp;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final ArrayList<Integer> docStarts = new ArrayList<>();
+        private final ByteArrayBuffer postings = new ByteArrayBuffer();
+        private final ByteArrayBuffer keys = new ByteArrayBuffer();
+        private int keyCount = 0;
+
+        public Writer(File tmp, long[] replaces) throws IOException {
+            this.tmp = tmp;
+            this.file = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(replaces.length);
+            for (long generation : replaces) {
+                out.writeLong(generation);
+            }
+        }
+
+        public void doc(Doc doc) throws IOException {
+            docStarts.add(out.size());
+            writeString(out, doc.roomId);
+            writeString(out, doc.identity);
+            out.writeLong(doc.time);
+            byte[] content = doc.content.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(content.length);
+            out.write(content);
+        }
+
+        public int docs() {
+            return docStarts.size();
+        }
+
+        // The postings go after the docs once they are all written, the keys after those
+        public void key(String key, Postings list) throws IOException {
+            if (list.size == 0) {
+                return;
+            }
+            keys.string(key);
+            keys.putInt(postings.size());
+            keys.putInt(list.size);
+            int last = 0;
+            for (int i = 0; i < list.size; i++) {
+                postings.varint(list.docs[i] - last);
+                postings.varint(list.counts[i]);
+                last = list.docs[i];
+            }
+            keyCount++;
+        }
+
+        // Completes the file and renames it into place, returns the opened segment
+        public SearchSegment finish(File target, long generation) throws IOException {
+            int docTable = out.size();
+            for (int start : docStarts) {
+                out.writeInt(start);
+            }
+            int postingsStart = out.size();
+            out.write(postings.bytes, 0, postings.size());
+            int dictionary = out.size();
+
+            // The dictionary's postings offsets were relative to the postings, make them absolute
+            ByteBuffer entries = ByteBuffer.wrap(keys.bytes, 0, keys.size());
+            while (entries.hasRemaining()) {
+                int at = entries.position() + 2 + (entries.getShort() & 0xFFFF);
+                entries.putInt(at, entries.getInt(at) + postingsStart);
+                entries.position(at + 8);
+            }
+            out.write(keys.bytes, 0, keys.size());
+
+            out.writeInt(docTable);
+            out.writeInt(dictionary);
+            out.writeInt(docStarts.size());
+            out.writeInt(keyCount);
+            out.writeInt(MAGIC);
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return open(target, generation);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            tmp.delete();
+        }
+    }
+
+    // A growable byte array, for the parts of a segment written after the docs
+    private static class ByteArrayBuffer {
+
+        byte[] bytes = new byte[4096];
+        int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            ByteBuffer.wrap(bytes, size, 4).putInt(value);
+            size += 4;
+        }
+
+        void string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            ensure(2 + utf8.length);
+            bytes[size++] = (byte) (utf8.length >>> 8);
+            bytes[size++] = (byte) utf8.length;
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+
+    // Room ids, identities and keys are all short, a 2 byte length is plenty
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getShort() & 0xFFFF];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+}
@@ -1,11 +1,31 @@
 /*********************************************************************************
  * Compilation:  javac Server.java
  * Execution:    java Server port
- * Dependencies: Ban, ChatRoom, ClientConnection, ServerMessage, ServerSendThread
+ * Dependencies: Backplane, Ban, BanList, BinaryCodec, Broker, BrokerBackplane, ChatRoom,
+ *               ClientConnection, Cluster, Compressor, EventLoop, Frame, GuestBlocks, GuestIds,
+ *               HashRing, IdentityDirectory, IdentityRegistry, JsonCodec, Mailbox, NodeLink,
+ *               NodeMessage, Outbox, Protocol, RecentMessages, RemoteClient, Request, RoomDirectory,
+ *               RoomHost, RoomLog, RoomLogs, RoomShards, SearchIndex, SearchSegment, ServerMessage,
+ *               StateJournal, Subscriptions
  *
- * Establishes a Server that listens for TCP connections, using a thread-per-request
- * connection model, messages are then sent using a request-reply protocol over
- * TCP sockets
+ * Establishes a Server that listens for TCP connections, messages are then sent
+ * using a request-reply protocol over TCP sockets. Each client's requests are
+ * read into its Mailbox and handled in the order it sent them, and anything
+ * touching a room runs on the RoomShards thread that owns the room, so a busy
+ * room never holds up the others. Replies are queued on the client's Outbox
+ * and written by a small pool of sender threads shared by every client.
+ *
+ * By default every client has its own reading thread, a virtual thread with
+ * --virtual (requires a JDK with Thread.ofVirtual). Started with --nio the
+ * Server instead multiplexes all connections over a small fixed set of
+ * EventLoop selector threads.
+ *
+ * With --cluster-port several Servers share the rooms as one Cluster, e.g.
+ *   java Server -p 4444 --cluster-port 5444
+ *   java Server -p 4445 --cluster-port 5445 --peers localhost:5444
+ * and with --broker-port and --backplane their broadcasts go through a Broker, e.g.
+ *   java Server -p 4444 --cluster-port 5444 --broker-port 6444
+ *   java Server -p 4445 --cluster-port 5445 --peers localhost:5444 --backplane localhost:6444
  *
  *
  * @author Rem, 2015
@@ -13,63 +33,247 @@
 
 package Server;
 
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.PriorityQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.Deflater;
 
 public class Server {
 
     @Option(required = false, name = "-p", aliases = {"--port"}, usage = "Port Address")
     private static int port = 4444;
 
-    // Keep track of number of connected users
-    protected static Integer guestCount = 0;
-    protected static PriorityQueue<Integer> nextLowestQueue = new PriorityQueue<>();
+    @Option(required = false, name = "-n", aliases = {"--nio"}, usage = "Use non-blocking selector event loops")
+    private static boolean nio = false;
+
+    @Option(required = false, name = "-l", aliases = {"--loops"}, usage = "Number of event loop threads in NIO mode")
+    private static int loops = Runtime.getRuntime().availableProcessors();
+
+    @Option(required = false, name = "-v", aliases = {"--virtual"}, usage = "Run client threads as virtual threads")
+    private static boolean virtual = false;
+
+    @Option(required = false, name = "--mailbox-capacity", usage = "Requests queued per client before overflow")
+    protected static int mailboxCapacity = 256;
+
+    @Option(required = false, name = "--mailbox-overflow", usage = "What to do when a client's mailbox is full")
+    protected static Mailbox.Overflow mailboxOverflow = Mailbox.Overflow.BLOCK;
+
+    @Option(required = false, name = "--mailbox-batch", usage = "Requests handled per processor wakeup")
+    protected static int mailboxBatch = 16;
+
+    @Option(required = false, name = "--senders", usage = "Threads shared by all clients for outbound messages")
+    protected static int senders = Runtime.getRuntime().availableProcessors() * 2;
+
+    @Option(required = false, name = "--outbox-capacity",
+            usage = "Messages queued for a client before it is disconnected as too slow, 0 for no limit")
+    protected static int outboxCapacity = 4096;
+
+    @Option(required = false, name = "--max-batch", usage = "Most queued messages coalesced into one write")
+    protected static int maxBatch = 64;
+
+    @Option(required = false, name = "--linger", usage = "Milliseconds to wait for more messages before a write")
+    protected static long linger = 0;
+
+    @Option(required = false, name = "--shards", usage = "Threads that own the chat rooms, each room runs on one")
+    protected static int shardCount = Runtime.getRuntime().availableProcessors();
+
+    // Runs every command on a room, on the shard picked by its room id
+    protected static RoomShards shards;
+
+    @Option(required = false, name = "--cluster-port",
+            usage = "Port other nodes of the cluster connect to, 0 to run alone")
+    private static int clusterPort = 0;
+
+    @Option(required = false, name = "--cluster-host", usage = "Host name the other nodes reach this one by")
+    private static String clusterHost = "localhost";
+
+    @Option(required = false, name = "--peers", usage = "Comma separated host:port of nodes already in the cluster")
+    private static String peers = "";
+
+    @Option(required = false, name = "--broker-port", usage = "Run the cluster's backplane broker on this port")
+    private static int brokerPort = 0;
+
+    @Option(required = false, name = "--backplane", usage = "host:port of the broker to publish broadcasts through")
+    private static String backplaneAddress = "";
+
+    @Option(required = false, name = "--backplane-linger",
+            usage = "Milliseconds publishes wait to go to the broker in one batch")
+    private static long backplaneLinger = 1;
+
+    @Option(required = false, name = "--log-dir", usage = "Directory to keep every room's chat in, none if not given")
+    private static String logDir = "";
+
+    @Option(required = false, name = "--history",
+            usage = "Messages a client is sent of what was said before joining a room")
+    protected static int history = 20;
+
+    @Option(required = false, name = "--history-seconds", usage = "Only replay messages this recent, 0 for no limit")
+    protected static long historySeconds = 0;
+
+    @Option(required = false, name = "--recent",
+            usage = "Events each room keeps in memory for clients joining or catching up, 0 for none")
+    protected static int recent = 100;
+
+    @Option(required = false, name = "--recent-room-bytes", usage = "Most bytes of recent events kept by one room")
+    protected static long recentRoomBytes = 256 * 1024;
+
+    @Option(required = false, name = "--recent-bytes", usage = "Most bytes of recent events kept across all rooms")
+    protected static long recentBytes = 64 * 1024 * 1024;
 
-    // Connected user info    (  Uses Thread-Safe Variant of ArrayList   )
-    protected static CopyOnWriteArrayList<String> userIdentities = new CopyOnWriteArrayList();
-    protected static CopyOnWriteArrayList<ClientConnection> userThreads = new CopyOnWriteArrayList<>();
+    @Option(required = false, name = "--recent-idle", usage = "Seconds a quiet room keeps its recent events")
+    protected static long recentIdle = 600;
+
+    // Where the rooms' chat is kept, null unless started with a log directory
+    protected static RoomLogs logs;
+
+    @Option(required = false, name = "--state-dir",
+            usage = "Directory to journal rooms, owners and bans in, none if not given")
+    private static String stateDir = "";
+
+    @Option(required = false, name = "--snapshot-every",
+            usage = "Journal records between snapshots of the rooms and bans")
+    private static long snapshotEvery = 100000;
+
+    // Keeps the rooms, owners and bans across restarts, null unless started with a state directory
+    protected static StateJournal journal;
+
+    @Option(required = false, name = "--index-dir",
+            usage = "Directory to keep the search index in, no #search if not given")
+    private static String indexDir = "";
+
+    @Option(required = false, name = "--search-results", usage = "Most matches a #search replies with")
+    private static int searchResults = 10;
+
+    // What is said in this node's rooms, for #search, null unless started with an index directory
+    protected static SearchIndex index;
+
+    // The nodes sharing the rooms, just this one unless started with a cluster port
+    protected static Cluster cluster = new Cluster("localhost");
+
+    // Writes every client's Outbox, bounded no matter how many clients or rooms there are
+    protected static ScheduledExecutorService senderPool;
+
+    // Expiry, sweeps and lease renewal, kept off the senders so a slow client cannot hold them up
+    protected static ScheduledExecutorService timers;
+
+    @Option(required = false, name = "--json-only", usage = "Refuse clients asking for the binary protocol")
+    protected static boolean jsonOnly = false;
+
+    @Option(required = false, name = "--compress", usage = "Deflate replies to clients that ask for it")
+    protected static boolean compress = false;
+
+    @Option(required = false, name = "--compress-threshold",
+            usage = "Replies shorter than this many bytes are not deflated")
+    protected static int compressThreshold = 64;
+
+    @Option(required = false, name = "--compress-level", usage = "Deflate level, 1 (fastest) to 9 (smallest)")
+    protected static int compressLevel = Deflater.BEST_SPEED;
+
+    // Thread.ofVirtual() and Thread.Builder.unstarted(), looked up at startup so older JDKs still run
+    private static Object virtualBuilder;
+    private static Method unstarted;
+
+    // Numbers of the guest identities in use, from the blocks of them this node has leased
+    protected static GuestBlocks guestIds = new GuestBlocks();
+
+    // Connected users by identity
+    protected static IdentityDirectory identities = new IdentityDirectory();
 
     // Users within chat rooms
-    protected static CopyOnWriteArrayList<ChatRoom> rooms = new CopyOnWriteArrayList<>();
-    // Currently banned users
-    protected static ConcurrentHashMap<ClientConnection, Ban> bannedUsers = new ConcurrentHashMap<>();
+    protected static RoomDirectory rooms = new RoomDirectory();
+    // Currently banned users, by room
+    protected static BanList bans = new BanList();
 
 
     public static void main(String[] args) throws IOException, InterruptedException {
 
+        CmdLineParser parser = new CmdLineParser(new Server());
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.out.println(e.getMessage());
+            parser.printUsage(System.out);
+            return;
+        }
+
+        if (virtual) {
+            enableVirtualThreads();
+        }
+
+        shards = new RoomShards(shardCount);
+        senderPool = Executors.newScheduledThreadPool(Math.max(1, senders), Server::newThread);
+        timers = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        bans.start(timers);
+        RecentMessages.start(timers);
+        if (!logDir.isEmpty()) {
+            logs = new RoomLogs(logDir);
+        }
+        if (!indexDir.isEmpty()) {
+            index = new SearchIndex(indexDir);
+        }
+        if (!stateDir.isEmpty()) {
+            journal = StateJournal.recover(stateDir, snapshotEvery);
+        }
+
+        if (brokerPort > 0) {
+            new Broker().start(brokerPort);
+            if (backplaneAddress.isEmpty()) {
+                backplaneAddress = "localhost:" + brokerPort;
+            }
+        }
+
+        if (clusterPort > 0) {
+            cluster = new Cluster(clusterHost + ":" + clusterPort);
+            if (!backplaneAddress.isEmpty()) {
+                cluster.useBackplane(new BrokerBackplane(backplaneAddress, backplaneLinger, cluster::published));
+            }
+            ArrayList<String> peerList = new ArrayList<>();
+            for (String peer : peers.split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    peerList.add(peer.trim());
+                }
+            }
+            cluster.start(clusterPort, peerList);
+        } else if (!backplaneAddress.isEmpty()) {
+            System.out.println("A backplane is only used by a cluster, start with --cluster-port");
+        }
+        cluster.getRegistry().start(timers);
+        guestIds.fetch().join();
+
+        if (nio) {
+            runEventLoops();
+            return;
+        }
+
         ServerSocket serverSocket = null;
 
         try {
             serverSocket = new ServerSocket(port);
             System.out.println("Server is listening...");
 
-            ChatRoom mainHall = new ChatRoom("MainHall");
-            rooms.add(mainHall);
-
             while (true) {
                 Socket socket = serverSocket.accept();
                 System.out.println("Client Connected...");
 
-                int guestId = getNextAvailableId();
-
-                if (guestId == guestCount) {
-                    increaseGuestCount();
-                    guestId = guestCount;
-                }
-
-                String newGuest = "guest" + guestId;
-                userIdentities.add(newGuest);
-
-                ClientConnection client = new ClientConnection(socket, newGuest, bannedUsers);
-                userThreads.add(client);
+                ClientConnection client = new ClientConnection(socket, null);
+                addGuest(client);
                 client.start();
             }
         } catch (SocketException e) {
@@ -84,100 +288,131 @@ public class Server {
         }
     }
 
-    private static void closeAllThreads() throws InterruptedException {
-        for (ClientConnection connection : userThreads) {
-            connection.join();
+    private static void runEventLoops() throws IOException {
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server is listening with " + loops + " event loops...");
+
+            EventLoop[] eventLoops = new EventLoop[Math.max(1, loops)];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop("event-loop-" + i, maxBatch, linger);
+                eventLoops[i].start();
+            }
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("Client Connected...");
+
+                // Spread connections over the loops in turn
+                EventLoop loop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+
+                ClientConnection client = new ClientConnection(channel, loop, null);
+                addGuest(client);
+                loop.register(client);
+            }
+        } finally {
+            serverChannel.close();
         }
     }
 
-    public static void announce(String message) throws IOException {
-        for (ClientConnection cc : userThreads) {
-            DataOutputStream out = cc.getOutput();
-            Thread messageSender = new Thread(new ServerSendThread(out, message));
-            messageSender.start();
+    private static void enableVirtualThreads() {
+        try {
+            virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            System.out.println("Using virtual threads for clients");
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this JDK, using platform threads");
+            virtualBuilder = null;
+            unstarted = null;
         }
     }
 
-    public static ChatRoom getRoom(String roomId) {
-        for (ChatRoom room : rooms) {
-            if (room.getRoomId().equals(roomId)) {
-                return room;
+    // Creates an unstarted thread for per-client work, virtual when enabled
+    public static Thread newThread(Runnable task) {
+        if (unstarted != null) {
+            try {
+                return (Thread) unstarted.invoke(virtualBuilder, task);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
             }
         }
-        return null;
+        return new Thread(task);
     }
 
-    public static void createRoom(String roomId, String owner) {
-        synchronized (rooms) {
-            ChatRoom newRoom = new ChatRoom(roomId);
-            newRoom.setOwner(owner);
-            rooms.add(newRoom);
-        }
+    // Gives a new client the lowest free guest identity. An id whose name a client
+    // has taken with identitychange stays allocated, and is freed once they leave it.
+    private static void addGuest(ClientConnection client) {
+        String newGuest;
+        do {
+            newGuest = nextGuestIdentity();
+        } while (!identities.register(newGuest, client));
+        client.identity = newGuest;
+        cluster.register(client);
     }
 
-    public static void deleteRoom(String roomId) {
-        ChatRoom roomToBeDeleted = getRoom(roomId);
-        rooms.remove(rooms.indexOf(roomToBeDeleted));
+    private static String nextGuestIdentity() {
+        return GuestIds.PREFIX + guestIds.allocate();
     }
 
-    public static void increaseGuestCount() {
-        synchronized (guestCount) {
-            guestCount++;
+    private static void closeAllThreads() throws InterruptedException {
+        for (ClientConnection connection : identities.connections()) {
+            connection.join();
         }
     }
 
-    public static void decreaseGuestCount() {
-        synchronized (guestCount) {
-            guestCount--;
+    public static void announce(ServerMessage message) throws IOException {
+        try {
+            for (ClientConnection cc : identities.connections()) {
+                cc.sendShared(message);
+            }
+            // And to the clients of every other node, if they are reached through a backplane
+            cluster.publish(Backplane.EVERYONE, message, null);
+        } finally {
+            message.release();
         }
     }
 
-    public static void makeIdAvailable(Integer id) {
-        synchronized (nextLowestQueue) {
-            nextLowestQueue.add(id);
-        }
+    public static ChatRoom getRoom(String roomId) {
+        return rooms.get(roomId);
     }
 
-    public static int getNextAvailableId() {
-        synchronized (nextLowestQueue) {
-            if (!nextLowestQueue.isEmpty()) {
-                int nextLowest = nextLowestQueue.poll();
-                increaseGuestCount();
-                return nextLowest;
-            }
-            return guestCount;
+    // Returns false if the room id is already taken
+    public static boolean createRoom(String roomId, String owner) {
+        return rooms.create(roomId, owner) != null;
+    }
+
+    public static void deleteRoom(String roomId) {
+        ChatRoom room = rooms.get(roomId);
+        if (room != null && rooms.delete(roomId)) {
+            bans.clearRoom(roomId);
+            room.deleteLog();
         }
     }
 
-    public static void addBannedUser(ClientConnection clientConnection, Ban ban) {
-        synchronized (bannedUsers) {
-            bannedUsers.put(clientConnection, ban);
-            // update client threads with new list
-            for (ClientConnection cc : userThreads) {
-                cc.bannedUsers = bannedUsers;
-            }
+    // The best matches for the terms in the room, none when there is no search index
+    public static CompletableFuture<ServerMessage> search(String roomId, String terms) {
+        if (index == null || terms == null) {
+            return CompletableFuture.completedFuture(
+                    new ServerMessage().searchResultsMsg(roomId, new String[0], new String[0], new long[0]));
         }
+        return index.search(roomId, terms, searchResults);
     }
 
-    public static void removeBan(ClientConnection clientConnection) {
-        synchronized (bannedUsers) {
-            bannedUsers.remove(clientConnection);
-            // update client threads with new list
-            for (ClientConnection cc : userThreads) {
-                cc.bannedUsers = bannedUsers;
-            }
+    // Frees the guest number of an identity being given up, if it is a guest identity
+    public static void makeIdAvailable(String identity) {
+        int id = GuestIds.parse(identity);
+        if (id > 0) {
+            guestIds.release(id);
         }
     }
 
     public static ClientConnection getUserThread(String userId) {
-        synchronized (userThreads) {
-            for (ClientConnection clientConnection : userThreads) {
-                if (clientConnection.getIdentity().equals(userId)) {
-                    return clientConnection;
-                }
-            }
-        }
-        return null;
+        return identities.get(userId);
     }
 
 }
@@ -1,69 +1,251 @@
 /******************************************************************************
- * A factory class that is used to create JSON formatted messages, to be sent
- * as replies back to the clients over the TCP connection.
+ * A factory class that is used to create the messages sent as replies back
+ * to the clients over the TCP connection.
  *
- * E.g JSONObject ServerMessage
- * = new ServerMessage.newIdentityMsg(String former, String newIdentity)
+ * E.g ServerMessage newIdentity
+ * = new ServerMessage().newIdentityMsg(String former, String newIdentity)
+ *
+ * A message is encoded lazily into one Frame per Protocol, so a broadcast is
+ * only encoded once for all the JSON clients and once for all the BINARY ones.
+ *
+ * Room lists, room contents and search results can outgrow a single frame,
+ * so they are sent as a series of parts of at most PART_BYTES each. Every part
+ * but the last is marked with more, Clients that do not know about parts see
+ * several replies.
+ * Shared lists, such as the cached replies of RoomDirectory and ChatRoom, keep
+ * the frames of all their parts per Protocol.
+ *
+ * Chat messages and room changes broadcast to a room are its events, each
+ * carrying its number in the room as seq so Clients can tell one was missed.
+ * Chat messages name their room, so a number is never taken for another room's.
+ * Only clients that asked for numbered events in hello are sent the seq, so
+ * each event is encoded at most once per Protocol with it and once without.
  *
  * @author Rem, 2015
  ******************************************************************************/
 
 package Server;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class ServerMessage {
 
-    JSONObject jsonMessage;
+    // Kept well under writeUTF's 64KB even if every character needs escaping
+    private static final int PART_BYTES = 32 * 1024;
+
+    // Only the fields used by the message's type are set
+    String type;
+    String identity;
+    String former;
+    String roomId;
+    String content;
+    String owner;
+    String protocol;
+    String compression;
+    String[] identities;
+    String[] roomIds;
+    int[] counts;
+    String[] contents;  // search results: what identities[i] said at times[i]
+    long[] times;
+    int from;           // the entries of identities or roomIds this message carries
+    int to;
+    boolean more;       // further parts of the same reply follow
+    long seq;           // a room event's number in its room, 0 if it is not numbered
+
+    // Indexed by variant(), partitioned replies are never numbered
+    private Frame[] frames = new Frame[Protocol.values().length * 2];
+    private Frame[][] partFrames = new Frame[Protocol.values().length][];
+
+    public ServerMessage chatMsg(String roomId, String identity, String content) {
+        this.type = "message";
+        this.roomId = roomId;
+        this.identity = identity;
+        this.content = content;
+        return this;
+    }
+
+    public ServerMessage newIdentityMsg(String former, String newIdentity) {
+        this.type = "newidentity";
+        this.former = former;
+        this.identity = newIdentity;
+        return this;
+    }
+
+    public ServerMessage roomChangeMsg(String identity, String former, String newRoomId) {
+        this.type = "roomchange";
+        this.identity = identity;
+        this.former = former;
+        this.roomId = newRoomId;
+        return this;
+    }
+
+    // Where a room's numbering of its events is up to, seq is the number of the next one
+    public ServerMessage roomSyncMsg(String roomId, long seq) {
+        this.type = "roomsync";
+        this.roomId = roomId;
+        this.seq = seq;
+        return this;
+    }
+
+    public ServerMessage roomContentsMsg(String roomId, String owner, String[] identities) {
+        this.type = "roomcontents";
+        this.roomId = roomId;
+        this.owner = owner;
+        this.identities = identities;
+        this.to = identities.length;
+        return this;
+    }
 
-    public String newIdentityMsg(String former, String newIdentity) {
-        jsonMessage = new JSONObject();
-        jsonMessage.put("type", "newidentity");
-        jsonMessage.put("former", former);
-        jsonMessage.put("identity", newIdentity);
-        return jsonMessage.toString();
+    // The best matches of a search in the room, best first
+    public ServerMessage searchResultsMsg(String roomId, String[] identities, String[] contents, long[] times) {
+        this.type = "searchresults";
+        this.roomId = roomId;
+        this.identities = identities;
+        this.contents = contents;
+        this.times = times;
+        this.to = identities.length;
+        return this;
     }
 
-    public String roomChangeMsg(String identity, String former, String newRoomId) {
-        jsonMessage = new JSONObject();
-        jsonMessage.put("type", "roomchange");
-        jsonMessage.put("identity", identity);
-        jsonMessage.put("former", former);
-        jsonMessage.put("roomid", newRoomId);
-        return jsonMessage.toString();
+    // roomIds[i] currently holds counts[i] users
+    public ServerMessage roomListMsg(String[] roomIds, int[] counts) {
+        this.type = "roomlist";
+        this.roomIds = roomIds;
+        this.counts = counts;
+        this.to = roomIds.length;
+        return this;
     }
 
-    public String roomContentsMsg(String roomId, String owner, String[] identities) {
-        jsonMessage = new JSONObject();
-        JSONArray identyList = new JSONArray();
-        jsonMessage.put("type", "roomcontents");
-        jsonMessage.put("roomid", roomId);
+    // Reply to a client's hello, always sent as JSON since the client has not switched yet
+    public ServerMessage helloMsg(Protocol protocol, boolean deflate) {
+        this.type = "hello";
+        this.protocol = protocol.wireName;
+        this.compression = deflate ? "deflate" : null;
+        return this;
+    }
 
-        JSONArray jsonIdentities = new JSONArray();
-        for (String identity : identities) {
-            jsonIdentities.add(identity);
+    public String getType() {
+        return type;
+    }
+
+    // Where a room's numbering is up to, which only clients numbering its events are sent
+    public boolean isRoomSync() {
+        return "roomsync".equals(type);
+    }
+
+    // Whether the message is a list that may need sending in parts
+    public boolean isPartitioned() {
+        return identities != null || roomIds != null;
+    }
+
+    public int entries() {
+        return identities != null ? identities.length : roomIds.length;
+    }
+
+    // The part starting at entry from that fits in one frame, the whole message if it all fits
+    public ServerMessage part(int from) {
+        String[] names = identities != null ? identities : roomIds;
+        int bytes = 0;
+        int to = from;
+        while (to < names.length) {
+            // Worst case escaping plus the quotes, separators and a roomlist count
+            int size = names[to].length() * 6 + 32 + (contents != null ? contents[to].length() * 6 + 32 : 0);
+            if (to > from && bytes + size > PART_BYTES) {
+                break;
+            }
+            bytes += size;
+            to++;
+        }
+        if (from == 0 && to == names.length) {
+            return this;
         }
 
-        jsonMessage.put("identities", jsonIdentities);
-        jsonMessage.put("owner", owner);
-        return jsonMessage.toString();
+        ServerMessage part = new ServerMessage();
+        part.type = type;
+        part.roomId = roomId;
+        part.owner = owner;
+        part.identities = identities;
+        part.roomIds = roomIds;
+        part.counts = counts;
+        part.contents = contents;
+        part.times = times;
+        part.from = from;
+        part.to = to;
+        part.more = to < names.length;
+        return part;
     }
 
-    public String roomListMsg(ArrayList<JSONObject> rooms) {
-        jsonMessage = new JSONObject();
-        jsonMessage.put("type", "roomlist");
+    // A new frame for a single recipient, the caller owns its reference
+    public Frame encode(Protocol protocol, boolean numbered) throws IOException {
+        if (protocol == Protocol.BINARY) {
+            return BinaryCodec.encode(this, numbered);
+        }
+        return JsonCodec.encode(this, protocol == Protocol.LONG_JSON, numbered);
+    }
 
-        JSONArray roomList = new JSONArray();
-        for (JSONObject jo : rooms) {
-            roomList.add(jo);
+    // The frame shared by every recipient on this protocol, valid until release()
+    public synchronized Frame frame(Protocol protocol, boolean numbered) throws IOException {
+        int i = variant(protocol, numbered);
+        if (frames[i] == null) {
+            frames[i] = encode(protocol, numbered);
         }
+        return frames[i];
+    }
 
-        jsonMessage.put("rooms", roomList);
+    private static int variant(Protocol protocol, boolean numbered) {
+        return protocol.ordinal() * 2 + (numbered ? 1 : 0);
+    }
 
-        return jsonMessage.toString();
+    // The shared frames of every part on this protocol, valid until release()
+    public synchronized Frame[] partFrames(Protocol protocol) throws IOException {
+        int i = protocol.ordinal();
+        if (partFrames[i] == null) {
+            ArrayList<Frame> encoded = new ArrayList<>();
+            int from = 0;
+            do {
+                ServerMessage part = part(from);
+                encoded.add(part.encode(protocol, false));
+                from = part.to;
+            } while (from < entries());
+            partFrames[i] = encoded.toArray(new Frame[encoded.size()]);
+        }
+        return partFrames[i];
+    }
+
+    // Bytes held by the shared frames encoded so far
+    public synchronized int encodedBytes() {
+        int bytes = 0;
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null) {
+                bytes += frames[i].length();
+            }
+        }
+        for (int i = 0; i < partFrames.length; i++) {
+            if (partFrames[i] != null) {
+                for (Frame frame : partFrames[i]) {
+                    bytes += frame.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    public synchronized void release() {
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null) {
+                frames[i].release();
+                frames[i] = null;
+            }
+        }
+        for (int i = 0; i < partFrames.length; i++) {
+            if (partFrames[i] != null) {
+                for (Frame frame : partFrames[i]) {
+                    frame.release();
+                }
+                partFrames[i] = null;
+            }
+        }
     }
 
 }
@@ -0,0 +1,375 @@
+/******************************************************************************
+ * Keeps the rooms, their owners and the bans across restarts. Every change to
+ * them is appended to a write-ahead log as a small binary record, and every
+ * so often the whole state is written out as a snapshot, so a restart only
+ * loads the latest snapshot and replays the records logged after it.
+ *
+ * Changes are queued by the thread making them and written by the journal's
+ * own thread, which writes whatever has queued up with one flush, so nothing
+ * waits on the disk. A record is its length as an int, a CRC32 of it and then
+ * the type and fields, and replay stops at the first record that is cut short or does
+ * not match its CRC, as the last one can be after a crash.
+ *
+ * The log is kept in generations. Taking a snapshot starts generation n+1 of
+ * the log and then writes the state to snapshot n+1, which may already show
+ * some of the changes logged in generation n+1. Replaying a record is the
+ * same as making the change again, so seeing one twice does no harm. Once the
+ * snapshot is complete the older generations are deleted.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+public class StateJournal implements Runnable {
+
+    private static final int SNAPSHOT_MAGIC = 0x52454d53;
+
+    // A type, then at most two writeUTF strings and two longs
+    private static final int MAX_RECORD = 1 + 2 * (2 + 65535) + 16;
+
+    // Record types
+    private static final int CREATE = 1;    // roomId
+    private static final int DELETE = 2;    // roomId, its bans go with it
+    private static final int OWNER = 3;     // roomId, owner
+    private static final int BAN = 4;       // roomId, identity, time of ban, duration
+    private static final int UNBAN = 5;     // roomId, identity
+
+    private final File dir;
+    private final long snapshotEvery;
+    private final LinkedBlockingQueue<byte[]> records = new LinkedBlockingQueue<>();
+
+    // Only touched by the journal's thread
+    private long generation;
+    private DataOutputStream wal;
+    private long logged = 0;
+
+    private StateJournal(File dir, long snapshotEvery, long generation) throws IOException {
+        this.dir = dir;
+        this.snapshotEvery = snapshotEvery;
+        this.generation = generation;
+        this.wal = open(generation);
+    }
+
+    // Loads the latest snapshot and the log after it into the Server, then starts journaling
+    public static StateJournal recover(String path, long snapshotEvery) throws IOException {
+        File dir = new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the state directory " + path);
+        }
+        long start = System.nanoTime();
+
+        // The newest snapshot that was completed, if any
+        long snapshot = -1;
+        for (long generation : generations(dir, "snapshot.")) {
+            snapshot = Math.max(snapshot, generation);
+        }
+        if (snapshot >= 0) {
+            loadSnapshot(new File(dir, name("snapshot.", snapshot)));
+        }
+
+        long replayed = 0;
+        long last = Math.max(snapshot, 0);
+        for (long generation : generations(dir, "wal.")) {
+            if (generation >= Math.max(snapshot, 0)) {
+                replayed += replay(new File(dir, name("wal.", generation)));
+                last = Math.max(last, generation);
+            }
+        }
+        System.out.println("Recovered " + (Server.rooms.list().size() - 1) + " rooms and "
+                + Server.bans.all().size() + " bans, replaying " + replayed + " records, in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+
+        // Carry on in a new generation, with a snapshot of what was recovered if it took any replaying
+        StateJournal journal = new StateJournal(dir, snapshotEvery, last + 1);
+        Thread writer = new Thread(journal, "state-journal");
+        writer.setDaemon(true);
+        writer.start();
+        if (replayed > 0) {
+            journal.snapshotAsync(last + 1);
+        }
+        return journal;
+    }
+
+    //  CHANGES, CALLED FROM ANY THREAD ONCE RECOVERED
+
+    public void roomCreated(String roomId) {
+        queue(CREATE, roomId, null, 0, 0);
+    }
+
+    public void roomDeleted(String roomId) {
+        queue(DELETE, roomId, null, 0, 0);
+    }
+
+    public void ownerChanged(String roomId, String owner) {
+        queue(OWNER, roomId, owner, 0, 0);
+    }
+
+    public void banned(Ban ban) {
+        queue(BAN, ban.getRoomId(), ban.getUserId(), ban.getTimeOfBan(), ban.getDuration());
+    }
+
+    public void unbanned(String roomId, String identity) {
+        queue(UNBAN, roomId, identity, 0, 0);
+    }
+
+    private void queue(int type, String roomId, String identity, long time, long duration) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(roomId);
+            if (identity != null) {
+                out.writeUTF(identity);
+            }
+            if (type == BAN) {
+                out.writeLong(time);
+                out.writeLong(duration);
+            }
+            records.add(bytes.toByteArray());
+        } catch (IOException e) {
+            System.out.println("Error journaling a change to " + roomId);
+            e.printStackTrace();
+        }
+    }
+
+    //  THE JOURNAL'S THREAD
+
+    @Override
+    public void run() {
+        ArrayList<byte[]> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(records.take());
+                records.drainTo(batch);
+                CRC32 crc = new CRC32();
+                for (byte[] record : batch) {
+                    crc.reset();
+                    crc.update(record, 0, record.length);
+                    wal.writeInt(record.length);
+                    wal.writeInt((int) crc.getValue());
+                    wal.write(record);
+                }
+                wal.flush();
+                logged += batch.size();
+                batch.clear();
+
+                if (logged >= snapshotEvery) {
+                    rotate();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Error writing the state journal");
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+    }
+
+    // Starts the next generation of the log and snapshots the state into it
+    private void rotate() throws IOException {
+        wal.close();
+        generation++;
+        wal = open(generation);
+        logged = 0;
+        snapshotAsync(generation);
+    }
+
+    private void snapshotAsync(long generation) {
+        Thread snapshot = new Thread(() -> {
+            try {
+                writeSnapshot(generation);
+            } catch (IOException e) {
+                System.out.println("Error writing snapshot " + generation);
+                e.printStackTrace();
+            }
+        }, "state-snapshot");
+        snapshot.setDaemon(true);
+        snapshot.start();
+    }
+
+    // Written to a temporary file first, so a snapshot that exists is always complete
+    private void writeSnapshot(long generation) throws IOException {
+        File tmp = new File(dir, name("snapshot.", generation) + ".tmp");
+        long now = System.currentTimeMillis() / 1000;
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+
+            ArrayList<ChatRoom> rooms = Server.rooms.list();
+            out.writeInt(rooms.size() - 1);
+            for (ChatRoom room : rooms) {
+                if (room != Server.rooms.mainHall()) {
+                    out.writeUTF(room.getRoomId());
+                    out.writeUTF(room.getOwner() == null ? "" : room.getOwner());
+                }
+            }
+
+            ArrayList<Ban> bans = new ArrayList<>();
+            for (Ban ban : Server.bans.all()) {
+                if (ban.isBanned(now)) {
+                    bans.add(ban);
+                }
+            }
+            out.writeInt(bans.size());
+            for (Ban ban : bans) {
+                out.writeUTF(ban.getRoomId());
+                out.writeUTF(ban.getUserId());
+                out.writeLong(ban.getTimeOfBan());
+                out.writeLong(ban.getDuration());
+            }
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, name("snapshot.", generation)).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // Everything older is covered by it now
+        for (String prefix : new String[] {"snapshot.", "wal."}) {
+            for (long older : generations(dir, prefix)) {
+                if (older < generation) {
+                    new File(dir, name(prefix, older)).delete();
+                }
+            }
+        }
+    }
+
+    //  RECOVERY, BEFORE ANYTHING IS JOURNALED
+
+    private static void loadSnapshot(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            int rooms = in.readInt();
+            for (int i = 0; i < rooms; i++) {
+                String roomId = in.readUTF();
+                Server.rooms.create(roomId, in.readUTF());
+            }
+            int bans = in.readInt();
+            for (int i = 0; i < bans; i++) {
+                String roomId = in.readUTF();
+                String identity = in.readUTF();
+                Server.bans.restore(new Ban(in.readLong(), in.readLong(), roomId, identity));
+            }
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Snapshot is incomplete: " + file);
+            }
+        }
+    }
+
+    // Makes each change in the log again, returns how many there were
+    private static long replay(File file) throws IOException {
+        long replayed = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            while (true) {
+                byte[] record;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    if (length < 1 || length > MAX_RECORD) {
+                        System.out.println("Stopped replaying " + file + " at a damaged record");
+                        break;
+                    }
+                    record = new byte[length];
+                    checksum = in.readInt();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, record.length);
+                if ((int) crc.getValue() != checksum) {
+                    System.out.println("Stopped replaying " + file + " at a damaged record");
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(record)));
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    // Replaying a record twice leaves things as replaying it once did
+    private static void apply(DataInputStream record) throws IOException {
+        int type = record.readUnsignedByte();
+        String roomId = record.readUTF();
+        switch (type) {
+            case CREATE:
+                Server.rooms.create(roomId, "");
+                break;
+            case DELETE:
+                Server.rooms.delete(roomId);
+                Server.bans.clearRoom(roomId);
+                break;
+            case OWNER:
+                ChatRoom room = Server.rooms.get(roomId);
+                String owner = record.readUTF();
+                if (room != null && room != Server.rooms.mainHall()) {
+                    Server.rooms.setOwner(room, owner);
+                }
+                break;
+            case BAN:
+                String identity = record.readUTF();
+                Server.bans.restore(new Ban(record.readLong(), record.readLong(), roomId, identity));
+                break;
+            case UNBAN:
+                Server.bans.unban(roomId, record.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private DataOutputStream open(long generation) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, name("wal.", generation)), true), 64 * 1024));
+    }
+
+    private static String name(String prefix, long generation) {
+        return prefix + String.format("%012d", generation);
+    }
+
+    // The generations of the files with this prefix, in order
+    private static long[] generations(File dir, String prefix) {
+        String[] names = dir.list();
+        ArrayList<Long> found = new ArrayList<>();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].startsWith(prefix) && !names[i].endsWith(".tmp")) {
+                try {
+                    found.add(Long.parseLong(names[i].substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        long[] generations = new long[found.size()];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = found.get(i);
+        }
+        Arrays.sort(generations);
+        return generations;
+    }
+
+}
@@ -0,0 +1,68 @@
+/******************************************************************************
+ * The Backplane topics this node's clients are interested in. A room's topic
+ * is subscribed to when the first of them heads into it, before their node
+ * asks the room's home to let them in, so nothing the room says after they
+ * enter is missed.
+ *
+ * The topic is only unsubscribed from LINGER milliseconds after the last of
+ * them has left, since broadcasts the home made before they left may still be
+ * on their way through the broker, and a client coming back in the meantime
+ * keeps the subscription.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class Subscriptions {
+
+    private static final long LINGER = 1000;
+
+    private final Backplane backplane;
+
+    // Guarded by this
+    private final HashMap<String, Integer> interested = new HashMap<>();
+    private final HashMap<String, CompletableFuture<Void>> subscribed = new HashMap<>();
+    private final HashMap<String, Object> lingering = new HashMap<>();
+
+    public Subscriptions(Backplane backplane) {
+        this.backplane = backplane;
+    }
+
+    // Completes once the topic is subscribed to
+    public synchronized CompletableFuture<Void> acquire(String topic) {
+        interested.merge(topic, 1, Integer::sum);
+        return subscribed.computeIfAbsent(topic, backplane::subscribe);
+    }
+
+    public synchronized void release(String topic) {
+        Integer count = interested.get(topic);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            interested.put(topic, count - 1);
+            return;
+        }
+        interested.remove(topic);
+        Object release = new Object();
+        lingering.put(topic, release);
+        Server.timers.schedule(() -> expire(topic, release), LINGER, TimeUnit.MILLISECONDS);
+    }
+
+    // Only the latest release of a topic unsubscribes, and only if no one came back since
+    private synchronized void expire(String topic, Object release) {
+        if (lingering.get(topic) != release) {
+            return;
+        }
+        lingering.remove(topic);
+        if (!interested.containsKey(topic) && subscribed.remove(topic) != null) {
+            backplane.unsubscribe(topic);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/******************************************************************************
+ * Compilation:  javac -cp 'lib/*' -d out Server/*.java Client/*.java bench/Server/BroadcastBench.java
+ * Execution:    java -cp 'out:lib/*' Server.BroadcastBench port members rounds
+ *
+ * Load generator for a running Server. Holds members connections in the
+ * MainHall, each drained by its own thread so its socket never fills, then
+ * times a probe's chat message from the write until its own copy of the
+ * broadcast is read back, and reports the median and 99th percentile.
+ *
+ * bench/virtual.sh starts the Server with and without --virtual, runs this
+ * against it and reads the Server's threads and resident memory off /proc.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import Client.ClientMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class BroadcastBench {
+
+    // Probe messages sent before timing starts
+    private static final int WARMUP = 10;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = Integer.parseInt(args[0]);
+        int members = Integer.parseInt(args[1]);
+        int rounds = Integer.parseInt(args[2]);
+        ClientMessage client = new ClientMessage();
+
+        ArrayList<Socket> held = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            Socket socket = new Socket("localhost", port);
+            new DataOutputStream(socket.getOutputStream()).writeUTF(client.joinRoomRequest("MainHall"));
+            held.add(socket);
+            // Let the Server accept in steps rather than overflow its backlog
+            if (i % 100 == 99) {
+                Thread.sleep(20);
+            }
+        }
+        Thread.sleep(3000);
+        for (Socket socket : held) {
+            Thread drain = new Thread(() -> {
+                try {
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) >= 0) {
+                    }
+                } catch (IOException e) {
+                    // The Server went away, nothing more to drain
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+        }
+
+        Socket probe = new Socket("localhost", port);
+        DataOutputStream out = new DataOutputStream(probe.getOutputStream());
+        DataInputStream in = new DataInputStream(probe.getInputStream());
+        out.writeUTF(client.joinRoomRequest("MainHall"));
+        Thread.sleep(1000);
+        while (in.available() > 0) {
+            in.readUTF();
+        }
+
+        long[] latencies = new long[rounds];
+        for (int round = 0; round < rounds + WARMUP; round++) {
+            String tag = "probe" + round;
+            long start = System.nanoTime();
+            out.writeUTF(client.chatMessage(tag));
+            while (!in.readUTF().contains(tag)) {
+            }
+            if (round >= WARMUP) {
+                latencies[round - WARMUP] = System.nanoTime() - start;
+            }
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("members=%d  broadcast round trip p50=%.2f ms p99=%.2f ms%n", members,
+                latencies[rounds / 2] / 1e6, latencies[rounds * 99 / 100] / 1e6);
+        System.exit(0);
+    }
+
+}
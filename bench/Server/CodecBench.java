@@ -0,0 +1,98 @@
+/******************************************************************************
+ * Compilation:  javac -cp 'lib/*' -d out Server/*.java Client/*.java bench/Server/CodecBench.java
+ * Execution:    java -cp 'out:lib/*' Server.CodecBench
+ *
+ * Time and allocation per operation of one chat request in and its broadcast
+ * out, the way the Server did it with json-simple (readUTF, JSONValue.parse,
+ * a new JSONObject and toJSONString) against JsonCodec decoding into a reused
+ * Request and encoding a ServerMessage into a pooled Frame.
+ *
+ * Five warm up rounds and the best of five measured rounds, allocation from
+ * the JVM's ThreadMXBean.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+public class CodecBench {
+
+    private static final int ITERATIONS = 1_000_000;
+    private static final String CONTENT = "hello everyone in the room, how is it going today?";
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;
+
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new DataOutputStream(wire).writeUTF("{\"type\":\"message\",\"content\":\"" + CONTENT + "\"}");
+        byte[] frame = wire.toByteArray();
+        Request request = new Request();
+
+        measure("decode json-simple", () -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+            JSONObject message = (JSONObject) JSONValue.parse(in.readUTF());
+            sink += message.get("type").toString().length() + message.get("content").toString().length();
+        });
+        measure("decode JsonCodec", () -> {
+            JsonCodec.decode(frame, 2, frame.length - 2, request);
+            sink += request.content.length();
+        });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        measure("encode json-simple", () -> {
+            JSONObject message = new JSONObject();
+            message.put("type", "message");
+            message.put("roomid", "MainHall");
+            message.put("identity", "guest42");
+            message.put("content", CONTENT);
+            out.reset();
+            new DataOutputStream(out).writeUTF(message.toJSONString());
+            sink += out.size();
+        });
+        measure("encode JsonCodec", () -> {
+            Frame encoded = JsonCodec.encode(new ServerMessage().chatMsg("MainHall", "guest42", CONTENT), false, false);
+            sink += encoded.length();
+            encoded.release();
+        });
+        System.out.println("(" + sink % 7 + ")");
+    }
+
+    private static void measure(String name, Op op) throws IOException {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < ITERATIONS; i++) {
+                op.run();
+            }
+        }
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                op.run();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }
+        System.out.printf("%-24s %8.1f ns/op %8.1f B/op%n", name,
+                (double) best / ITERATIONS, (double) allocated / ITERATIONS);
+    }
+
+}
@@ -0,0 +1,87 @@
+/******************************************************************************
+ * Compilation:  javac -cp 'lib/*' -d out Server/*.java Client/*.java bench/Server/DeflateBench.java
+ * Execution:    java -cp 'out:lib/*' Server.DeflateBench
+ *
+ * Sends a stream of 2000 chat broadcasts to rooms of 10, 100 and 1000
+ * members, each member with its own Compressor as a connection would have,
+ * at the fastest and the default deflate level. Reports the bytes on the
+ * wire per member per message, plain and deflated, and the CPU spent
+ * deflating per member and per broadcast. Each case runs twice, the first
+ * as a warm up.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+public class DeflateBench {
+
+    private static final int MESSAGES = 2000;
+
+    // Replies shorter than this go out plain, as with --compress-threshold
+    private static final int THRESHOLD = 64;
+
+    private static final String WORDS = "the a to of and is in it you that for on was with he as I his they be at "
+            + "one have this from or had by hot word but what some we can out other were all there when up use your "
+            + "how said an each she which do their time if will way about many then them write would like so these "
+            + "her long make thing see him two has look more day could go come did number sound no most people my "
+            + "over know water than call";
+
+    public static void main(String[] args) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        String[] words = WORDS.split(" ");
+        Random random = new Random(42);
+        ServerMessage[] stream = new ServerMessage[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder content = new StringBuilder();
+            int length = 3 + random.nextInt(15);
+            for (int w = 0; w < length; w++) {
+                content.append(w == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+            }
+            stream[i] = new ServerMessage().chatMsg("MainHall", "guest" + random.nextInt(20), content.toString());
+            stream[i].seq = i + 1;
+        }
+
+        for (int level : new int[] {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION}) {
+            for (int members : new int[] {10, 100, 1000}) {
+                for (int run = 0; run < 2; run++) {
+                    Compressor[] compressors = new Compressor[members];
+                    for (int m = 0; m < members; m++) {
+                        compressors[m] = new Compressor(level, THRESHOLD);
+                    }
+                    long plain = 0;
+                    long wire = 0;
+                    long start = threads.getCurrentThreadCpuTime();
+                    for (ServerMessage message : stream) {
+                        Frame frame = message.encode(Protocol.JSON, true);
+                        plain += (long) frame.length() * members;
+                        for (Compressor compressor : compressors) {
+                            Frame record = compressor.wrap(frame.retain());
+                            wire += record.length();
+                            record.release();
+                        }
+                        frame.release();
+                    }
+                    long cpu = threads.getCurrentThreadCpuTime() - start;
+                    for (Compressor compressor : compressors) {
+                        compressor.end();
+                    }
+                    if (run == 1) {
+                        System.out.printf("level %2d, %4d members: %5.1f B/msg plain, %5.1f B/msg deflated (%.0f%%), "
+                                        + "%6.2f us CPU per member per msg, %8.1f us per broadcast%n",
+                                level, members, (double) plain / members / MESSAGES,
+                                (double) wire / members / MESSAGES, 100.0 * wire / plain,
+                                cpu / 1e3 / members / MESSAGES, cpu / 1e3 / MESSAGES);
+                    }
+                }
+            }
+        }
+    }
+
+}
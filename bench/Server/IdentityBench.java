@@ -0,0 +1,127 @@
+/******************************************************************************
+ * Compilation:  javac -cp 'lib/*' -d out Server/*.java Client/*.java bench/Server/IdentityBench.java
+ * Execution:    java -cp 'out:lib/*' Server.IdentityBench
+ *
+ * 100,000 connected users, looked up by identity, checked for an identity in
+ * use and renamed, the way the Server did it with its CopyOnWriteArrayLists
+ * of identities and connections against IdentityDirectory. The old ways are
+ * copied from getUserThread, isUsernameInUse and the identitychange handling
+ * as they were. Best of five rounds after three warm up rounds.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class IdentityBench {
+
+    private static final int USERS = 100_000;
+
+    // The old scans are too slow to run as often as the directory
+    private static final int OLD_ITERATIONS = 200;
+    private static final int NEW_ITERATIONS = 1_000_000;
+
+    private static long sink;
+
+    private interface Op {
+        void run(int i);
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        int[] picks = new int[1 << 16];
+        for (int i = 0; i < picks.length; i++) {
+            picks[i] = random.nextInt(USERS);
+        }
+
+        CopyOnWriteArrayList<String> userIdentities = new CopyOnWriteArrayList<>();
+        ArrayList<ClientConnection> connections = new ArrayList<>();
+        IdentityDirectory directory = new IdentityDirectory();
+        for (int i = 0; i < USERS; i++) {
+            ClientConnection connection = new RemoteClient("node", i, "user" + i);
+            userIdentities.add("user" + i);
+            connections.add(connection);
+            directory.register("user" + i, connection);
+        }
+        CopyOnWriteArrayList<ClientConnection> userThreads = new CopyOnWriteArrayList<>(connections);
+
+        measure("old getUserThread", OLD_ITERATIONS, i -> {
+            String identity = "user" + picks[i & 0xFFFF];
+            synchronized (userThreads) {
+                for (ClientConnection connection : userThreads) {
+                    if (connection.getIdentity().equals(identity)) {
+                        sink += connection.serial;
+                        break;
+                    }
+                }
+            }
+        });
+        measure("new IdentityDirectory.get", NEW_ITERATIONS,
+                i -> sink += directory.get("user" + picks[i & 0xFFFF]).serial);
+
+        measure("old isUsernameInUse", OLD_ITERATIONS, i -> {
+            String identity = "free" + picks[i & 0xFFFF];
+            for (int j = 0; j < userIdentities.size(); j++) {
+                if (userIdentities.get(j).contains(identity)) {
+                    sink++;
+                    break;
+                }
+            }
+        });
+        measure("new IdentityDirectory.contains", NEW_ITERATIONS, i -> {
+            if (directory.contains("free" + picks[i & 0xFFFF])) {
+                sink++;
+            }
+        });
+
+        measure("old rename (check, scan, set)", OLD_ITERATIONS, i -> {
+            int user = picks[i & 0xFFFF];
+            String former = userIdentities.get(user);
+            String next = former.startsWith("user") ? "nick" + user : "user" + user;
+            for (int j = 0; j < userIdentities.size(); j++) {
+                if (userIdentities.get(j).contains(next)) {
+                    sink++;
+                    break;
+                }
+            }
+            for (int j = 0; j < userIdentities.size(); j++) {
+                if (userIdentities.get(j).equals(former)) {
+                    userIdentities.set(j, next);
+                    break;
+                }
+            }
+        });
+        measure("new IdentityDirectory.rename", NEW_ITERATIONS, i -> {
+            int user = picks[i & 0xFFFF];
+            ClientConnection connection = connections.get(user);
+            String former = connection.getIdentity();
+            String next = former.startsWith("user") ? "nick" + user : "user" + user;
+            if (directory.rename(former, next, connection)) {
+                connection.identity = next;
+            }
+        });
+        System.out.println("(" + sink % 7 + ")");
+    }
+
+    private static void measure(String name, int iterations, Op op) {
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < iterations; i++) {
+                op.run(i);
+            }
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                op.run(i);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-32s %12.1f ns/op%n", name, (double) best / iterations);
+    }
+
+}
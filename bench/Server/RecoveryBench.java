@@ -0,0 +1,91 @@
+/******************************************************************************
+ * Compilation:  javac -cp 'lib/*' -d out Server/*.java Client/*.java bench/Server/RecoveryBench.java
+ * Execution:    java -cp 'out:lib/*' Server.RecoveryBench write dir rooms
+ *               java -cp 'out:lib/*' Server.RecoveryBench recover dir
+ *
+ * Times how long a restart takes to get the rooms, owners and bans back
+ * from a StateJournal. write journals rooms new rooms, each with an owner,
+ * and a ban on every tenth, with no snapshot taken, then waits for the log
+ * to reach the disk. recover times StateJournal.recover in a fresh JVM and
+ * waits for the snapshot it takes after replaying, so that recovering the
+ * same directory again loads the snapshot instead of the log.
+ *
+ * bench/recovery.sh runs both for several numbers of rooms.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+
+public class RecoveryBench {
+
+    // Owners are shared between rooms, as in a chat with many more rooms than users
+    private static final int OWNERS = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Server.shards = new RoomShards(4);
+        File dir = new File(args[1]);
+        if (args[0].equals("write")) {
+            int rooms = Integer.parseInt(args[2]);
+            Server.journal = StateJournal.recover(dir.getPath(), Long.MAX_VALUE);
+            for (int i = 0; i < rooms; i++) {
+                Server.rooms.create("room" + i, "owner" + (i % OWNERS));
+                if (i % 10 == 0) {
+                    Server.bans.ban("room" + i, "user" + i, 3600);
+                }
+            }
+            settle(dir, "wal.");
+            System.out.printf("Journaled %d rooms, %d KB of log%n", rooms, size(dir, "wal.") / 1024);
+        } else {
+            boolean fromLog = size(dir, "snapshot.") == 0;
+            long logged = size(dir, fromLog ? "wal." : "snapshot.");
+            long start = System.nanoTime();
+            Server.journal = StateJournal.recover(dir.getPath(), Long.MAX_VALUE);
+            long took = System.nanoTime() - start;
+            System.out.printf("Recovered from a %d KB %s in %d ms%n", logged / 1024,
+                    fromLog ? "log" : "snapshot", took / 1000000);
+            if (fromLog) {
+                settle(dir, "snapshot.");
+            }
+        }
+        System.exit(0);
+    }
+
+    // Waits until the files with this prefix exist and have stopped growing
+    private static void settle(File dir, String prefix) throws InterruptedException {
+        long last = -1;
+        while (true) {
+            Thread.sleep(500);
+            long size = size(dir, prefix);
+            if (size > 0 && size == last && !pending(dir)) {
+                return;
+            }
+            last = size;
+        }
+    }
+
+    private static boolean pending(File dir) {
+        String[] names = dir.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].endsWith(".tmp")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long size(File dir, String prefix) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().startsWith(prefix) && !files[i].getName().endsWith(".tmp")) {
+                size += files[i].length();
+            }
+        }
+        return size;
+    }
+
+}
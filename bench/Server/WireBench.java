@@ -0,0 +1,191 @@
+/******************************************************************************
+ * Compilation:  javac -cp 'lib/*' -d out Server/*.java Client/*.java bench/Server/WireBench.java
+ * Execution:    java -cp 'out:lib/*' Server.WireBench
+ *
+ * Compares the JSON and BINARY protocols on the same mix of messages: the
+ * requests a Client sends, decoded by the Server's JsonCodec and BinaryCodec,
+ * and the replies the Server sends, encoded by them and decoded again by the
+ * Client, with json-simple for JSON and its BinaryCodec for BINARY. Reports
+ * the bytes on the wire and the time per message, averaged over the mix.
+ *
+ * Names are interned by BINARY, the DEFINE frames each connection is sent once
+ * per name are left out of the bytes, as they are for a long lived connection.
+ *
+ * @author Rem, 2015
+ ******************************************************************************/
+
+package Server;
+
+import Client.ClientMessage;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class WireBench {
+
+    private static final int ITERATIONS = 500_000;
+    private static final String CONTENT = "hello everyone in the room, how is it going today?";
+
+    private static long sink;
+
+    private interface Op {
+        void run(int i) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ClientMessage client = new ClientMessage();
+        String[] requests = {
+                client.chatMessage(CONTENT),
+                client.chatMessage("brb"),
+                client.chatMessage(CONTENT + " " + CONTENT),
+                client.joinRoomRequest("jolly"),
+                client.whoRequest("jolly"),
+                client.listRequest(),
+                client.newIdentityRequest("rem"),
+                client.kickRequest("jolly", "60", "guest7")
+        };
+
+        String[] members = new String[20];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = "guest" + (i + 1);
+        }
+        String[] roomIds = {"MainHall", "jolly", "comp2", "lobby", "games", "music", "news", "help", "dev", "ops"};
+        int[] counts = {120, 20, 8, 15, 3, 40, 9, 1, 12, 6};
+        ServerMessage[] replies = {
+                numbered(new ServerMessage().chatMsg("jolly", "guest42", CONTENT)),
+                numbered(new ServerMessage().chatMsg("jolly", "guest7", "brb")),
+                numbered(new ServerMessage().chatMsg("jolly", "rem", CONTENT + " " + CONTENT)),
+                numbered(new ServerMessage().roomChangeMsg("guest42", "MainHall", "jolly")),
+                new ServerMessage().newIdentityMsg("guest42", "rem"),
+                new ServerMessage().roomContentsMsg("jolly", "rem", members),
+                new ServerMessage().roomListMsg(roomIds, counts)
+        };
+
+        System.out.printf("%d requests and %d replies in the mix%n%n", requests.length, replies.length);
+        requests(requests);
+        replies(replies);
+        System.out.println("(" + sink % 7 + ")");
+    }
+
+    private static ServerMessage numbered(ServerMessage event) {
+        event.seq = 123456;
+        return event;
+    }
+
+    // Client to Server: bytes on the wire and the Server's decode
+    private static void requests(String[] requests) throws IOException {
+        byte[][] json = new byte[requests.length][];
+        byte[][] binary = new byte[requests.length][];
+        int[] binaryStart = new int[requests.length];
+        long jsonBytes = 0;
+        long binaryBytes = 0;
+        Client.BinaryCodec codec = new Client.BinaryCodec();
+        for (int i = 0; i < requests.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new DataOutputStream(out).writeUTF(requests[i]);
+            json[i] = out.toByteArray();
+            jsonBytes += json[i].length;
+
+            out.reset();
+            codec.writeRequest(new DataOutputStream(out), (JSONObject) JSONValue.parse(requests[i]));
+            binary[i] = out.toByteArray();
+            binaryBytes += binary[i].length;
+            binaryStart[i] = binary[i].length - BinaryCodec.peekVarint(ByteBuffer.wrap(binary[i]));
+        }
+
+        Request request = new Request();
+        double jsonDecode = time(requests.length, i -> {
+            JsonCodec.decode(json[i], 2, json[i].length - 2, request);
+            sink += request.getType().ordinal();
+        });
+        double binaryDecode = time(requests.length, i -> {
+            ByteBuffer buffer = ByteBuffer.wrap(binary[i]);
+            buffer.position(binaryStart[i]);
+            BinaryCodec.decodeRequest(buffer, binary[i].length - binaryStart[i], request);
+            sink += request.getType().ordinal();
+        });
+
+        System.out.println("requests          B/msg  Server decode ns/msg");
+        System.out.printf("  JSON       %10.1f  %20.1f%n", (double) jsonBytes / requests.length, jsonDecode);
+        System.out.printf("  BINARY     %10.1f  %20.1f%n%n", (double) binaryBytes / requests.length, binaryDecode);
+    }
+
+    // Server to Client: bytes on the wire, the Server's encode and the Client's decode
+    private static void replies(ServerMessage[] replies) throws IOException {
+        byte[][] json = new byte[replies.length][];
+        byte[][] binary = new byte[replies.length][];
+        long jsonBytes = 0;
+        long binaryBytes = 0;
+        Client.BinaryCodec codec = new Client.BinaryCodec();
+        for (int i = 0; i < replies.length; i++) {
+            Frame frame = JsonCodec.encode(replies[i], false, true);
+            json[i] = bytes(frame);
+            jsonBytes += json[i].length;
+            frame.release();
+
+            frame = BinaryCodec.encode(replies[i], true);
+            binary[i] = bytes(frame);
+            binaryBytes += binary[i].length;
+            // The Client learns the interned names once, as a connection would
+            for (int id : frame.interned() != null ? frame.interned() : new int[0]) {
+                codec.readReply(new DataInputStream(new ByteArrayInputStream(bytes(BinaryCodec.define(id)))));
+            }
+            frame.release();
+        }
+
+        double jsonEncode = time(replies.length, i -> {
+            Frame frame = JsonCodec.encode(replies[i], false, true);
+            sink += frame.length();
+            frame.release();
+        });
+        double binaryEncode = time(replies.length, i -> {
+            Frame frame = BinaryCodec.encode(replies[i], true);
+            sink += frame.length();
+            frame.release();
+        });
+        double jsonDecode = time(replies.length, i -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(json[i]));
+            JSONObject reply = (JSONObject) JSONValue.parse(in.readUTF());
+            sink += reply.size();
+        });
+        double binaryDecode = time(replies.length, i -> {
+            JSONObject reply = codec.readReply(new DataInputStream(new ByteArrayInputStream(binary[i])));
+            sink += reply.size();
+        });
+
+        System.out.println("replies           B/msg  Server encode ns/msg  Client decode ns/msg");
+        System.out.printf("  JSON       %10.1f  %20.1f  %20.1f%n",
+                (double) jsonBytes / replies.length, jsonEncode, jsonDecode);
+        System.out.printf("  BINARY     %10.1f  %20.1f  %20.1f%n",
+                (double) binaryBytes / replies.length, binaryEncode, binaryDecode);
+    }
+
+    // The best of five runs through the mix after a warm up, in ns per message
+    private static double time(int messages, Op op) throws IOException {
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run(i % messages);
+        }
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                op.run(i % messages);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / ITERATIONS;
+    }
+
+    private static byte[] bytes(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length());
+        frame.writeTo(out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,21 @@
+#!/bin/sh
+# Journals each number of rooms into a fresh state directory, then recovers
+# it twice in fresh JVMs: first by replaying the log, then from the snapshot
+# that the first recovery wrote.
+#
+# usage: bench/recovery.sh [rooms...]     (from the top of the tree)
+# JAVA picks the JDK, OUT the scratch directory.
+
+JAVA=${JAVA:-java}
+OUT=${OUT:-/tmp/chat-bench}
+
+mkdir -p $OUT/classes
+javac -nowarn -cp 'lib/*' -d $OUT/classes Server/*.java Client/*.java bench/Server/RecoveryBench.java || exit 1
+
+for rooms in ${@:-25000 50000 100000 200000}; do
+    rm -rf $OUT/state
+    echo "rooms=$rooms"
+    $JAVA -cp "$OUT/classes:lib/*" Server.RecoveryBench write $OUT/state $rooms | grep -v '^Recovered 0 '
+    $JAVA -cp "$OUT/classes:lib/*" Server.RecoveryBench recover $OUT/state
+    $JAVA -cp "$OUT/classes:lib/*" Server.RecoveryBench recover $OUT/state
+done
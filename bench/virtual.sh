@@ -0,0 +1,39 @@
+#!/bin/sh
+# Runs BroadcastBench against a Server on platform threads and on virtual
+# threads, and reports the Server's threads and resident memory once every
+# member is connected. --virtual needs a JDK with Thread.ofVirtual (21+).
+#
+# usage: bench/virtual.sh [members...]     (from the top of the tree)
+# JAVA picks the JDK, PORT the port, ROUNDS the number of timed probes.
+
+JAVA=${JAVA:-java}
+PORT=${PORT:-6192}
+ROUNDS=${ROUNDS:-200}
+OUT=${OUT:-/tmp/chat-bench}
+
+mkdir -p $OUT/classes
+javac -nowarn -cp 'lib/*' -d $OUT/classes Server/*.java Client/*.java bench/Server/BroadcastBench.java || exit 1
+
+for members in ${@:-2000 5000}; do
+    for threads in platform virtual; do
+        flag=$([ $threads = virtual ] && echo --virtual)
+        $JAVA -cp "$OUT/classes:lib/*" Server.Server -p $PORT $flag > $OUT/server.log 2>&1 &
+        server=$!
+        sleep 1.5
+        $JAVA -cp "$OUT/classes:lib/*" Server.BroadcastBench $PORT $members $ROUNDS > $OUT/bench.log 2>&1 &
+        bench=$!
+        for i in $(seq 1 240); do
+            [ "$(grep -c 'Client Connected' $OUT/server.log)" -ge $members ] && break
+            sleep 0.5
+        done
+        sleep 2
+        echo "members=$members threads=$threads" \
+            "os-threads=$(awk '/^Threads/ {print $2}' /proc/$server/status)" \
+            "rss=$(awk '/^VmRSS/ {print $2}' /proc/$server/status)KB"
+        wait $bench
+        cat $OUT/bench.log
+        kill $server
+        wait $server 2>/dev/null
+        sleep 2
+    done
+done